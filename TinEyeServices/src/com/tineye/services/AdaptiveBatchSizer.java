@@ -0,0 +1,433 @@
+package com.tineye.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Chooses the number of items to send per request for each API method
+ * from the latency and error rate observed for earlier requests.
+ * <p>
+ * The batch size for a method moves towards the number of items that can be
+ * sent in <code>targetMillis</code> milliseconds. Request times are fitted to
+ * a fixed overhead per request plus a cost per unit of work, where the work
+ * is the payload bytes when they are known and the number of items otherwise,
+ * so the fixed overhead does not make large batches look slower per item than
+ * they are. The batch size grows by at most a factor of two per request, and
+ * is halved whenever a request fails so that a batch that times out is not
+ * retried at the same size.
+ * <p>
+ * Requests are recorded with {@link #record(String, int, long, long, boolean)},
+ * or sent and recorded together with {@link #sendAll(BatchSender, List)}.
+ * Requests to one API method that differ greatly in cost per item, such as
+ * adding images by their data or by their URLs, should be recorded under
+ * different names; <code>sendAll</code> uses {@link BatchSenders#sizingKey(BatchSender)}.
+ * The current decisions for each method are available from {@link #getStats()}.
+ * <p>
+ * An <code>AdaptiveBatchSizer</code> is safe to use from many threads.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class AdaptiveBatchSizer
+{
+    private static final Logger logger = Logger.getLogger(AdaptiveBatchSizer.class);
+
+    // Weight of the latest request in the moving averages.
+    private static final double SMOOTHING = 0.3;
+
+    // Error rate above which batch sizes stop growing.
+    private static final double MAX_GROWTH_ERROR_RATE = 0.1;
+
+    private final long targetMillis;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int initialBatchSize;
+
+    private final Map<String, MethodState> states = new HashMap<String, MethodState>();
+
+    /**
+     * Construct an <code>AdaptiveBatchSizer</code> aiming for requests that
+     * take <code>targetMillis</code> milliseconds.
+     *
+     * @param targetMillis       Target duration of each request in milliseconds
+     * @param minBatchSize       Smallest batch size to use
+     * @param maxBatchSize       Largest batch size to use
+     * @param initialBatchSize   Batch size to use for a method before any of its
+     *                           requests have been recorded
+     *
+     * @throws IllegalArgumentException   If the target is not positive or the
+     *                                    batch sizes are not ordered
+     */
+    public AdaptiveBatchSizer(long targetMillis, int minBatchSize, int maxBatchSize, int initialBatchSize)
+    {
+        if (targetMillis <= 0 || minBatchSize <= 0 ||
+            minBatchSize > initialBatchSize || initialBatchSize > maxBatchSize)
+        {
+            throw new IllegalArgumentException("Batch sizes must satisfy 0 < min <= initial <= max " +
+                                               "and the target duration must be positive");
+        }
+        this.targetMillis = targetMillis;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.initialBatchSize = initialBatchSize;
+    }
+
+    /**
+     * Get the number of items to send in the next request to <code>method</code>.
+     *
+     * @param method   The API method name
+     *
+     * @return The current batch size for the method
+     */
+    public int getBatchSize(String method)
+    {
+        MethodState state = stateFor(method);
+        synchronized (state)
+        {
+            return state.batchSize;
+        }
+    }
+
+    /**
+     * Record the outcome of a request to <code>method</code> and adjust
+     * the method's batch size.
+     *
+     * @param method          The API method name
+     * @param items           Number of items sent in the request
+     * @param bytes           Number of payload bytes sent in the request, or 0 if unknown
+     * @param elapsedMillis   Time taken by the request in milliseconds
+     * @param failed          True if the request threw an exception, timed out
+     *                        or returned a <code>fail</code> status
+     */
+    public void record(String method, int items, long bytes, long elapsedMillis, boolean failed)
+    {
+        if (items <= 0)
+        {
+            return;
+        }
+        MethodState state = stateFor(method);
+        synchronized (state)
+        {
+            state.requests += 1;
+            state.errorRate = average(state.errorRate, failed ? 1.0 : 0.0, state.requests);
+
+            if (failed)
+            {
+                state.failures += 1;
+                state.batchSize = Math.max(this.minBatchSize, state.batchSize / 2);
+                logger.warn("'" + method + "' batch of " + items + " failed, reducing batch size to " +
+                            state.batchSize);
+                return;
+            }
+            state.successes += 1;
+            if (state.successes == 1)
+            {
+                state.byBytes = bytes > 0;
+            }
+            if (bytes > 0)
+            {
+                state.byteSamples += 1;
+                state.itemBytes = average(state.itemBytes, (double)bytes / items, state.byteSamples);
+            }
+            fit(state, items, bytes, elapsedMillis);
+
+            // Size that would take the target time at the fitted overhead and cost per item.
+            double ideal = (this.targetMillis - state.overheadMillis) / Math.max(state.itemMillis, 0.001);
+            int next = (int)Math.max(0, Math.min(ideal, state.batchSize * 2.0));
+
+            if (next > state.batchSize && state.errorRate > MAX_GROWTH_ERROR_RATE)
+            {
+                next = state.batchSize;
+            }
+            state.batchSize = Math.max(this.minBatchSize, Math.min(this.maxBatchSize, next));
+        }
+    }
+
+    /**
+     * Send all of <code>items</code> in consecutive batches, sizing each
+     * batch with {@link #getBatchSize(String)} and recording its outcome
+     * under the sender's {@link BatchSenders#sizingKey(BatchSender) sizing key}.
+     *
+     * @param sender   Sends each batch to the API, see {@link BatchSenders}
+     * @param items    The items to send
+     *
+     * @return The API JSON response for each batch, in order
+     *
+     * @throws TinEyeServiceException   If a batch request throws an exception,
+     *                                  in which case the remaining items are not sent
+     */
+    public <T> List<JSONObject> sendAll(BatchSender<T> sender, List<T> items)
+        throws TinEyeServiceException
+    {
+        List<JSONObject> responses = new ArrayList<JSONObject>();
+        String method = BatchSenders.sizingKey(sender);
+
+        int offset = 0;
+        while (offset < items.size())
+        {
+            int end = Math.min(items.size(), offset + getBatchSize(method));
+            List<T> batch = items.subList(offset, end);
+            long bytes = payloadBytes(batch);
+            long start = System.currentTimeMillis();
+
+            try
+            {
+                JSONObject response = sender.send(batch);
+                record(method, batch.size(), bytes, System.currentTimeMillis() - start,
+                       "fail".equals(response.optString("status")));
+                responses.add(response);
+            }
+            catch (TinEyeServiceException e)
+            {
+                record(method, batch.size(), bytes, System.currentTimeMillis() - start, true);
+                throw e;
+            }
+            offset = end;
+        }
+        return responses;
+    }
+
+    /**
+     * Get the current decisions and measurements for <code>method</code>.
+     *
+     * @param method   The API method name
+     *
+     * @return A snapshot of the method's batch sizing statistics
+     */
+    public Stats getStats(String method)
+    {
+        MethodState state = stateFor(method);
+        synchronized (state)
+        {
+            return new Stats(method, state);
+        }
+    }
+
+    /**
+     * Get the current decisions and measurements for every method
+     * that has been sized or recorded.
+     *
+     * @return Snapshots of the batch sizing statistics keyed by API method name or sizing key
+     */
+    public Map<String, Stats> getStats()
+    {
+        List<String> methods;
+        synchronized (this.states)
+        {
+            methods = new ArrayList<String>(this.states.keySet());
+        }
+        Map<String, Stats> stats = new HashMap<String, Stats>();
+        for (String method: methods)
+        {
+            stats.put(method, getStats(method));
+        }
+        return stats;
+    }
+
+    private MethodState stateFor(String method)
+    {
+        synchronized (this.states)
+        {
+            MethodState state = this.states.get(method);
+            if (state == null)
+            {
+                state = new MethodState(this.initialBatchSize);
+                this.states.put(method, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Update the least-squares fit of request time = overhead + slope * work,
+     * using moving averages so that old requests are gradually forgotten.
+     * Until the batches have differed enough in size to separate the two,
+     * the whole request time is put down to the work; once they stop
+     * differing, the last overhead fitted is kept.
+     */
+    private static void fit(MethodState state, int items, long bytes, long elapsedMillis)
+    {
+        double work;
+        if (!state.byBytes)
+        {
+            work = items;
+        }
+        else
+        {
+            work = bytes > 0 ? bytes : items * state.itemBytes;
+        }
+        long n = state.successes;
+        state.meanWork = average(state.meanWork, work, n);
+        state.meanMillis = average(state.meanMillis, elapsedMillis, n);
+        state.meanWorkSquared = average(state.meanWorkSquared, work * work, n);
+        state.meanWorkMillis = average(state.meanWorkMillis, work * elapsedMillis, n);
+
+        double variance = state.meanWorkSquared - state.meanWork * state.meanWork;
+        double slope = 0;
+        double overhead = -1;
+        if (variance > 0.0001 * state.meanWork * state.meanWork)
+        {
+            slope = (state.meanWorkMillis - state.meanWork * state.meanMillis) / variance;
+            overhead = state.meanMillis - slope * state.meanWork;
+        }
+        if (slope <= 0 || overhead < 0 || overhead >= state.meanMillis)
+        {
+            // Keep the last overhead fitted, which is still valid once the batch size settles.
+            overhead = state.overheadMillis < state.meanMillis ? state.overheadMillis : 0;
+            slope = (state.meanMillis - overhead) / Math.max(state.meanWork, 0.001);
+        }
+        state.overheadMillis = overhead;
+        state.itemMillis = slope * (state.byBytes ? state.itemBytes : 1);
+    }
+
+    // Exponential moving average, seeded with the first sample.
+    private static double average(double current, double sample, long samples)
+    {
+        return samples <= 1 ? sample : current + SMOOTHING * (sample - current);
+    }
+
+    private static long payloadBytes(List<?> items)
+    {
+        long bytes = 0;
+        for (Object item: items)
+        {
+            if (item instanceof Image)
+            {
+                bytes += ((Image)item).getDataLength();
+            }
+        }
+        return bytes;
+    }
+
+    private static class MethodState
+    {
+        int batchSize;
+        long requests = 0;
+        long successes = 0;
+        long failures = 0;
+        double errorRate = 0;
+        long byteSamples = 0;
+        double itemMillis = 0;
+        double itemBytes = 0;
+        double overheadMillis = 0;
+
+        // Work is payload bytes if the first successful request had any, otherwise items.
+        boolean byBytes = false;
+        double meanWork = 0;
+        double meanMillis = 0;
+        double meanWorkSquared = 0;
+        double meanWorkMillis = 0;
+
+        MethodState(int batchSize)
+        {
+            this.batchSize = batchSize;
+        }
+    }
+
+    /**
+     * Batch sizing statistics for one API method at a point in time.
+     */
+    public static class Stats
+    {
+        private final String method;
+        private final int batchSize;
+        private final long requests;
+        private final long failures;
+        private final double errorRate;
+        private final double itemMillis;
+        private final double itemBytes;
+        private final double overheadMillis;
+
+        private Stats(String method, MethodState state)
+        {
+            this.method = method;
+            this.batchSize = state.batchSize;
+            this.requests = state.requests;
+            this.failures = state.failures;
+            this.errorRate = state.errorRate;
+            this.itemMillis = state.itemMillis;
+            this.itemBytes = state.itemBytes;
+            this.overheadMillis = state.overheadMillis;
+        }
+
+        /**
+         * @return The API method name
+         */
+        public String getMethod()
+        {
+            return this.method;
+        }
+
+        /**
+         * @return The batch size the next request will use
+         */
+        public int getBatchSize()
+        {
+            return this.batchSize;
+        }
+
+        /**
+         * @return The number of requests recorded
+         */
+        public long getRequests()
+        {
+            return this.requests;
+        }
+
+        /**
+         * @return The number of requests recorded as failed
+         */
+        public long getFailures()
+        {
+            return this.failures;
+        }
+
+        /**
+         * @return The moving average of the fraction of requests that failed
+         */
+        public double getErrorRate()
+        {
+            return this.errorRate;
+        }
+
+        /**
+         * @return The fitted request time per item in milliseconds, excluding
+         *         the fixed overhead per request
+         */
+        public double getItemMillis()
+        {
+            return this.itemMillis;
+        }
+
+        /**
+         * @return The moving average of payload bytes per item, for requests
+         *         whose payload size was known
+         */
+        public double getItemBytes()
+        {
+            return this.itemBytes;
+        }
+
+        /**
+         * @return The fitted fixed time per request in milliseconds
+         */
+        public double getOverheadMillis()
+        {
+            return this.overheadMillis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.method + ": batchSize=" + this.batchSize + " requests=" + this.requests +
+                   " failures=" + this.failures + " errorRate=" + this.errorRate +
+                   " itemMillis=" + this.itemMillis + " itemBytes=" + this.itemBytes +
+                   " overheadMillis=" + this.overheadMillis;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.tineye.services;
+
+import java.util.List;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Sends a batch of items to a TinEye Services API method in a single request.
+ * <p>
+ * Implementations for the API methods that accept a list of items
+ * are available from {@link BatchSenders}.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public interface BatchSender<T>
+{
+    /**
+     * Get the name of the API method the batches are sent to.
+     *
+     * @return The API method name, for example <code>add</code> or <code>delete</code>
+     */
+    String getMethod();
+
+    /**
+     * Send <code>items</code> to the API in a single request.
+     *
+     * @param items   The items to send
+     *
+     * @return The API JSON response for the whole batch
+     *
+     * @throws TinEyeServiceException   If an exception occurs issuing the API
+     *                                  request or parsing the response
+     */
+    JSONObject send(List<T> items)
+        throws TinEyeServiceException;
+}
@@ -0,0 +1,231 @@
+package com.tineye.services;
+
+import java.util.List;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Provides {@link BatchSender} implementations for the TinEye Services
+ * API methods that accept a list of items.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public final class BatchSenders
+{
+    private BatchSenders()
+    {
+    }
+
+    /**
+     * Get a sender that adds batches of images to a MatchEngine collection
+     * using the image data.
+     *
+     * @param request   The MatchEngine API to add images to
+     *
+     * @return A sender calling {@link MatchEngineRequest#addImage(Image[])}
+     */
+    public static BatchSender<Image> addImage(final MatchEngineRequest request)
+    {
+        return new ImageSender("add_image")
+        {
+            public JSONObject send(List<Image> images)
+                throws TinEyeServiceException
+            {
+                return request.addImage(images.toArray(new Image[images.size()]));
+            }
+        };
+    }
+
+    /**
+     * Get a sender that adds batches of images to a MatchEngine collection
+     * using the image URLs.
+     *
+     * @param request   The MatchEngine API to add images to
+     *
+     * @return A sender calling {@link MatchEngineRequest#addURL(Image[])}
+     */
+    public static BatchSender<Image> addURL(final MatchEngineRequest request)
+    {
+        return new ImageSender("add_url")
+        {
+            public JSONObject send(List<Image> images)
+                throws TinEyeServiceException
+            {
+                return request.addURL(images.toArray(new Image[images.size()]));
+            }
+        };
+    }
+
+    /**
+     * Get a sender that adds batches of images to a collection supporting
+     * metadata using the image data.
+     *
+     * @param request                    The API to add images to
+     * @param ignoreBackground           If true, ignore the background color of the images
+     * @param ignoreInteriorBackground   If true, ignore regions that have the same color as the
+     *                                   background region but that are surrounded by non-background
+     *                                   regions.
+     *
+     * @return A sender calling {@link MetadataRequest#addImage(Image[], boolean, boolean)}
+     */
+    public static BatchSender<Image> addImage(final MetadataRequest request,
+                                              final boolean ignoreBackground,
+                                              final boolean ignoreInteriorBackground)
+    {
+        return new ImageSender("add_image")
+        {
+            public JSONObject send(List<Image> images)
+                throws TinEyeServiceException
+            {
+                return request.addImage(images.toArray(new Image[images.size()]),
+                                        ignoreBackground, ignoreInteriorBackground);
+            }
+        };
+    }
+
+    /**
+     * Get a sender that adds batches of images to a collection supporting
+     * metadata using the image URLs.
+     *
+     * @param request                    The API to add images to
+     * @param ignoreBackground           If true, ignore the background color of the images
+     * @param ignoreInteriorBackground   If true, ignore regions that have the same color as the
+     *                                   background region but that are surrounded by non-background
+     *                                   regions.
+     *
+     * @return A sender calling {@link MetadataRequest#addURL(Image[], boolean, boolean)}
+     */
+    public static BatchSender<Image> addURL(final MetadataRequest request,
+                                            final boolean ignoreBackground,
+                                            final boolean ignoreInteriorBackground)
+    {
+        return new ImageSender("add_url")
+        {
+            public JSONObject send(List<Image> images)
+                throws TinEyeServiceException
+            {
+                return request.addURL(images.toArray(new Image[images.size()]),
+                                      ignoreBackground, ignoreInteriorBackground);
+            }
+        };
+    }
+
+    /**
+     * Get a sender that deletes batches of images from a hosted image collection.
+     *
+     * @param request   The API to delete images from
+     *
+     * @return A sender calling {@link TinEyeServiceRequest#delete(String[])}
+     */
+    public static BatchSender<String> delete(final TinEyeServiceRequest request)
+    {
+        return new BatchSender<String>()
+        {
+            public String getMethod()
+            {
+                return "delete";
+            }
+
+            public JSONObject send(List<String> filepaths)
+                throws TinEyeServiceException
+            {
+                return request.delete(filepaths.toArray(new String[filepaths.size()]));
+            }
+        };
+    }
+
+    /**
+     * Get a sender that retrieves the metadata of batches of collection images.
+     *
+     * @param request   The API to retrieve metadata from
+     *
+     * @return A sender calling {@link MetadataRequest#getMetadata(String[])}
+     */
+    public static BatchSender<String> getMetadata(final MetadataRequest request)
+    {
+        return new BatchSender<String>()
+        {
+            public String getMethod()
+            {
+                return "get_metadata";
+            }
+
+            public JSONObject send(List<String> filepaths)
+                throws TinEyeServiceException
+            {
+                return request.getMetadata(filepaths.toArray(new String[filepaths.size()]));
+            }
+        };
+    }
+
+    /**
+     * Get a sender that updates the metadata of batches of collection images.
+     *
+     * @param request   The API to update metadata in
+     *
+     * @return A sender calling {@link MetadataRequest#updateMetadata(String[], JSONObject[])}
+     */
+    public static BatchSender<MetadataEntry> updateMetadata(final MetadataRequest request)
+    {
+        return new BatchSender<MetadataEntry>()
+        {
+            public String getMethod()
+            {
+                return "update_metadata";
+            }
+
+            public JSONObject send(List<MetadataEntry> entries)
+                throws TinEyeServiceException
+            {
+                String[] filepaths = new String[entries.size()];
+                JSONObject[] metadata = new JSONObject[entries.size()];
+
+                for (int i = 0; i < entries.size(); i++)
+                {
+                    filepaths[i] = entries.get(i).getFilepath();
+                    metadata[i] = entries.get(i).getMetadata();
+                }
+                return request.updateMetadata(filepaths, metadata);
+            }
+        };
+    }
+
+    /**
+     * Get the key that batch sizes for <code>sender</code> are chosen by. Adding
+     * images by their data and by their URLs both call the API <code>add</code>
+     * method, but differ greatly in cost per image, so they have the keys
+     * <code>add_image</code> and <code>add_url</code>. Other senders are keyed
+     * by their API method name.
+     *
+     * @param sender   The batch sender
+     *
+     * @return The sizing key to pass to {@link AdaptiveBatchSizer}
+     */
+    public static String sizingKey(BatchSender<?> sender)
+    {
+        if (sender instanceof ImageSender)
+        {
+            return ((ImageSender)sender).sizingKey;
+        }
+        return sender.getMethod();
+    }
+
+    /**
+     * A sender calling the API <code>add</code> method with images, sized
+     * apart from senders adding images the other way.
+     */
+    private abstract static class ImageSender implements BatchSender<Image>
+    {
+        private final String sizingKey;
+
+        ImageSender(String sizingKey)
+        {
+            this.sizingKey = sizingKey;
+        }
+
+        public String getMethod()
+        {
+            return "add";
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.tineye.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends a batch of items to the API and finds the items responsible
+ * when the API reports a problem with the batch.
+ * <p>
+ * When a batch request returns a <code>warn</code> or <code>fail</code> status,
+ * the error messages are first given to the items they name, by collection
+ * filepath, filepath or URL, and those items are reported as failed with
+ * their errors without being sent again. Only the items whose outcome is
+ * still unknown are sent again: as one batch when some items were named,
+ * otherwise split in two, recursively, until each problem item has been
+ * sent on its own. Halves that return <code>ok</code> are not split further,
+ * so isolating a single bad item in a batch of <code>n</code> costs about
+ * <code>2 log2(n)</code> extra requests instead of re-sending the whole batch
+ * one item at a time.
+ * <p>
+ * A batch whose request throws an exception, for example because the API
+ * server cannot be reached, or returns a <code>fail</code> status with errors
+ * that name none of its items, for example bad credentials, is not split:
+ * all of its items are reported as failed so that an outage does not turn
+ * into a flood of requests.
+ * <p>
+ * Splitting re-sends items that the API may already have accepted in the
+ * failed request, so it should only be used with methods for which sending
+ * an item twice is harmless, such as <code>add</code>, <code>delete</code>
+ * and <code>update_metadata</code>.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class BisectingBatchWriter<T>
+{
+    private static final Logger logger = Logger.getLogger(BisectingBatchWriter.class);
+
+    private final BatchSender<T> sender;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Construct a <code>BisectingBatchWriter</code> sending batches with <code>sender</code>.
+     *
+     * @param sender   Sends each batch to the API, see {@link BatchSenders}
+     */
+    public BisectingBatchWriter(BatchSender<T> sender)
+    {
+        this.sender = sender;
+    }
+
+    /**
+     * Send <code>items</code> to the API, splitting the batch as needed to
+     * find the status of each item.
+     *
+     * @param items   The items to send
+     *
+     * @return The outcome of each item, in the same order as <code>items</code>
+     */
+    public List<ItemResult<T>> write(List<T> items)
+    {
+        if (items.isEmpty())
+        {
+            return new ArrayList<ItemResult<T>>();
+        }
+        return send(items);
+    }
+
+    /**
+     * Get the number of requests sent so far, including those for split batches.
+     *
+     * @return The number of requests sent
+     */
+    public long getRequests()
+    {
+        return this.requests.get();
+    }
+
+    private List<ItemResult<T>> send(List<T> items)
+    {
+        List<ItemResult<T>> results = new ArrayList<ItemResult<T>>(items.size());
+        JSONObject response;
+        this.requests.incrementAndGet();
+
+        try
+        {
+            response = this.sender.send(items);
+        }
+        catch (TinEyeServiceException e)
+        {
+            logger.error("'" + this.sender.getMethod() + "' batch of " + items.size() +
+                         " items failed: " + e.toString());
+            for (T item: items)
+            {
+                results.add(new ItemResult<T>(item, ItemResult.FAIL, null, e));
+            }
+            return results;
+        }
+
+        String status = response.optString("status");
+        JSONArray errors = response.optJSONArray("error");
+        if ("ok".equals(status) || items.size() == 1)
+        {
+            for (T item: items)
+            {
+                results.add(new ItemResult<T>(item, status, "ok".equals(status) ? null : errors, null));
+            }
+            return results;
+        }
+
+        List<String[]> itemKeys = new ArrayList<String[]>(items.size());
+        for (T item: items)
+        {
+            itemKeys.add(ItemOutcomes.keysOfItem(item));
+        }
+        JSONArray[] named = ItemOutcomes.attribute(errors, itemKeys);
+        JSONArray unnamed = named[items.size()];
+        boolean failed = "fail".equals(status);
+
+        // Items named by an error are done. The others are unknown unless this was
+        // a warn batch with every error accounted for.
+        List<T> unknown = new ArrayList<T>();
+        for (int i = 0; i < items.size(); i++)
+        {
+            if (named[i].isEmpty() && (failed || !unnamed.isEmpty()))
+            {
+                unknown.add(items.get(i));
+            }
+        }
+        if (failed && unknown.size() == items.size())
+        {
+            logger.error("'" + this.sender.getMethod() + "' batch of " + items.size() +
+                         " items failed: " + errors);
+            for (T item: items)
+            {
+                results.add(new ItemResult<T>(item, ItemResult.FAIL, errors, null));
+            }
+            return results;
+        }
+
+        List<ItemResult<T>> resent;
+        if (unknown.size() == items.size())
+        {
+            int middle = items.size() / 2;
+            logger.warn("'" + this.sender.getMethod() + "' batch of " + items.size() +
+                        " items returned status '" + status + "', splitting batch");
+            resent = send(items.subList(0, middle));
+            resent.addAll(send(items.subList(middle, items.size())));
+        }
+        else if (!unknown.isEmpty())
+        {
+            logger.warn("'" + this.sender.getMethod() + "' batch of " + items.size() +
+                        " items returned status '" + status + "', resending " + unknown.size() +
+                        " items not named by its errors");
+            resent = send(unknown);
+        }
+        else
+        {
+            resent = new ArrayList<ItemResult<T>>();
+        }
+
+        int next = 0;
+        for (int i = 0; i < items.size(); i++)
+        {
+            if (!named[i].isEmpty())
+            {
+                results.add(new ItemResult<T>(items.get(i), ItemResult.FAIL, named[i], null));
+            }
+            else if (failed || !unnamed.isEmpty())
+            {
+                results.add(resent.get(next++));
+            }
+            else
+            {
+                results.add(new ItemResult<T>(items.get(i), ItemResult.OK, null, null));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The outcome of sending one item.
+     */
+    public static class ItemResult<T>
+    {
+        /**
+         * Status of an item the API accepted.
+         */
+        public static final String OK = "ok";
+
+        /**
+         * Status of an item the API accepted with warnings.
+         */
+        public static final String WARN = "warn";
+
+        /**
+         * Status of an item the API rejected, or that could not be sent.
+         */
+        public static final String FAIL = "fail";
+
+        private final T item;
+        private final String status;
+        private final JSONArray errors;
+        private final TinEyeServiceException exception;
+
+        private ItemResult(T item, String status, JSONArray errors, TinEyeServiceException exception)
+        {
+            this.item = item;
+            this.status = status;
+            this.errors = errors;
+            this.exception = exception;
+        }
+
+        /**
+         * @return The item that was sent
+         */
+        public T getItem()
+        {
+            return this.item;
+        }
+
+        /**
+         * @return One of {@link #OK}, {@link #WARN} or {@link #FAIL}
+         */
+        public String getStatus()
+        {
+            return this.status;
+        }
+
+        /**
+         * @return True if the status is {@link #OK}
+         */
+        public boolean isOk()
+        {
+            return OK.equals(this.status);
+        }
+
+        /**
+         * @return The API error messages for the item, or null if the status
+         *         is {@link #OK} or the request threw an exception
+         */
+        public JSONArray getErrors()
+        {
+            return this.errors;
+        }
+
+        /**
+         * @return The exception thrown sending the item's batch, or null
+         *         if the API returned a response
+         */
+        public TinEyeServiceException getException()
+        {
+            return this.exception;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.tineye.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable byte arrays for image data, so that reading and
+ * sending images does not allocate a new multi-megabyte array every time.
+ * <p>
+ * Buffers come in power of two size classes from <code>minBufferSize</code>
+ * to <code>maxBufferSize</code>. {@link #acquire(int)} returns a buffer of the
+ * smallest class that fits, which is usually longer than requested, so the
+ * caller must keep track of how much of it holds data. Requests larger than
+ * the largest class are allocated exactly and are not pooled. Released
+ * buffers are kept for reuse until the pool holds <code>maxRetainedBytes</code>,
+ * after which further released buffers are left to the garbage collector.
+ * <p>
+ * A <code>BufferPool</code> is safe to use from many threads. A buffer must not
+ * be used after it has been released.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class BufferPool
+{
+    private static final BufferPool shared = new BufferPool(64 * 1024, 32 * 1024 * 1024, 256L * 1024 * 1024);
+
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    private final long maxRetainedBytes;
+
+    // Free buffers of each size class, smallest first.
+    private final List<Queue<byte[]>> freeBuffers;
+
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * Construct a <code>BufferPool</code>.
+     *
+     * @param minBufferSize      Size of the smallest buffer class, rounded up to a power of two
+     * @param maxBufferSize      Size of the largest buffer class, rounded up to a power of two
+     * @param maxRetainedBytes   Most bytes of free buffers kept for reuse
+     *
+     * @throws IllegalArgumentException   If the sizes are not positive or the minimum is larger than the maximum
+     */
+    public BufferPool(int minBufferSize, int maxBufferSize, long maxRetainedBytes)
+    {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize || maxBufferSize > (1 << 30) || maxRetainedBytes < 0)
+        {
+            throw new IllegalArgumentException("BufferPool sizes must be positive and increasing");
+        }
+        this.minBufferSize = roundUp(minBufferSize);
+        this.maxBufferSize = roundUp(maxBufferSize);
+        this.maxRetainedBytes = maxRetainedBytes;
+
+        this.freeBuffers = new ArrayList<Queue<byte[]>>();
+        for (int size = this.minBufferSize; size <= this.maxBufferSize; size <<= 1)
+        {
+            this.freeBuffers.add(new ConcurrentLinkedQueue<byte[]>());
+        }
+    }
+
+    /**
+     * Get the pool shared by default, with buffers from 64KB to 32MB and at most 256MB retained.
+     *
+     * @return The shared pool
+     */
+    public static BufferPool getShared()
+    {
+        return shared;
+    }
+
+    /**
+     * Get a buffer of at least <code>length</code> bytes. The contents of the buffer are undefined.
+     *
+     * @param length   The number of bytes needed
+     *
+     * @return A buffer at least <code>length</code> bytes long
+     */
+    public byte[] acquire(int length)
+    {
+        if (length > this.maxBufferSize)
+        {
+            this.misses.incrementAndGet();
+            return new byte[length];
+        }
+        int sizeClass = sizeClass(length);
+        byte[] buffer = this.freeBuffers.get(sizeClass).poll();
+        if (buffer != null)
+        {
+            this.retainedBytes.addAndGet(-buffer.length);
+            this.hits.incrementAndGet();
+            return buffer;
+        }
+        this.misses.incrementAndGet();
+        return new byte[this.minBufferSize << sizeClass];
+    }
+
+    /**
+     * Return a buffer to the pool for reuse.
+     *
+     * @param buffer   A buffer from {@link #acquire(int)}, or null to do nothing
+     */
+    public void release(byte[] buffer)
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+        int length = buffer.length;
+        if (length < this.minBufferSize || length > this.maxBufferSize || Integer.bitCount(length) != 1)
+        {
+            return;
+        }
+        if (this.retainedBytes.addAndGet(length) > this.maxRetainedBytes)
+        {
+            this.retainedBytes.addAndGet(-length);
+            this.discarded.incrementAndGet();
+            return;
+        }
+        this.freeBuffers.get(sizeClass(length)).offer(buffer);
+    }
+
+    /**
+     * Get the number of acquired buffers that were reused from the pool.
+     *
+     * @return The number of reused buffers
+     */
+    public long getHits()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * Get the number of acquired buffers that had to be allocated.
+     *
+     * @return The number of allocated buffers
+     */
+    public long getMisses()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * Get the number of released buffers not kept because the pool was full.
+     *
+     * @return The number of discarded buffers
+     */
+    public long getDiscarded()
+    {
+        return this.discarded.get();
+    }
+
+    /**
+     * Get the number of bytes of free buffers held by the pool.
+     *
+     * @return The retained bytes
+     */
+    public long getRetainedBytes()
+    {
+        return this.retainedBytes.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "hits=" + this.hits + " misses=" + this.misses + " discarded=" + this.discarded +
+               " retainedBytes=" + this.retainedBytes;
+    }
+
+    private int sizeClass(int length)
+    {
+        int sizeClass = 0;
+        for (int size = this.minBufferSize; size < length; size <<= 1)
+        {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    private static int roundUp(int size)
+    {
+        int highest = Integer.highestOneBit(size);
+        return highest == size ? size : highest << 1;
+    }
+}
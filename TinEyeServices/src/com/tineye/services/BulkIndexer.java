@@ -0,0 +1,533 @@
+package com.tineye.services;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects images added one at a time into batches and sends each batch
+ * to the API with a single request.
+ * <p>
+ * A batch is sent as soon as it holds <code>maxBatchSize</code> images or
+ * <code>maxBatchBytes</code> bytes of image data, or when the oldest image
+ * in it has waited <code>maxLingerMillis</code> milliseconds. Batches are sent
+ * concurrently by a pool of worker threads. When all the workers are busy
+ * and another batch is waiting, {@link #add(Image)} blocks until a worker
+ * is free. Given a {@link ByteBudget}, {@link #add(Image)} also blocks while
+ * the image data added but not yet sent would exceed the budget, which bounds
+ * the heap held by the indexer however fast images are added.
+ * <p>
+ * Each call to {@link #add(Image)} returns a <code>Future</code> that
+ * completes with the outcome for that image alone: a JSON response with an
+ * <code>ok</code> status, or, when its batch returned <code>warn</code>, a
+ * <code>fail</code> status with the errors naming the image's filepath or
+ * URL. If the batch had errors naming no image, the images not named by any
+ * error get a <code>warn</code> status with those errors, since any of them
+ * may have been rejected. The future fails with a
+ * <code>TinEyeServiceException</code> when the batch request throws or
+ * returns a <code>fail</code> status.
+ * <p>
+ * A <code>BulkIndexer</code> is safe to use from many threads. Call
+ * {@link #close()} when done to send any remaining images and stop the workers.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class BulkIndexer implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(BulkIndexer.class);
+
+    // How long a linger flush waits to try again when every batch slot is taken.
+    private static final long LINGER_RETRY_MILLIS = 20;
+
+    private final BatchSender<Image> sender;
+    private final int maxBatchSize;
+    private final long maxBatchBytes;
+    private final long maxLingerMillis;
+    private final AdaptiveBatchSizer sizer;
+    private final ByteBudget budget;
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService lingerTimer;
+
+    // Limits the batches waiting for or being sent by a worker.
+    private final Semaphore batchSlots;
+
+    private final Object lock = new Object();
+    private List<Image> pendingImages = new ArrayList<Image>();
+    private List<SettableFuture<JSONObject>> pendingFutures = new ArrayList<SettableFuture<JSONObject>>();
+    private long pendingBytes = 0;
+    private long pendingHeld = 0;
+    private ScheduledFuture<?> lingerFlush = null;
+    private boolean closed = false;
+
+    private final AtomicLong imagesSent = new AtomicLong();
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong batchesFailed = new AtomicLong();
+
+    /**
+     * Construct a <code>BulkIndexer</code> sending batches of images
+     * with <code>sender</code>.
+     *
+     * @param sender            Sends each batch of images to the API, see {@link BatchSenders}
+     * @param maxBatchSize      Maximum number of images in a batch
+     * @param maxBatchBytes     Maximum total bytes of image data in a batch. A single image
+     *                          larger than this is sent in a batch of its own.
+     * @param maxLingerMillis   Maximum time in milliseconds an image waits for its batch to fill
+     * @param numWorkers        Number of batches to send concurrently
+     *
+     * @throws IllegalArgumentException   If any of the limits is not positive
+     */
+    public BulkIndexer(BatchSender<Image> sender, int maxBatchSize, long maxBatchBytes,
+                       long maxLingerMillis, int numWorkers)
+    {
+        this(sender, maxBatchSize, maxBatchBytes, maxLingerMillis, numWorkers, null);
+    }
+
+    /**
+     * Construct a <code>BulkIndexer</code> sending batches of images
+     * with <code>sender</code>, with the number of images in each batch
+     * chosen by <code>sizer</code>.
+     *
+     * @param sender            Sends each batch of images to the API, see {@link BatchSenders}
+     * @param maxBatchSize      Maximum number of images in a batch, whatever the sizer chooses
+     * @param maxBatchBytes     Maximum total bytes of image data in a batch. A single image
+     *                          larger than this is sent in a batch of its own.
+     * @param maxLingerMillis   Maximum time in milliseconds an image waits for its batch to fill
+     * @param numWorkers        Number of batches to send concurrently
+     * @param sizer             Chooses the batch size from the latency of earlier batches,
+     *                          or null to always use <code>maxBatchSize</code>
+     *
+     * @throws IllegalArgumentException   If any of the limits is not positive
+     */
+    public BulkIndexer(BatchSender<Image> sender, int maxBatchSize, long maxBatchBytes,
+                       long maxLingerMillis, int numWorkers, AdaptiveBatchSizer sizer)
+    {
+        this(sender, maxBatchSize, maxBatchBytes, maxLingerMillis, numWorkers, sizer, null);
+    }
+
+    /**
+     * Construct a <code>BulkIndexer</code> sending batches of images
+     * with <code>sender</code>, holding no more image data than
+     * <code>budget</code> allows.
+     *
+     * @param sender            Sends each batch of images to the API, see {@link BatchSenders}
+     * @param maxBatchSize      Maximum number of images in a batch, whatever the sizer chooses
+     * @param maxBatchBytes     Maximum total bytes of image data in a batch. A single image
+     *                          larger than this is sent in a batch of its own.
+     * @param maxLingerMillis   Maximum time in milliseconds an image waits for its batch to fill
+     * @param numWorkers        Number of batches to send concurrently
+     * @param sizer             Chooses the batch size from the latency of earlier batches,
+     *                          or null to always use <code>maxBatchSize</code>
+     * @param budget            Bounds the bytes of image data added but not yet sent,
+     *                          or null for no bound. May be shared with other indexers.
+     *
+     * @throws IllegalArgumentException   If any of the limits is not positive
+     */
+    public BulkIndexer(BatchSender<Image> sender, int maxBatchSize, long maxBatchBytes,
+                       long maxLingerMillis, int numWorkers, AdaptiveBatchSizer sizer,
+                       ByteBudget budget)
+    {
+        if (maxBatchSize <= 0 || maxBatchBytes <= 0 || maxLingerMillis <= 0 || numWorkers <= 0)
+        {
+            throw new IllegalArgumentException("BulkIndexer limits must be positive");
+        }
+        this.sender = sender;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxLingerMillis = maxLingerMillis;
+        this.sizer = sizer;
+        this.budget = budget;
+
+        this.workers = Executors.newFixedThreadPool(numWorkers);
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor();
+        this.batchSlots = new Semaphore(numWorkers * 2);
+    }
+
+    /**
+     * Add an image to the next batch.
+     *
+     * @param image   The image to add
+     *
+     * @return A future completed with the outcome for the image
+     *
+     * @throws InterruptedException    If interrupted while waiting for a free worker
+     *                                 or for room in the byte budget
+     * @throws IllegalStateException   If the indexer has been closed
+     */
+    public Future<JSONObject> add(Image image)
+        throws InterruptedException
+    {
+        SettableFuture<JSONObject> future = new SettableFuture<JSONObject>();
+        Batch previous = null;
+        Batch full = null;
+        long size = sizeOf(image);
+        long held = acquireBudget(size);
+
+        synchronized (this.lock)
+        {
+            if (this.closed)
+            {
+                releaseBudget(held);
+                throw new IllegalStateException("BulkIndexer is closed");
+            }
+
+            // Send what is pending first if this image would push it over the byte limit.
+            if (!this.pendingImages.isEmpty() && this.pendingBytes + size > this.maxBatchBytes)
+            {
+                previous = takePending();
+            }
+            this.pendingImages.add(image);
+            this.pendingFutures.add(future);
+            this.pendingBytes += size;
+            this.pendingHeld += held;
+
+            if (this.pendingImages.size() >= batchSizeLimit() ||
+                this.pendingBytes >= this.maxBatchBytes)
+            {
+                full = takePending();
+            }
+            else if (this.lingerFlush == null)
+            {
+                scheduleLinger(this.maxLingerMillis);
+            }
+        }
+        if (previous != null)
+        {
+            dispatch(previous);
+        }
+        if (full != null)
+        {
+            dispatch(full);
+        }
+        return future;
+    }
+
+    /**
+     * Send the images waiting for their batch to fill without waiting further.
+     *
+     * @throws InterruptedException   If interrupted while waiting for a free worker
+     */
+    public void flush()
+        throws InterruptedException
+    {
+        Batch batch;
+        synchronized (this.lock)
+        {
+            batch = takePending();
+        }
+        if (batch != null)
+        {
+            dispatch(batch);
+        }
+    }
+
+    /**
+     * Send any remaining images and wait for all batches to be sent.
+     * <p>
+     * If interrupted while waiting, the workers are stopped and the
+     * interrupt status of the calling thread is set.
+     */
+    public void close()
+    {
+        synchronized (this.lock)
+        {
+            if (this.closed)
+            {
+                return;
+            }
+            this.closed = true;
+        }
+        try
+        {
+            // Flush here rather than on the timer, which never waits for a batch slot.
+            flush();
+            this.lingerTimer.shutdown();
+            this.lingerTimer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            this.workers.shutdown();
+            this.workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            logger.warn("'close' interrupted waiting for batches to be sent");
+            this.lingerTimer.shutdownNow();
+            this.workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the number of images sent to the API so far.
+     *
+     * @return The number of images in batches that have been sent
+     */
+    public long getImagesSent()
+    {
+        return this.imagesSent.get();
+    }
+
+    /**
+     * Get the number of batches sent to the API so far.
+     *
+     * @return The number of batches that have been sent
+     */
+    public long getBatchesSent()
+    {
+        return this.batchesSent.get();
+    }
+
+    /**
+     * Get the number of batches whose request threw an exception.
+     *
+     * @return The number of batches that could not be sent
+     */
+    public long getBatchesFailed()
+    {
+        return this.batchesFailed.get();
+    }
+
+    /**
+     * Get the number of bytes of image data an image counts towards
+     * the batch byte limit.
+     *
+     * @param image   The image to size
+     *
+     * @return The length of the image data, or 0 for images added by URL
+     */
+    protected long sizeOf(Image image)
+    {
+        return image.getDataLength();
+    }
+
+    private int batchSizeLimit()
+    {
+        if (this.sizer == null)
+        {
+            return this.maxBatchSize;
+        }
+        return Math.min(this.maxBatchSize, this.sizer.getBatchSize(BatchSenders.sizingKey(this.sender)));
+    }
+
+    private long acquireBudget(long size)
+        throws InterruptedException
+    {
+        if (this.budget == null)
+        {
+            return 0;
+        }
+        long held = this.budget.tryAcquire(size);
+        if (held < 0)
+        {
+            // The images waiting for their batch to fill hold budget too,
+            // so send them rather than wait for the linger time to pass.
+            flush();
+            held = this.budget.acquire(size);
+        }
+        return held;
+    }
+
+    private void releaseBudget(long held)
+    {
+        if (this.budget != null)
+        {
+            this.budget.release(held);
+        }
+    }
+
+    // Must be called holding the lock.
+    private void scheduleLinger(long delayMillis)
+    {
+        this.lingerFlush = this.lingerTimer.schedule(new Runnable()
+        {
+            public void run()
+            {
+                lingerExpired();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the pending images from the timer thread. The timer must not block,
+     * so when every batch slot is taken the images keep waiting and the flush
+     * is tried again shortly.
+     */
+    private void lingerExpired()
+    {
+        Batch batch = null;
+        synchronized (this.lock)
+        {
+            // After close() starts, it sends the pending images itself.
+            if (this.closed || this.pendingImages.isEmpty())
+            {
+                this.lingerFlush = null;
+                return;
+            }
+            if (!this.batchSlots.tryAcquire())
+            {
+                scheduleLinger(Math.min(LINGER_RETRY_MILLIS, this.maxLingerMillis));
+                return;
+            }
+            batch = takePending();
+        }
+        submit(batch);
+    }
+
+    // Must be called holding the lock.
+    private Batch takePending()
+    {
+        if (this.lingerFlush != null)
+        {
+            this.lingerFlush.cancel(false);
+            this.lingerFlush = null;
+        }
+        if (this.pendingImages.isEmpty())
+        {
+            return null;
+        }
+        Batch batch = new Batch(this.pendingImages, this.pendingFutures, this.pendingBytes, this.pendingHeld);
+
+        this.pendingImages = new ArrayList<Image>();
+        this.pendingFutures = new ArrayList<SettableFuture<JSONObject>>();
+        this.pendingBytes = 0;
+        this.pendingHeld = 0;
+        return batch;
+    }
+
+    private void dispatch(final Batch batch)
+        throws InterruptedException
+    {
+        try
+        {
+            this.batchSlots.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            releaseBudget(batch.held);
+            batch.fail(e);
+            throw e;
+        }
+        submit(batch);
+    }
+
+    // Must be called holding a batch slot, which is released once the batch is sent.
+    private void submit(final Batch batch)
+    {
+        try
+        {
+            this.workers.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        send(batch);
+                    }
+                    finally
+                    {
+                        batchSlots.release();
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            this.batchSlots.release();
+            releaseBudget(batch.held);
+            batch.fail(e);
+            throw e;
+        }
+    }
+
+    private void send(Batch batch)
+    {
+        long start = System.currentTimeMillis();
+        try
+        {
+            JSONObject response = this.sender.send(batch.images);
+
+            if (this.sizer != null)
+            {
+                this.sizer.record(BatchSenders.sizingKey(this.sender), batch.images.size(), batch.bytes,
+                                  System.currentTimeMillis() - start,
+                                  "fail".equals(response.optString("status")));
+            }
+            this.batchesSent.incrementAndGet();
+            this.imagesSent.addAndGet(batch.images.size());
+            batch.complete(this.sender.getMethod(), response);
+        }
+        catch (Exception e)
+        {
+            logger.error("Sending batch of " + batch.images.size() + " images to '" +
+                         this.sender.getMethod() + "' failed: " + e.toString());
+            if (this.sizer != null)
+            {
+                this.sizer.record(BatchSenders.sizingKey(this.sender), batch.images.size(), batch.bytes,
+                                  System.currentTimeMillis() - start, true);
+            }
+            this.batchesFailed.incrementAndGet();
+            batch.fail(e);
+        }
+        finally
+        {
+            releaseBudget(batch.held);
+        }
+    }
+
+    /**
+     * Images taken from the pending batch along with their futures.
+     */
+    private static class Batch
+    {
+        final List<Image> images;
+        final List<SettableFuture<JSONObject>> futures;
+        final long bytes;
+        final long held;
+
+        Batch(List<Image> images, List<SettableFuture<JSONObject>> futures, long bytes, long held)
+        {
+            this.images = images;
+            this.futures = futures;
+            this.bytes = bytes;
+            this.held = held;
+        }
+
+        void complete(String method, JSONObject response)
+        {
+            if ("fail".equals(response.optString("status")))
+            {
+                fail(new TinEyeServiceException("'" + method + "' batch of " + this.images.size() +
+                                                " images failed: " + response.optJSONArray("error")));
+                return;
+            }
+            List<String[]> keys = new ArrayList<String[]>(this.images.size());
+            for (Image image: this.images)
+            {
+                keys.add(ItemOutcomes.keysOf(image));
+            }
+            JSONObject[] outcomes = ItemOutcomes.split(method, response, keys);
+            for (int i = 0; i < outcomes.length; i++)
+            {
+                this.futures.get(i).set(outcomes[i]);
+            }
+        }
+
+        void fail(Throwable cause)
+        {
+            for (SettableFuture<JSONObject> future: this.futures)
+            {
+                future.setException(cause);
+            }
+        }
+    }
+}
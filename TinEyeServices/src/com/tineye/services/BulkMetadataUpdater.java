@@ -0,0 +1,338 @@
+package com.tineye.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Updates the metadata of many collection images, sending only the
+ * entries whose metadata differs from what the collection already has.
+ * <p>
+ * The current metadata is either read with the API <code>get_metadata</code>
+ * method, in batches of <code>batchSize</code> filepaths with up to
+ * <code>parallelism</code> requests at a time, or taken from a local snapshot
+ * such as one written by {@link MetadataExporter}. Changed entries are
+ * collected into full batches and sent with the API <code>update_metadata</code>
+ * method, also up to <code>parallelism</code> requests at a time. A batch
+ * whose <code>get_metadata</code> request fails is counted as failed and not
+ * updated, rather than assumed to have no metadata and rewritten in full.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class BulkMetadataUpdater
+{
+    private static final Logger logger = Logger.getLogger(BulkMetadataUpdater.class);
+
+    private final MetadataRequest request;
+    private final int batchSize;
+    private final int parallelism;
+
+    private final AtomicLong entriesChecked = new AtomicLong();
+    private final AtomicLong entriesChanged = new AtomicLong();
+    private final AtomicLong entriesUpdated = new AtomicLong();
+    private final AtomicLong entriesFailed = new AtomicLong();
+
+    /**
+     * Construct a <code>BulkMetadataUpdater</code> updating metadata in the
+     * collection of <code>request</code>.
+     *
+     * @param request       The API to update metadata in
+     * @param batchSize     Number of entries in each API request
+     * @param parallelism   Maximum number of API requests at the same time
+     *
+     * @throws IllegalArgumentException   If the batch size or parallelism is not positive
+     */
+    public BulkMetadataUpdater(MetadataRequest request, int batchSize, int parallelism)
+    {
+        if (batchSize <= 0 || parallelism <= 0)
+        {
+            throw new IllegalArgumentException("BulkMetadataUpdater batch size and parallelism must be positive");
+        }
+        this.request = request;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Read a metadata snapshot written by {@link MetadataExporter#ndjson(java.io.Writer)}.
+     *
+     * @param in   The newline delimited JSON snapshot
+     *
+     * @return The metadata of each filepath in the snapshot
+     *
+     * @throws IOException   If the snapshot cannot be read
+     */
+    public static Map<String, JSONObject> readSnapshot(Reader in)
+        throws IOException
+    {
+        Map<String, JSONObject> snapshot = new HashMap<String, JSONObject>();
+        BufferedReader reader = new BufferedReader(in);
+
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            if (line.trim().length() == 0)
+            {
+                continue;
+            }
+            JSONObject entry = (JSONObject)JSONSerializer.toJSON(line);
+            snapshot.put(entry.getString("filepath"), entry.optJSONObject("metadata"));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Update the collection so each image in <code>desired</code> has the given
+     * metadata, reading the current metadata from the collection.
+     *
+     * @param desired   The metadata each image should have
+     *
+     * @return The number of entries sent to <code>update_metadata</code>
+     *
+     * @throws TinEyeServiceException   If a <code>get_metadata</code> or
+     *                                  <code>update_metadata</code> request throws an exception
+     * @throws InterruptedException     If interrupted while waiting for a request
+     */
+    public long update(Iterator<MetadataEntry> desired)
+        throws TinEyeServiceException, InterruptedException
+    {
+        return update(desired, null);
+    }
+
+    /**
+     * Update the collection so each image in <code>desired</code> has the given
+     * metadata, comparing against the metadata in <code>snapshot</code>.
+     *
+     * @param desired    The metadata each image should have
+     * @param snapshot   The current metadata of the collection images, or null to
+     *                   read it from the collection. Filepaths missing from the
+     *                   snapshot are always updated.
+     *
+     * @return The number of entries sent to <code>update_metadata</code>
+     *
+     * @throws TinEyeServiceException   If a <code>get_metadata</code> or
+     *                                  <code>update_metadata</code> request throws an exception
+     * @throws InterruptedException     If interrupted while waiting for a request
+     */
+    public long update(Iterator<MetadataEntry> desired, final Map<String, JSONObject> snapshot)
+        throws TinEyeServiceException, InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(this.parallelism);
+        CompletionService<Step> completed = new ExecutorCompletionService<Step>(pool);
+
+        List<MetadataEntry> changed = new ArrayList<MetadataEntry>();
+        long sent = 0;
+        int inFlight = 0;
+
+        try
+        {
+            while (true)
+            {
+                // Queue comparisons while there is room, then send any full update batches.
+                while (inFlight < this.parallelism && desired.hasNext() && changed.size() < this.batchSize)
+                {
+                    final List<MetadataEntry> batch = new ArrayList<MetadataEntry>(this.batchSize);
+                    while (batch.size() < this.batchSize && desired.hasNext())
+                    {
+                        batch.add(desired.next());
+                    }
+                    if (snapshot != null)
+                    {
+                        changed.addAll(diff(batch, snapshot));
+                        continue;
+                    }
+                    completed.submit(new Callable<Step>()
+                    {
+                        public Step call()
+                            throws TinEyeServiceException
+                        {
+                            Map<String, JSONObject> current = fetchCurrent(batch);
+                            return new Step(current == null ? null : diff(batch, current));
+                        }
+                    });
+                    inFlight += 1;
+                }
+                while (inFlight < this.parallelism &&
+                       (changed.size() >= this.batchSize || (!changed.isEmpty() && !desired.hasNext() && inFlight == 0)))
+                {
+                    int end = Math.min(this.batchSize, changed.size());
+                    final List<MetadataEntry> batch = new ArrayList<MetadataEntry>(changed.subList(0, end));
+                    changed.subList(0, end).clear();
+
+                    completed.submit(new Callable<Step>()
+                    {
+                        public Step call()
+                            throws TinEyeServiceException
+                        {
+                            sendUpdate(batch);
+                            return new Step(null);
+                        }
+                    });
+                    inFlight += 1;
+                    sent += batch.size();
+                }
+                if (inFlight == 0 && !desired.hasNext() && changed.isEmpty())
+                {
+                    break;
+                }
+                if (inFlight == 0)
+                {
+                    continue;
+                }
+                Step step = completed.take().get();
+                inFlight -= 1;
+
+                if (step.changed != null)
+                {
+                    changed.addAll(step.changed);
+                }
+            }
+        }
+        catch (ExecutionException e)
+        {
+            logger.error("'update' failed: " + e.getCause().toString());
+            throw new TinEyeServiceException("'update' failed", e.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        return sent;
+    }
+
+    /**
+     * Get the number of entries compared against the current metadata so far.
+     *
+     * @return The number of entries checked
+     */
+    public long getEntriesChecked()
+    {
+        return this.entriesChecked.get();
+    }
+
+    /**
+     * Get the number of entries found to differ from the current metadata so far.
+     *
+     * @return The number of entries changed
+     */
+    public long getEntriesChanged()
+    {
+        return this.entriesChanged.get();
+    }
+
+    /**
+     * Get the number of entries in <code>update_metadata</code> requests that
+     * returned an <code>ok</code> or <code>warn</code> status so far.
+     *
+     * @return The number of entries updated
+     */
+    public long getEntriesUpdated()
+    {
+        return this.entriesUpdated.get();
+    }
+
+    /**
+     * Get the number of entries in <code>get_metadata</code> or <code>update_metadata</code>
+     * requests that returned a <code>fail</code> status so far. Entries whose current
+     * metadata could not be fetched are not updated.
+     *
+     * @return The number of entries that failed to update
+     */
+    public long getEntriesFailed()
+    {
+        return this.entriesFailed.get();
+    }
+
+    private List<MetadataEntry> diff(List<MetadataEntry> batch, Map<String, JSONObject> current)
+    {
+        List<MetadataEntry> changed = new ArrayList<MetadataEntry>();
+        for (MetadataEntry entry: batch)
+        {
+            JSONObject metadata = current.get(entry.getFilepath());
+            if (metadata == null || !metadata.equals(entry.getMetadata()))
+            {
+                changed.add(entry);
+            }
+        }
+        this.entriesChecked.addAndGet(batch.size());
+        this.entriesChanged.addAndGet(changed.size());
+        return changed;
+    }
+
+    private Map<String, JSONObject> fetchCurrent(List<MetadataEntry> batch)
+        throws TinEyeServiceException
+    {
+        String[] filepaths = new String[batch.size()];
+        for (int i = 0; i < batch.size(); i++)
+        {
+            filepaths[i] = batch.get(i).getFilepath();
+        }
+        JSONObject response = this.request.getMetadata(filepaths);
+
+        // A failed lookup says nothing about what exists, so the batch is skipped
+        // rather than rewritten in full.
+        if (response == null || "fail".equals(response.optString("status")))
+        {
+            logger.error("'get_metadata' batch of " + batch.size() + " failed: " +
+                         (response == null ? "no response" : response.optJSONArray("error")));
+            this.entriesFailed.addAndGet(batch.size());
+            return null;
+        }
+        Map<String, JSONObject> current = new HashMap<String, JSONObject>();
+        JSONArray result = response.optJSONArray("result");
+
+        for (int i = 0; result != null && i < result.size(); i++)
+        {
+            JSONObject match = result.getJSONObject(i);
+            current.put(match.optString("filepath"), match.optJSONObject("metadata"));
+        }
+        return current;
+    }
+
+    private void sendUpdate(List<MetadataEntry> batch)
+        throws TinEyeServiceException
+    {
+        JSONObject response = BatchSenders.updateMetadata(this.request).send(batch);
+
+        if ("fail".equals(response.optString("status")))
+        {
+            logger.error("'update_metadata' batch of " + batch.size() + " failed: " +
+                         response.optJSONArray("error"));
+            this.entriesFailed.addAndGet(batch.size());
+            return;
+        }
+        this.entriesUpdated.addAndGet(batch.size());
+    }
+
+    /**
+     * The result of a comparison or update task, with the changed
+     * entries found by a comparison or null for an update.
+     */
+    private static class Step
+    {
+        final List<MetadataEntry> changed;
+
+        Step(List<MetadataEntry> changed)
+        {
+            this.changed = changed;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.tineye.services;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Searches a MatchEngine collection for many query images, running up to
+ * <code>concurrency</code> searches at a time and passing each result to a
+ * {@link Listener} as soon as it is available.
+ * <p>
+ * Queries are read from an <code>Iterator</code> only as fast as they are
+ * searched, so the queries can be streamed from a large job without holding
+ * them all. A search that fails is reported to the listener as a
+ * {@link Result} with the error, and the remaining queries are still searched.
+ * <p>
+ * In ordered mode results are passed to the listener in the order of the
+ * queries; a result that completes early waits for the ones before it, and
+ * counts against <code>concurrency</code> until it is passed on. Otherwise
+ * results are passed on in the order they complete. The listener is never
+ * called by two threads at once.
+ * <p>
+ * Call {@link #close()} when done to stop the worker threads.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class BulkSearch implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(BulkSearch.class);
+
+    private final MatchEngineRequest request;
+    private final int minScore;
+    private final int limit;
+    private final boolean checkHorizontalFlip;
+    private final int concurrency;
+    private final boolean ordered;
+
+    private final ExecutorService workers;
+
+    private final AtomicLong searched = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Receives the result of each search.
+     */
+    public interface Listener
+    {
+        /**
+         * Handle the result of a search. Exceptions thrown are logged and
+         * do not stop the remaining searches.
+         *
+         * @param result   The result of the search
+         */
+        void onResult(Result result);
+    }
+
+    /**
+     * The result of searching for one query image.
+     */
+    public static class Result
+    {
+        private final long index;
+        private final Object query;
+        private final JSONObject response;
+        private final Exception error;
+
+        Result(long index, Object query, JSONObject response, Exception error)
+        {
+            this.index = index;
+            this.query = query;
+            this.response = response;
+            this.error = error;
+        }
+
+        /**
+         * @return Position of the query among the queries searched (starting from 0)
+         */
+        public long getIndex()
+        {
+            return this.index;
+        }
+
+        /**
+         * @return The query, an <code>Image</code> or a filepath or URL <code>String</code>
+         */
+        public Object getQuery()
+        {
+            return this.query;
+        }
+
+        /**
+         * @return The MatchEngine API JSON response, or null if the search threw an exception
+         */
+        public JSONObject getResponse()
+        {
+            return this.response;
+        }
+
+        /**
+         * @return The exception thrown by the search, or null if it returned a response
+         */
+        public Exception getError()
+        {
+            return this.error;
+        }
+
+        /**
+         * @return True if the search threw an exception or returned a <code>fail</code> status
+         */
+        public boolean isFailed()
+        {
+            return this.error != null || this.response == null ||
+                   "fail".equals(this.response.optString("status"));
+        }
+    }
+
+    /**
+     * Construct a <code>BulkSearch</code>.
+     *
+     * @param request               The MatchEngine API to search
+     * @param minScore              Minimum score of results to return
+     * @param limit                 Maximum number of results to return per query
+     * @param checkHorizontalFlip   If true, also search for horizontally flipped images
+     * @param concurrency           Maximum number of searches running, or waiting to be
+     *                              passed on in ordered mode, at a time
+     * @param ordered               If true, pass results on in the order of the queries
+     *
+     * @throws IllegalArgumentException   If <code>limit</code> or <code>concurrency</code> is not positive
+     */
+    public BulkSearch(MatchEngineRequest request, int minScore, int limit, boolean checkHorizontalFlip,
+                      int concurrency, boolean ordered)
+    {
+        if (limit <= 0 || concurrency <= 0)
+        {
+            throw new IllegalArgumentException("BulkSearch limit and concurrency must be positive");
+        }
+        this.request = request;
+        this.minScore = minScore;
+        this.limit = limit;
+        this.checkHorizontalFlip = checkHorizontalFlip;
+        this.concurrency = concurrency;
+        this.ordered = ordered;
+
+        // Daemon threads, so a BulkSearch that is never closed does not keep the JVM running.
+        this.workers = Executors.newFixedThreadPool(concurrency, new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "BulkSearch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Search for each image, using the image data, and wait until every result
+     * has been passed to <code>listener</code>.
+     *
+     * @param images     The images to search for
+     * @param listener   Receives the result of each search
+     *
+     * @throws InterruptedException   If interrupted while waiting; searches already
+     *                                started still complete and are passed on
+     */
+    public void searchImages(Iterator<Image> images, Listener listener)
+        throws InterruptedException
+    {
+        run(images, listener, new Searcher()
+        {
+            public JSONObject search(Object query)
+                throws TinEyeServiceException
+            {
+                return request.searchImage((Image)query, minScore, 0, limit, checkHorizontalFlip);
+            }
+        });
+    }
+
+    /**
+     * Search for each image in the collection, and wait until every result
+     * has been passed to <code>listener</code>.
+     *
+     * @param filepaths   The collection filepaths of the images to search for
+     * @param listener    Receives the result of each search
+     *
+     * @throws InterruptedException   If interrupted while waiting; searches already
+     *                                started still complete and are passed on
+     */
+    public void searchFilepaths(Iterator<String> filepaths, Listener listener)
+        throws InterruptedException
+    {
+        run(filepaths, listener, new Searcher()
+        {
+            public JSONObject search(Object query)
+                throws TinEyeServiceException
+            {
+                return request.searchFilepath((String)query, minScore, 0, limit, checkHorizontalFlip);
+            }
+        });
+    }
+
+    /**
+     * Search for each image URL, and wait until every result has been passed
+     * to <code>listener</code>.
+     *
+     * @param urls       The URLs to the images to search for
+     * @param listener   Receives the result of each search
+     *
+     * @throws InterruptedException   If interrupted while waiting; searches already
+     *                                started still complete and are passed on
+     */
+    public void searchURLs(Iterator<String> urls, Listener listener)
+        throws InterruptedException
+    {
+        run(urls, listener, new Searcher()
+        {
+            public JSONObject search(Object query)
+                throws TinEyeServiceException
+            {
+                return request.searchURL((String)query, minScore, 0, limit, checkHorizontalFlip);
+            }
+        });
+    }
+
+    /**
+     * Stop the worker threads. Searches still running are interrupted.
+     */
+    public void close()
+    {
+        this.workers.shutdownNow();
+    }
+
+    /**
+     * @return Number of queries searched, including failed ones
+     */
+    public long getSearched()
+    {
+        return this.searched.get();
+    }
+
+    /**
+     * @return Number of searches that threw an exception or returned a <code>fail</code> status
+     */
+    public long getFailed()
+    {
+        return this.failed.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "searched=" + this.searched + " failed=" + this.failed + " concurrency=" + this.concurrency +
+               " ordered=" + this.ordered;
+    }
+
+    private void run(Iterator<?> queries, Listener listener, final Searcher searcher)
+        throws InterruptedException
+    {
+        final Semaphore slots = new Semaphore(this.concurrency);
+        final Emitter emitter = new Emitter(listener, slots);
+
+        try
+        {
+            long index = 0;
+            while (queries.hasNext())
+            {
+                final Object query = queries.next();
+                final long queryIndex = index++;
+
+                slots.acquire();
+                try
+                {
+                    this.workers.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            emitter.emit(search(searcher, queryIndex, query));
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e)
+                {
+                    emitter.emit(new Result(queryIndex, query, null, e));
+                }
+            }
+        }
+        finally
+        {
+            // Every slot is returned once the last result has been passed on.
+            slots.acquire(this.concurrency);
+            slots.release(this.concurrency);
+        }
+    }
+
+    private Result search(Searcher searcher, long index, Object query)
+    {
+        Result result;
+        try
+        {
+            result = new Result(index, query, searcher.search(query), null);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Search for '" + query + "' failed: " + e.toString());
+            result = new Result(index, query, null, e);
+        }
+        this.searched.incrementAndGet();
+        if (result.isFailed())
+        {
+            this.failed.incrementAndGet();
+        }
+        return result;
+    }
+
+    private interface Searcher
+    {
+        JSONObject search(Object query)
+            throws TinEyeServiceException;
+    }
+
+    /**
+     * Passes results to the listener one at a time, in query order when ordered,
+     * and returns a slot for each result passed on.
+     */
+    private class Emitter
+    {
+        private final Listener listener;
+        private final Semaphore slots;
+
+        private final TreeMap<Long, Result> waiting = new TreeMap<Long, Result>();
+        private long nextIndex = 0;
+
+        Emitter(Listener listener, Semaphore slots)
+        {
+            this.listener = listener;
+            this.slots = slots;
+        }
+
+        synchronized void emit(Result result)
+        {
+            if (!ordered)
+            {
+                deliver(result);
+                return;
+            }
+            this.waiting.put(result.getIndex(), result);
+            while (!this.waiting.isEmpty() && this.waiting.firstKey() == this.nextIndex)
+            {
+                deliver(this.waiting.remove(this.nextIndex));
+                this.nextIndex++;
+            }
+        }
+
+        private void deliver(Result result)
+        {
+            try
+            {
+                this.listener.onResult(result);
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("BulkSearch listener failed for '" + result.getQuery() + "': " + e.toString());
+            }
+            finally
+            {
+                this.slots.release();
+            }
+        }
+    }
+}
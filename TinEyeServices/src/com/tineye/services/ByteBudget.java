@@ -0,0 +1,151 @@
+package com.tineye.services;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Limits the total number of bytes of image data held by uploads that
+ * have not finished yet.
+ * <p>
+ * Producers {@link #acquire(long)} the size of each image before reading or
+ * queueing it and {@link #release(long)} it once the image has been sent,
+ * blocking while the budget is used up. Waiting producers are served in
+ * arrival order, so a large image is not starved by a stream of small ones.
+ * A request for more than the whole budget waits until the budget is unused
+ * and then takes all of it, so a single oversized image can still be sent.
+ * <p>
+ * One <code>ByteBudget</code> can be shared by several {@link BulkIndexer}s and
+ * {@link DirectoryIngestPipeline}s to bound their combined heap use.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class ByteBudget
+{
+    private final long capacity;
+    private long available;
+
+    // Tickets give waiting producers first-come first-served order.
+    private long nextTicket = 0;
+    private long nowServing = 0;
+
+    // Tickets of producers interrupted while waiting, skipped when their turn comes.
+    private final Set<Long> abandonedTickets = new HashSet<Long>();
+
+    /**
+     * Construct a <code>ByteBudget</code> of <code>capacity</code> bytes.
+     *
+     * @param capacity   Maximum number of bytes acquired at once
+     *
+     * @throws IllegalArgumentException   If the capacity is not positive
+     */
+    public ByteBudget(long capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("ByteBudget capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.available = capacity;
+    }
+
+    /**
+     * Acquire <code>bytes</code> from the budget, waiting until they are available.
+     *
+     * @param bytes   Number of bytes to acquire
+     *
+     * @return The number of bytes actually acquired, to pass to {@link #release(long)}.
+     *         This is less than <code>bytes</code> only when <code>bytes</code> is more
+     *         than the capacity.
+     *
+     * @throws InterruptedException   If interrupted while waiting
+     */
+    public synchronized long acquire(long bytes)
+        throws InterruptedException
+    {
+        long wanted = Math.min(Math.max(bytes, 0), this.capacity);
+        long ticket = this.nextTicket++;
+
+        try
+        {
+            while (ticket != this.nowServing || this.available < wanted)
+            {
+                wait();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Give up our place in line without blocking the producers behind us.
+            this.abandonedTickets.add(ticket);
+            skipAbandoned();
+            notifyAll();
+            throw e;
+        }
+        this.available -= wanted;
+        this.nowServing += 1;
+        skipAbandoned();
+        notifyAll();
+        return wanted;
+    }
+
+    /**
+     * Acquire <code>bytes</code> from the budget if they are available now
+     * and no other producer is waiting.
+     *
+     * @param bytes   Number of bytes to acquire
+     *
+     * @return The number of bytes acquired, or -1 if they are not available
+     */
+    public synchronized long tryAcquire(long bytes)
+    {
+        long wanted = Math.min(Math.max(bytes, 0), this.capacity);
+        if (this.nextTicket != this.nowServing || this.available < wanted)
+        {
+            return -1;
+        }
+        this.available -= wanted;
+        return wanted;
+    }
+
+    /**
+     * Return bytes acquired with {@link #acquire(long)} or {@link #tryAcquire(long)} to the budget.
+     *
+     * @param bytes   The number of bytes returned by the acquire call
+     */
+    public synchronized void release(long bytes)
+    {
+        if (bytes <= 0)
+        {
+            return;
+        }
+        this.available = Math.min(this.capacity, this.available + bytes);
+        notifyAll();
+    }
+
+    /**
+     * Get the size of the budget.
+     *
+     * @return The capacity in bytes
+     */
+    public long getCapacity()
+    {
+        return this.capacity;
+    }
+
+    /**
+     * Get the number of bytes currently acquired.
+     *
+     * @return The bytes in use
+     */
+    public synchronized long getInUse()
+    {
+        return this.capacity - this.available;
+    }
+
+    private void skipAbandoned()
+    {
+        while (this.abandonedTickets.remove(this.nowServing))
+        {
+            this.nowServing += 1;
+        }
+    }
+}
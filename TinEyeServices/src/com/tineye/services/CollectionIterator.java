@@ -0,0 +1,303 @@
+package com.tineye.services;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Iterates over the filepaths of all the images in the hosted image
+ * collection, calling the API <code>list</code> method one page at a time.
+ * <p>
+ * While the caller consumes one page, the next <code>prefetchPages</code>
+ * pages are fetched in the background. The page size adapts to the time
+ * each page takes: it doubles while pages return in under half of
+ * <code>targetPageMillis</code> and halves when they take longer than it.
+ * <p>
+ * The API <code>list</code> method pages by offset, so images added to or
+ * deleted from the collection during the iteration may be skipped or
+ * returned twice.
+ * <p>
+ * Because <code>Iterator</code> methods cannot throw checked exceptions, a
+ * failed <code>list</code> request is reported by {@link #hasNext()} or
+ * {@link #next()} throwing an <code>IllegalStateException</code> whose cause is
+ * the <code>TinEyeServiceException</code>. Call {@link #close()} to stop
+ * prefetching if the iteration is abandoned before the end.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class CollectionIterator implements Iterator<String>, Closeable
+{
+    private static final Logger logger = Logger.getLogger(CollectionIterator.class);
+
+    private final TinEyeServiceRequest request;
+    private final int minPageSize;
+    private final int maxPageSize;
+    private final int prefetchPages;
+    private final long targetPageMillis;
+
+    private final ExecutorService fetcher;
+    private final Deque<Future<Page>> pages = new ArrayDeque<Future<Page>>();
+
+    private int pageSize;
+    private int nextOffset;
+    private boolean endReached = false;
+    private Iterator<String> current = Collections.<String>emptyList().iterator();
+
+    /**
+     * Construct a <code>CollectionIterator</code> over the collection of
+     * <code>request</code>, with pages of 1000 to 10000 filepaths taking
+     * about a second each and two pages fetched ahead.
+     *
+     * @param request   The API whose collection to list
+     */
+    public CollectionIterator(TinEyeServiceRequest request)
+    {
+        this(request, 0, 1000, 1000, 10000, 2, 1000);
+    }
+
+    /**
+     * Construct a <code>CollectionIterator</code> over the collection of
+     * <code>request</code>, starting at <code>offset</code>.
+     *
+     * @param request            The API whose collection to list
+     * @param offset             Offset of the first filepath to return (starting from 0)
+     * @param initialPageSize    Number of filepaths requested in the first page
+     * @param minPageSize        Smallest page size to use
+     * @param maxPageSize        Largest page size to use
+     * @param prefetchPages      Number of pages to fetch ahead of the page being consumed
+     * @param targetPageMillis   Time in milliseconds each page request should take
+     *
+     * @throws IllegalArgumentException   If the page sizes are not ordered or a limit is not positive
+     */
+    public CollectionIterator(TinEyeServiceRequest request, int offset, int initialPageSize,
+                              int minPageSize, int maxPageSize, int prefetchPages, long targetPageMillis)
+    {
+        if (offset < 0 || minPageSize <= 0 || minPageSize > initialPageSize ||
+            initialPageSize > maxPageSize || prefetchPages < 0 || targetPageMillis <= 0)
+        {
+            throw new IllegalArgumentException("Invalid CollectionIterator paging options");
+        }
+        this.request = request;
+        this.nextOffset = offset;
+        this.pageSize = initialPageSize;
+        this.minPageSize = minPageSize;
+        this.maxPageSize = maxPageSize;
+        this.prefetchPages = prefetchPages;
+        this.targetPageMillis = targetPageMillis;
+
+        // Daemon threads, so an iterator abandoned without close() does not keep the JVM running.
+        this.fetcher = Executors.newFixedThreadPool(Math.max(1, prefetchPages), new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "CollectionIterator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        schedulePage();
+        schedulePages();
+    }
+
+    /**
+     * Check if there are more filepaths, waiting for the next page if needed.
+     *
+     * @return True if there are more filepaths in the collection
+     *
+     * @throws IllegalStateException   If the API <code>list</code> request fails
+     */
+    public boolean hasNext()
+    {
+        while (!this.current.hasNext())
+        {
+            if (this.pages.isEmpty() && !this.endReached)
+            {
+                // Nothing was prefetched, so fetch the page needed now.
+                schedulePage();
+            }
+            if (this.pages.isEmpty())
+            {
+                close();
+                return false;
+            }
+            Page page = takePage();
+
+            if (page.filepaths.size() < page.limit)
+            {
+                this.endReached = true;
+                cancelPages();
+            }
+            else
+            {
+                adjustPageSize(page);
+                schedulePages();
+            }
+            this.current = page.filepaths.iterator();
+        }
+        return true;
+    }
+
+    /**
+     * Get the next filepath in the collection.
+     *
+     * @return The next collection image filepath
+     *
+     * @throws NoSuchElementException   If there are no more filepaths
+     * @throws IllegalStateException    If the API <code>list</code> request fails
+     */
+    public String next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        return this.current.next();
+    }
+
+    /**
+     * Not supported, use {@link TinEyeServiceRequest#delete(String[])}.
+     *
+     * @throws UnsupportedOperationException   Always
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException("CollectionIterator does not support remove");
+    }
+
+    /**
+     * Stop fetching pages. Any filepaths not yet returned are discarded.
+     */
+    public void close()
+    {
+        this.endReached = true;
+        cancelPages();
+        this.fetcher.shutdownNow();
+    }
+
+    /**
+     * Get the number of filepaths requested per page for the next pages.
+     *
+     * @return The current page size
+     */
+    public int getPageSize()
+    {
+        return this.pageSize;
+    }
+
+    private void schedulePages()
+    {
+        while (!this.endReached && this.pages.size() < this.prefetchPages)
+        {
+            schedulePage();
+        }
+    }
+
+    private void schedulePage()
+    {
+        final int offset = this.nextOffset;
+        final int limit = this.pageSize;
+
+        this.pages.addLast(this.fetcher.submit(new Callable<Page>()
+        {
+            public Page call()
+                throws TinEyeServiceException
+            {
+                return fetchPage(offset, limit);
+            }
+        }));
+        this.nextOffset += limit;
+    }
+
+    private Page takePage()
+    {
+        Future<Page> future = this.pages.removeFirst();
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            close();
+            throw new IllegalStateException("'list' failed", e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            close();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for 'list'", e);
+        }
+    }
+
+    private void cancelPages()
+    {
+        for (Future<Page> future: this.pages)
+        {
+            future.cancel(true);
+        }
+        this.pages.clear();
+    }
+
+    private void adjustPageSize(Page page)
+    {
+        if (page.elapsedMillis * 2 < this.targetPageMillis)
+        {
+            this.pageSize = Math.min(this.maxPageSize, this.pageSize * 2);
+        }
+        else if (page.elapsedMillis > this.targetPageMillis)
+        {
+            this.pageSize = Math.max(this.minPageSize, this.pageSize / 2);
+        }
+    }
+
+    private Page fetchPage(int offset, int limit)
+        throws TinEyeServiceException
+    {
+        long start = System.currentTimeMillis();
+        JSONObject response = this.request.list(offset, limit);
+
+        if ("fail".equals(response.optString("status")))
+        {
+            logger.error("'list' at offset " + offset + " failed: " + response.optJSONArray("error"));
+            throw new TinEyeServiceException("'list' at offset " + offset + " failed: " +
+                                             response.optJSONArray("error"));
+        }
+        JSONArray result = response.optJSONArray("result");
+        List<String> filepaths = new ArrayList<String>(result == null ? 0 : result.size());
+
+        for (int i = 0; result != null && i < result.size(); i++)
+        {
+            filepaths.add(result.getString(i));
+        }
+        return new Page(limit, filepaths, System.currentTimeMillis() - start);
+    }
+
+    private static class Page
+    {
+        final int limit;
+        final List<String> filepaths;
+        final long elapsedMillis;
+
+        Page(int limit, List<String> filepaths, long elapsedMillis)
+        {
+            this.limit = limit;
+            this.filepaths = filepaths;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+}
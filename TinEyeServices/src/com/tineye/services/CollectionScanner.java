@@ -0,0 +1,478 @@
+package com.tineye.services;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Scans the filepaths of all the images in the hosted image collection
+ * by listing ranges of the collection concurrently.
+ * <p>
+ * The API <code>count</code> method is used to split the collection into
+ * ranges of <code>rangeSize</code> offsets, and up to <code>parallelism</code>
+ * ranges are fetched at a time with the API <code>list</code> method. Each
+ * range is passed to a {@link RangeHandler} on the thread calling
+ * {@link #scan(RangeHandler)}, either as soon as it has been fetched or in
+ * collection order. The last range is listed until the end of the collection
+ * so images added after the count are not missed.
+ * <p>
+ * If a checkpoint file is given, the offset of each range is appended to it
+ * once the handler has returned for that range, and ranges already in the
+ * file are skipped. A scan that was stopped can then be resumed by running
+ * it again with the same checkpoint file and range size; each range is
+ * handled at least once. Each offset is forced to disk before the next range
+ * is handled, and a line left incomplete or unreadable by a crash is ignored,
+ * so its range is handled again.
+ * <p>
+ * As with any offset based listing, images added to or deleted from the
+ * collection during the scan may be skipped or returned twice.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class CollectionScanner
+{
+    private static final Logger logger = Logger.getLogger(CollectionScanner.class);
+
+    private static final String CHECKPOINT_HEADER = "# rangeSize=";
+
+    private final TinEyeServiceRequest request;
+    private final int rangeSize;
+    private final int pageSize;
+    private final int parallelism;
+    private final boolean ordered;
+    private final File checkpointFile;
+
+    private final AtomicInteger rangesTotal = new AtomicInteger();
+    private final AtomicInteger rangesCompleted = new AtomicInteger();
+    private final AtomicLong filepathsScanned = new AtomicLong();
+
+    /**
+     * Receives the filepaths of each range of the collection.
+     */
+    public interface RangeHandler
+    {
+        /**
+         * Handle the filepaths listed for one range of the collection.
+         *
+         * @param offset      Offset in the collection of the first filepath
+         * @param filepaths   The collection image filepaths in the range
+         *
+         * @throws Exception   To stop the scan
+         */
+        void handleRange(int offset, List<String> filepaths)
+            throws Exception;
+    }
+
+    /**
+     * Construct a <code>CollectionScanner</code> for the collection of <code>request</code>.
+     *
+     * @param request          The API whose collection to scan
+     * @param rangeSize        Number of offsets in each range
+     * @param pageSize         Maximum number of filepaths requested by each <code>list</code> call
+     * @param parallelism      Maximum number of ranges fetched at the same time
+     * @param ordered          If true, pass ranges to the handler in collection order,
+     *                         otherwise pass them as soon as they are fetched
+     * @param checkpointFile   File recording the ranges handled, or null to not checkpoint
+     *
+     * @throws IllegalArgumentException   If a size or the parallelism is not positive
+     */
+    public CollectionScanner(TinEyeServiceRequest request, int rangeSize, int pageSize,
+                             int parallelism, boolean ordered, File checkpointFile)
+    {
+        if (rangeSize <= 0 || pageSize <= 0 || parallelism <= 0)
+        {
+            throw new IllegalArgumentException("CollectionScanner sizes and parallelism must be positive");
+        }
+        this.request = request;
+        this.rangeSize = rangeSize;
+        this.pageSize = pageSize;
+        this.parallelism = parallelism;
+        this.ordered = ordered;
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Scan the collection, passing each range to <code>handler</code>.
+     *
+     * @param handler   Receives the filepaths of each range
+     *
+     * @return The number of filepaths passed to the handler
+     *
+     * @throws TinEyeServiceException   If an API request, the handler or the checkpoint file fails
+     * @throws InterruptedException     If interrupted while waiting for a range
+     */
+    public long scan(RangeHandler handler)
+        throws TinEyeServiceException, InterruptedException
+    {
+        int total = count();
+        int numRanges = Math.max(1, (total + this.rangeSize - 1) / this.rangeSize);
+        Set<Integer> done = readCheckpoint();
+
+        final List<Integer> todo = new ArrayList<Integer>();
+        for (int i = 0; i < numRanges; i++)
+        {
+            if (!done.contains(i * this.rangeSize))
+            {
+                todo.add(i);
+            }
+        }
+        this.rangesTotal.set(numRanges);
+        this.rangesCompleted.set(numRanges - todo.size());
+        logger.info("Scanning " + total + " images in " + todo.size() + " of " + numRanges + " ranges");
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.parallelism);
+        CompletionService<Range> completed = new ExecutorCompletionService<Range>(pool);
+        FileOutputStream checkpoint = openCheckpoint();
+
+        // Ranges fetched out of order, waiting for the ranges before them.
+        TreeMap<Integer, Range> waiting = new TreeMap<Integer, Range>();
+        long delivered = 0;
+
+        try
+        {
+            int submitted = 0;
+            int inFlight = 0;
+            int nextToDeliver = 0;
+
+            while (true)
+            {
+                while (submitted < todo.size() && inFlight < this.parallelism &&
+                       (!this.ordered || submitted - nextToDeliver < this.parallelism * 2))
+                {
+                    final int position = submitted;
+                    final int range = todo.get(position);
+                    final boolean last = range == numRanges - 1;
+
+                    completed.submit(new Callable<Range>()
+                    {
+                        public Range call()
+                            throws TinEyeServiceException
+                        {
+                            return fetchRange(position, range * rangeSize, last);
+                        }
+                    });
+                    submitted += 1;
+                    inFlight += 1;
+                }
+                if (inFlight == 0)
+                {
+                    break;
+                }
+                Range range = completed.take().get();
+                inFlight -= 1;
+
+                if (!this.ordered)
+                {
+                    delivered += deliver(range, handler, checkpoint);
+                    continue;
+                }
+                waiting.put(range.position, range);
+                while (!waiting.isEmpty() && waiting.firstKey() == nextToDeliver)
+                {
+                    delivered += deliver(waiting.pollFirstEntry().getValue(), handler, checkpoint);
+                    nextToDeliver += 1;
+                }
+            }
+        }
+        catch (ExecutionException e)
+        {
+            logger.error("'scan' failed: " + e.getCause().toString());
+            throw new TinEyeServiceException("'scan' failed", e.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+            closeCheckpoint(checkpoint);
+        }
+        return delivered;
+    }
+
+    /**
+     * Get the number of ranges the collection was split into.
+     *
+     * @return The number of ranges in the current or last scan
+     */
+    public int getRangesTotal()
+    {
+        return this.rangesTotal.get();
+    }
+
+    /**
+     * Get the number of ranges handled so far, including ranges
+     * skipped because they were in the checkpoint file.
+     *
+     * @return The number of ranges handled in the current or last scan
+     */
+    public int getRangesCompleted()
+    {
+        return this.rangesCompleted.get();
+    }
+
+    /**
+     * Get the number of filepaths passed to the handler so far.
+     *
+     * @return The number of filepaths scanned in the current or last scan
+     */
+    public long getFilepathsScanned()
+    {
+        return this.filepathsScanned.get();
+    }
+
+    private int count()
+        throws TinEyeServiceException
+    {
+        JSONObject response = this.request.count();
+        JSONArray result = response.optJSONArray("result");
+
+        if (result == null || result.isEmpty())
+        {
+            throw new TinEyeServiceException("'count' returned no result: " + response.optJSONArray("error"));
+        }
+        return result.getInt(0);
+    }
+
+    private long deliver(Range range, RangeHandler handler, FileOutputStream checkpoint)
+        throws TinEyeServiceException
+    {
+        try
+        {
+            handler.handleRange(range.offset, range.filepaths);
+        }
+        catch (Exception e)
+        {
+            logger.error("'scan' handler failed at offset " + range.offset + ": " + e.toString());
+            throw new TinEyeServiceException("'scan' handler failed at offset " + range.offset, e);
+        }
+        if (checkpoint != null)
+        {
+            try
+            {
+                checkpoint.write((range.offset + "\n").getBytes("US-ASCII"));
+                checkpoint.getChannel().force(false);
+            }
+            catch (IOException e)
+            {
+                logger.error("Writing scan checkpoint failed: " + e.toString());
+                throw new TinEyeServiceException("Writing scan checkpoint failed", e);
+            }
+        }
+        int completed = this.rangesCompleted.incrementAndGet();
+        this.filepathsScanned.addAndGet(range.filepaths.size());
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Scanned " + completed + " of " + this.rangesTotal.get() + " ranges");
+        }
+        return range.filepaths.size();
+    }
+
+    private Range fetchRange(int position, int start, boolean last)
+        throws TinEyeServiceException
+    {
+        List<String> filepaths = new ArrayList<String>();
+        int end = start + this.rangeSize;
+        int offset = start;
+
+        while (last || offset < end)
+        {
+            int limit = last ? this.pageSize : Math.min(this.pageSize, end - offset);
+            JSONObject response = this.request.list(offset, limit);
+
+            if ("fail".equals(response.optString("status")))
+            {
+                throw new TinEyeServiceException("'list' at offset " + offset + " failed: " +
+                                                 response.optJSONArray("error"));
+            }
+            JSONArray result = response.optJSONArray("result");
+            int size = result == null ? 0 : result.size();
+
+            for (int i = 0; i < size; i++)
+            {
+                filepaths.add(result.getString(i));
+            }
+            offset += size;
+
+            if (size < limit)
+            {
+                break;
+            }
+        }
+        return new Range(position, start, filepaths);
+    }
+
+    private Set<Integer> readCheckpoint()
+        throws TinEyeServiceException
+    {
+        Set<Integer> done = new HashSet<Integer>();
+        if (this.checkpointFile == null || !this.checkpointFile.exists())
+        {
+            return done;
+        }
+        BufferedReader reader = null;
+        try
+        {
+            reader = new BufferedReader(new FileReader(this.checkpointFile));
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = reader.read()) != -1)
+            {
+                if (c != '\n')
+                {
+                    line.append((char)c);
+                    continue;
+                }
+                readCheckpointLine(line.toString().trim(), done);
+                line.setLength(0);
+            }
+            if (line.length() > 0)
+            {
+                // Cut short by a crash, so the range was not recorded as handled.
+                logger.warn("Ignoring incomplete last line of checkpoint '" + this.checkpointFile + "'");
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Reading scan checkpoint failed: " + e.toString());
+            throw new TinEyeServiceException("Reading scan checkpoint failed", e);
+        }
+        finally
+        {
+            closeCheckpoint(reader);
+        }
+        return done;
+    }
+
+    private void readCheckpointLine(String line, Set<Integer> done)
+        throws TinEyeServiceException
+    {
+        try
+        {
+            if (line.startsWith(CHECKPOINT_HEADER))
+            {
+                int checkpointRangeSize = Integer.parseInt(line.substring(CHECKPOINT_HEADER.length()));
+                if (checkpointRangeSize != this.rangeSize)
+                {
+                    throw new TinEyeServiceException("Checkpoint '" + this.checkpointFile +
+                                                     "' was written with range size " + checkpointRangeSize);
+                }
+            }
+            else if (line.length() > 0)
+            {
+                done.add(Integer.parseInt(line));
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            logger.warn("Ignoring unreadable line '" + line + "' of checkpoint '" + this.checkpointFile + "'");
+        }
+    }
+
+    private FileOutputStream openCheckpoint()
+        throws TinEyeServiceException
+    {
+        if (this.checkpointFile == null)
+        {
+            return null;
+        }
+        try
+        {
+            boolean exists = this.checkpointFile.exists();
+            if (exists)
+            {
+                // Drop a line cut short by a crash, so the next offset is not appended to it.
+                truncateIncompleteLine(this.checkpointFile);
+            }
+            FileOutputStream stream = new FileOutputStream(this.checkpointFile, true);
+            if (!exists)
+            {
+                stream.write((CHECKPOINT_HEADER + this.rangeSize + "\n").getBytes("US-ASCII"));
+                stream.getChannel().force(false);
+            }
+            return stream;
+        }
+        catch (IOException e)
+        {
+            logger.error("Opening scan checkpoint failed: " + e.toString());
+            throw new TinEyeServiceException("Opening scan checkpoint failed", e);
+        }
+    }
+
+    private static void truncateIncompleteLine(File file)
+        throws IOException
+    {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try
+        {
+            long end = out.length();
+            while (end > 0)
+            {
+                out.seek(end - 1);
+                if (out.read() == '\n')
+                {
+                    break;
+                }
+                end -= 1;
+            }
+            if (end < out.length())
+            {
+                out.setLength(end);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static void closeCheckpoint(Closeable checkpoint)
+    {
+        if (checkpoint == null)
+        {
+            return;
+        }
+        try
+        {
+            checkpoint.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Closing scan checkpoint failed: " + e.toString());
+        }
+    }
+
+    private static class Range
+    {
+        final int position;
+        final int offset;
+        final List<String> filepaths;
+
+        Range(int position, int offset, List<String> filepaths)
+        {
+            this.position = position;
+            this.offset = offset;
+            this.filepaths = filepaths;
+        }
+    }
+}
@@ -0,0 +1,638 @@
+package com.tineye.services;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+/**
+ * Mirrors a local image directory into a hosted image collection, adding
+ * only new and changed images and deleting images no longer present locally.
+ * <p>
+ * Each file under the root directory is mapped to the collection filepath
+ * made of its path relative to the root, with <code>/</code> separators.
+ * The hosted collection is listed with a {@link CollectionScanner}, and a
+ * manifest file records the size, modification time and SHA-1 content hash
+ * of each file synced. A local file is added when it is not in the hosted
+ * collection, or when its content hash differs from the one in the manifest;
+ * files whose size and modification time match the manifest are not re-read.
+ * Hosted images that are not in the manifest but exist locally are assumed
+ * to be up to date and are recorded in the manifest without being added
+ * again, so the first sync of an existing collection does not re-upload it.
+ * Hosted images with no local file are deleted.
+ * <p>
+ * A directory that cannot be listed fails the sync rather than being
+ * treated as empty, since that would delete its images from the collection.
+ * For the same reason a sync with no local files refuses to empty a hosted
+ * collection that is not empty, unless {@link #setAllowMassDelete(boolean)}
+ * is set.
+ * <p>
+ * Adds and deletes are sent in batches of <code>batchSize</code>, with up to
+ * <code>parallelism</code> requests at a time, and changed files are hashed
+ * on the same worker threads. Only the images the API applied are recorded
+ * in the manifest, so images a <code>warn</code> response rejects are added
+ * again by the next sync. With dry run set, the delta is computed and
+ * returned but nothing is sent and the manifest is not changed.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class CollectionSync
+{
+    private static final Logger logger = Logger.getLogger(CollectionSync.class);
+
+    private final TinEyeServiceRequest request;
+    private final BatchSender<Image> adder;
+    private final File manifestFile;
+    private final int batchSize;
+    private final int parallelism;
+
+    private volatile boolean allowMassDelete = false;
+
+    /**
+     * Construct a <code>CollectionSync</code> for the collection of <code>request</code>.
+     *
+     * @param request        The API whose collection to sync, used to list and delete images
+     * @param adder          Adds batches of images to the collection, usually
+     *                       {@link BatchSenders#addImage(MatchEngineRequest)}. Each image
+     *                       has its collection filepath set.
+     * @param manifestFile   File recording the local files synced so far
+     * @param batchSize      Number of images in each add or delete request
+     * @param parallelism    Maximum number of API requests at the same time
+     *
+     * @throws IllegalArgumentException   If the batch size or parallelism is not positive
+     */
+    public CollectionSync(TinEyeServiceRequest request, BatchSender<Image> adder, File manifestFile,
+                          int batchSize, int parallelism)
+    {
+        if (batchSize <= 0 || parallelism <= 0)
+        {
+            throw new IllegalArgumentException("CollectionSync batch size and parallelism must be positive");
+        }
+        this.request = request;
+        this.adder = adder;
+        this.manifestFile = manifestFile;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Set whether a sync with no local files may delete every image in the hosted collection.
+     *
+     * @param allowMassDelete   True to let an empty local directory empty the collection
+     */
+    public void setAllowMassDelete(boolean allowMassDelete)
+    {
+        this.allowMassDelete = allowMassDelete;
+    }
+
+    /**
+     * Get whether a sync with no local files may delete every image in the hosted collection.
+     *
+     * @return True if an empty local directory may empty the collection
+     */
+    public boolean isAllowMassDelete()
+    {
+        return this.allowMassDelete;
+    }
+
+    /**
+     * Sync every file under <code>rootDir</code> into the hosted collection.
+     *
+     * @param rootDir   The local image directory
+     * @param dryRun    If true, only compute the delta
+     *
+     * @return The delta between the local directory and the hosted collection
+     *
+     * @throws TinEyeServiceException   If <code>rootDir</code> or a directory under it
+     *                                  cannot be listed, if the sync would delete every
+     *                                  hosted image and mass deletes are not allowed, or
+     *                                  if listing the collection, an API request, or
+     *                                  reading or writing the manifest fails
+     * @throws InterruptedException     If interrupted while waiting for a request
+     */
+    public Summary sync(File rootDir, boolean dryRun)
+        throws TinEyeServiceException, InterruptedException
+    {
+        if (!rootDir.isDirectory())
+        {
+            logger.error("'sync' failed: '" + rootDir + "' is not a directory");
+            throw new TinEyeServiceException("'sync' failed: '" + rootDir + "' is not a directory");
+        }
+        Map<String, File> local = new HashMap<String, File>();
+        walk(rootDir, "", local);
+        return sync(local, dryRun);
+    }
+
+    /**
+     * Sync the local files in <code>local</code> into the hosted collection.
+     *
+     * @param local    The local file for each collection filepath that should
+     *                 be in the hosted collection
+     * @param dryRun   If true, only compute the delta
+     *
+     * @return The delta between the local files and the hosted collection
+     *
+     * @throws TinEyeServiceException   If the sync would delete every hosted image and
+     *                                  mass deletes are not allowed, or if listing the
+     *                                  collection, an API request, or reading or writing
+     *                                  the manifest fails
+     * @throws InterruptedException     If interrupted while waiting for a request
+     */
+    public Summary sync(Map<String, File> local, boolean dryRun)
+        throws TinEyeServiceException, InterruptedException
+    {
+        Map<String, ManifestEntry> manifest = readManifest();
+        Set<String> hosted = listHosted();
+
+        Summary summary = new Summary();
+        Map<String, ManifestEntry> pending = new HashMap<String, ManifestEntry>();
+        ExecutorService pool = Executors.newFixedThreadPool(this.parallelism);
+
+        try
+        {
+            // Files whose size or modification time changed are hashed on the pool. New files are
+            // only hashed when added, from the data the worker adding them reads.
+            Map<String, Future<ManifestEntry>> hashing = new HashMap<String, Future<ManifestEntry>>();
+            for (Map.Entry<String, File> entry: local.entrySet())
+            {
+                final String filepath = entry.getKey();
+                final File file = entry.getValue();
+                ManifestEntry known = manifest.get(filepath);
+                boolean current = known != null && known.size == file.length() &&
+                                  known.modified == file.lastModified();
+
+                if (!hosted.contains(filepath))
+                {
+                    summary.toAdd.add(filepath);
+                    if (current)
+                    {
+                        pending.put(filepath, known);
+                    }
+                }
+                else if (current)
+                {
+                    summary.unchanged += 1;
+                }
+                else
+                {
+                    hashing.put(filepath, pool.submit(new Callable<ManifestEntry>()
+                    {
+                        public ManifestEntry call()
+                            throws TinEyeServiceException
+                        {
+                            return entryOf(file);
+                        }
+                    }));
+                }
+            }
+            for (Map.Entry<String, Future<ManifestEntry>> hashed: hashing.entrySet())
+            {
+                String filepath = hashed.getKey();
+                ManifestEntry known = manifest.get(filepath);
+                ManifestEntry current = hashed.getValue().get();
+
+                if (known != null && !known.hash.equals(current.hash))
+                {
+                    summary.toUpdate.add(filepath);
+                    pending.put(filepath, current);
+                }
+                else
+                {
+                    summary.unchanged += 1;
+                    manifest.put(filepath, current);
+                }
+            }
+            for (String filepath: hosted)
+            {
+                if (!local.containsKey(filepath))
+                {
+                    summary.toDelete.add(filepath);
+                }
+            }
+            Collections.sort(summary.toAdd);
+            Collections.sort(summary.toUpdate);
+            Collections.sort(summary.toDelete);
+
+            logger.info("Sync delta: " + summary.toString());
+            if (dryRun)
+            {
+                return summary;
+            }
+            if (local.isEmpty() && !hosted.isEmpty() && !this.allowMassDelete)
+            {
+                logger.error("'sync' refused to delete all " + hosted.size() + " hosted images with no local files");
+                throw new TinEyeServiceException("'sync' refused to delete all " + hosted.size() +
+                                                 " hosted images with no local files");
+            }
+
+            // Files removed locally no longer need a manifest entry.
+            manifest.keySet().retainAll(local.keySet());
+
+            List<String> uploads = new ArrayList<String>(summary.toAdd);
+            uploads.addAll(summary.toUpdate);
+            apply(pool, uploads, local, pending, manifest, summary);
+        }
+        catch (ExecutionException e)
+        {
+            // Only hashing runs before apply(), which handles its own failures.
+            logger.error("'sync' failed: " + e.getCause().toString());
+            throw new TinEyeServiceException("'sync' failed", e.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        writeManifest(manifest);
+        return summary;
+    }
+
+    private void apply(ExecutorService pool, List<String> uploads, final Map<String, File> local,
+                       final Map<String, ManifestEntry> pending, Map<String, ManifestEntry> manifest,
+                       Summary summary)
+        throws TinEyeServiceException, InterruptedException
+    {
+        List<Future<Map<String, ManifestEntry>>> adds = new ArrayList<Future<Map<String, ManifestEntry>>>();
+        List<Future<List<String>>> deletes = new ArrayList<Future<List<String>>>();
+
+        try
+        {
+            for (int i = 0; i < uploads.size(); i += this.batchSize)
+            {
+                final List<String> batch = uploads.subList(i, Math.min(uploads.size(), i + this.batchSize));
+                final Map<String, ManifestEntry> entries = new HashMap<String, ManifestEntry>();
+                for (String filepath: batch)
+                {
+                    if (pending.containsKey(filepath))
+                    {
+                        entries.put(filepath, pending.get(filepath));
+                    }
+                }
+                adds.add(pool.submit(new Callable<Map<String, ManifestEntry>>()
+                {
+                    public Map<String, ManifestEntry> call()
+                        throws Exception
+                    {
+                        List<Image> images = new ArrayList<Image>(batch.size());
+                        List<String[]> itemKeys = new ArrayList<String[]>(batch.size());
+                        for (String filepath: batch)
+                        {
+                            File file = local.get(filepath);
+                            // Taken before reading, so a change while reading is seen next time.
+                            long size = file.length();
+                            long modified = file.lastModified();
+                            Image image = new Image(file.getPath(), filepath);
+                            if (!entries.containsKey(filepath))
+                            {
+                                // Hash the data just read rather than reading the file again.
+                                entries.put(filepath, new ManifestEntry(size, modified, image.getDataHash()));
+                            }
+                            images.add(image);
+                            itemKeys.add(ItemOutcomes.keysOf(image));
+                        }
+
+                        Map<String, ManifestEntry> added = new HashMap<String, ManifestEntry>();
+                        for (String filepath: succeeded("add", adder.send(images), batch, itemKeys))
+                        {
+                            added.put(filepath, entries.get(filepath));
+                        }
+                        return added;
+                    }
+                }));
+            }
+            final BatchSender<String> deleter = BatchSenders.delete(this.request);
+            for (int i = 0; i < summary.toDelete.size(); i += this.batchSize)
+            {
+                final List<String> batch = summary.toDelete.subList(i, Math.min(summary.toDelete.size(),
+                                                                                i + this.batchSize));
+                deletes.add(pool.submit(new Callable<List<String>>()
+                {
+                    public List<String> call()
+                        throws TinEyeServiceException
+                    {
+                        List<String[]> itemKeys = new ArrayList<String[]>(batch.size());
+                        for (String filepath: batch)
+                        {
+                            itemKeys.add(new String[] { filepath });
+                        }
+                        return succeeded("delete", deleter.send(batch), batch, itemKeys);
+                    }
+                }));
+            }
+
+            for (Future<Map<String, ManifestEntry>> add: adds)
+            {
+                Map<String, ManifestEntry> added = add.get();
+                manifest.putAll(added);
+                summary.added += added.size();
+            }
+            for (Future<List<String>> delete: deletes)
+            {
+                summary.deleted += delete.get().size();
+            }
+        }
+        catch (ExecutionException e)
+        {
+            // Keep what was applied before the failure so the next sync does not redo it.
+            writeManifest(manifest);
+            logger.error("'sync' failed: " + e.getCause().toString());
+            throw new TinEyeServiceException("'sync' failed", e.getCause());
+        }
+    }
+
+    /**
+     * Get the items of a batch the API applied. Items a <code>warn</code> response
+     * does not show as applied are left out, so they are sent again by the next sync.
+     */
+    private static List<String> succeeded(String method, JSONObject response, List<String> batch,
+                                          List<String[]> itemKeys)
+    {
+        JSONObject[] outcomes = ItemOutcomes.split(method, response, itemKeys);
+        List<String> succeeded = new ArrayList<String>(batch.size());
+        for (int i = 0; i < outcomes.length; i++)
+        {
+            if (ItemOutcomes.succeeded(outcomes[i]))
+            {
+                succeeded.add(batch.get(i));
+            }
+        }
+        if (succeeded.size() < batch.size())
+        {
+            logger.error("Sync '" + method + "' of " + (batch.size() - succeeded.size()) + " of " + batch.size() +
+                         " images failed: " + (response == null ? "no response" : response.optJSONArray("error")));
+        }
+        return succeeded;
+    }
+
+    private Set<String> listHosted()
+        throws TinEyeServiceException, InterruptedException
+    {
+        final Set<String> hosted = new HashSet<String>();
+        CollectionScanner scanner = new CollectionScanner(this.request, 10000, 1000, this.parallelism, false, null);
+
+        scanner.scan(new CollectionScanner.RangeHandler()
+        {
+            public void handleRange(int offset, List<String> filepaths)
+            {
+                hosted.addAll(filepaths);
+            }
+        });
+        return hosted;
+    }
+
+    private static void walk(File dir, String prefix, Map<String, File> local)
+        throws TinEyeServiceException
+    {
+        File[] children = dir.listFiles();
+        if (children == null)
+        {
+            // Treating it as empty would delete its images from the collection.
+            logger.error("'sync' failed: cannot list directory '" + dir + "'");
+            throw new TinEyeServiceException("'sync' failed: cannot list directory '" + dir + "'");
+        }
+        for (File child: children)
+        {
+            if (child.isDirectory())
+            {
+                walk(child, prefix + child.getName() + "/", local);
+            }
+            else if (child.isFile())
+            {
+                local.put(prefix + child.getName(), child);
+            }
+        }
+    }
+
+    private static ManifestEntry entryOf(File file)
+        throws TinEyeServiceException
+    {
+        // Taken before reading, so a change while hashing is seen next time.
+        long size = file.length();
+        long modified = file.lastModified();
+        return new ManifestEntry(size, modified, hash(file));
+    }
+
+    private static String hash(File file)
+        throws TinEyeServiceException
+    {
+        InputStream in = null;
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[64 * 1024];
+            in = new FileInputStream(file);
+
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                digest.update(buffer, 0, read);
+            }
+            return Hex.encodeHexString(digest.digest());
+        }
+        catch (IOException e)
+        {
+            throw new TinEyeServiceException("Cannot read '" + file + "'", e);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new TinEyeServiceException("SHA-1 is not available", e);
+        }
+        finally
+        {
+            closeQuietly(in);
+        }
+    }
+
+    private Map<String, ManifestEntry> readManifest()
+        throws TinEyeServiceException
+    {
+        Map<String, ManifestEntry> manifest = new HashMap<String, ManifestEntry>();
+        if (!this.manifestFile.exists())
+        {
+            return manifest;
+        }
+        BufferedReader reader = null;
+        try
+        {
+            reader = new BufferedReader(new FileReader(this.manifestFile));
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                // hash, size, modification time, collection filepath
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4)
+                {
+                    manifest.put(fields[3], new ManifestEntry(Long.parseLong(fields[1]),
+                                                              Long.parseLong(fields[2]), fields[0]));
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Reading sync manifest failed: " + e.toString());
+            throw new TinEyeServiceException("Reading sync manifest failed", e);
+        }
+        finally
+        {
+            closeQuietly(reader);
+        }
+        return manifest;
+    }
+
+    private void writeManifest(Map<String, ManifestEntry> manifest)
+        throws TinEyeServiceException
+    {
+        File temp = new File(this.manifestFile.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try
+        {
+            writer = new BufferedWriter(new FileWriter(temp));
+            for (Map.Entry<String, ManifestEntry> entry: manifest.entrySet())
+            {
+                ManifestEntry value = entry.getValue();
+                writer.write(value.hash + "\t" + value.size + "\t" + value.modified + "\t" + entry.getKey() + "\n");
+            }
+            writer.close();
+            writer = null;
+
+            if (!temp.renameTo(this.manifestFile) &&
+                !(this.manifestFile.delete() && temp.renameTo(this.manifestFile)))
+            {
+                throw new IOException("Cannot replace '" + this.manifestFile + "'");
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Writing sync manifest failed: " + e.toString());
+            throw new TinEyeServiceException("Writing sync manifest failed", e);
+        }
+        finally
+        {
+            closeQuietly(writer);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null)
+        {
+            return;
+        }
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close: " + e.toString());
+        }
+    }
+
+    private static class ManifestEntry
+    {
+        final long size;
+        final long modified;
+        final String hash;
+
+        ManifestEntry(long size, long modified, String hash)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * The delta between the local files and the hosted collection,
+     * and how much of it was applied.
+     */
+    public static class Summary
+    {
+        private final List<String> toAdd = new ArrayList<String>();
+        private final List<String> toUpdate = new ArrayList<String>();
+        private final List<String> toDelete = new ArrayList<String>();
+        private int unchanged = 0;
+        private int added = 0;
+        private int deleted = 0;
+
+        /**
+         * @return Collection filepaths of local files missing from the hosted collection
+         */
+        public List<String> getToAdd()
+        {
+            return Collections.unmodifiableList(this.toAdd);
+        }
+
+        /**
+         * @return Collection filepaths of local files whose content changed since the last sync
+         */
+        public List<String> getToUpdate()
+        {
+            return Collections.unmodifiableList(this.toUpdate);
+        }
+
+        /**
+         * @return Collection filepaths of hosted images with no local file
+         */
+        public List<String> getToDelete()
+        {
+            return Collections.unmodifiableList(this.toDelete);
+        }
+
+        /**
+         * @return Number of local files already up to date in the hosted collection
+         */
+        public int getUnchanged()
+        {
+            return this.unchanged;
+        }
+
+        /**
+         * @return Number of new and changed files added, 0 for a dry run
+         */
+        public int getAdded()
+        {
+            return this.added;
+        }
+
+        /**
+         * @return Number of hosted images deleted, 0 for a dry run
+         */
+        public int getDeleted()
+        {
+            return this.deleted;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "new=" + this.toAdd.size() + " changed=" + this.toUpdate.size() +
+                   " removed=" + this.toDelete.size() + " unchanged=" + this.unchanged +
+                   " added=" + this.added + " deleted=" + this.deleted;
+        }
+    }
+}
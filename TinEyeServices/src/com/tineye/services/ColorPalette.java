@@ -0,0 +1,293 @@
+package com.tineye.services;
+
+import java.awt.Color;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * The colors extracted from images by the MulticolorEngine API, stored
+ * compactly as packed RGB ints, double weights and int ranks.
+ * <p>
+ * A palette takes a few bytes per color instead of the JSON objects of the
+ * API response it was made from, and rebuilds that response with the same
+ * colors, weights and ranks. Responses holding anything else, such as extra
+ * keys in a result, are not made into palettes, so they are not cached.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class ColorPalette
+{
+    private final int[] rgb;
+    private final double[] weights;
+    private final int[] ranks;
+    private final boolean upperCaseHex;
+
+    /**
+     * Construct a <code>ColorPalette</code>.
+     *
+     * @param rgb       The colors as <code>0xRRGGBB</code> ints
+     * @param weights   The weight of each color, between 1 and 100
+     * @param ranks     The rank of each color
+     *
+     * @throws IllegalArgumentException   If the arrays have different lengths
+     */
+    public ColorPalette(int[] rgb, double[] weights, int[] ranks)
+    {
+        this(rgb, weights, ranks, false);
+    }
+
+    /**
+     * Construct a <code>ColorPalette</code>.
+     *
+     * @param rgb            The colors as <code>0xRRGGBB</code> ints
+     * @param weights        The weight of each color, between 1 and 100
+     * @param ranks          The rank of each color
+     * @param upperCaseHex   If true, hex colors are given in upper case
+     *
+     * @throws IllegalArgumentException   If the arrays have different lengths
+     */
+    public ColorPalette(int[] rgb, double[] weights, int[] ranks, boolean upperCaseHex)
+    {
+        if (rgb.length != weights.length || rgb.length != ranks.length)
+        {
+            throw new IllegalArgumentException("ColorPalette arrays must have the same length");
+        }
+        this.rgb = rgb;
+        this.weights = weights;
+        this.ranks = ranks;
+        this.upperCaseHex = upperCaseHex;
+    }
+
+    /**
+     * Make a palette from an <code>extract_image_colors</code> API response.
+     *
+     * @param response   The API JSON response, with colors in either format
+     *
+     * @return The palette, or null if the response status is not <code>ok</code>,
+     *         it has errors, or its results are not exactly a color, weight and
+     *         rank that the palette can give back unchanged
+     */
+    public static ColorPalette fromResponse(JSONObject response)
+    {
+        if (response == null || !"ok".equals(response.optString("status")) ||
+            !onlyKeys(response, "status", "method", "error", "result"))
+        {
+            return null;
+        }
+        JSONArray errors = response.optJSONArray("error");
+        JSONArray results = response.optJSONArray("result");
+        if (results == null || (errors != null && !errors.isEmpty()) ||
+            (errors == null && response.has("error")))
+        {
+            return null;
+        }
+
+        int count = results.size();
+        int[] rgb = new int[count];
+        double[] weights = new double[count];
+        int[] ranks = new int[count];
+        boolean lowerCase = false;
+        boolean upperCase = false;
+
+        for (int i = 0; i < count; i++)
+        {
+            JSONObject result = results.optJSONObject(i);
+            if (result == null || !onlyKeys(result, "color", "weight", "rank") ||
+                !(result.opt("weight") instanceof Number) || !(result.opt("rank") instanceof Integer))
+            {
+                return null;
+            }
+            Object color = result.opt("color");
+            if (color instanceof JSONArray && ((JSONArray)color).size() == 3)
+            {
+                JSONArray values = (JSONArray)color;
+                for (int c = 0; c < 3; c++)
+                {
+                    Object value = values.opt(c);
+                    if (!(value instanceof Integer) || (Integer)value < 0 || (Integer)value > 0xff)
+                    {
+                        return null;
+                    }
+                    rgb[i] = rgb[i] << 8 | (Integer)value;
+                }
+            }
+            else if (color instanceof String && ((String)color).matches("[0-9a-fA-F]{6}"))
+            {
+                String hex = (String)color;
+                lowerCase |= !hex.equals(hex.toUpperCase());
+                upperCase |= !hex.equals(hex.toLowerCase());
+                rgb[i] = Integer.parseInt(hex, 16);
+            }
+            else
+            {
+                return null;
+            }
+            weights[i] = ((Number)result.opt("weight")).doubleValue();
+            ranks[i] = (Integer)result.opt("rank");
+        }
+        if (lowerCase && upperCase)
+        {
+            // Mixed case hex colors could not be given back unchanged.
+            return null;
+        }
+        return new ColorPalette(rgb, weights, ranks, upperCase);
+    }
+
+    /**
+     * Build an API JSON response holding this palette.
+     *
+     * @param method        The API method to name in the response
+     * @param colorFormat   Either <code>rgb</code> or <code>hex</code>
+     *
+     * @return The API JSON response
+     */
+    public JSONObject toResponse(String method, String colorFormat)
+    {
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < this.rgb.length; i++)
+        {
+            JSONObject result = new JSONObject();
+            if ("rgb".equals(colorFormat))
+            {
+                JSONArray values = new JSONArray();
+                values.element(this.rgb[i] >> 16 & 0xff);
+                values.element(this.rgb[i] >> 8 & 0xff);
+                values.element(this.rgb[i] & 0xff);
+                result.element("color", values);
+            }
+            else
+            {
+                String hex = Integer.toHexString(0x1000000 | this.rgb[i]).substring(1);
+                result.element("color", this.upperCaseHex ? hex.toUpperCase() : hex);
+            }
+            result.element("rank", this.ranks[i]);
+            result.element("weight", this.weights[i]);
+            results.element(result);
+        }
+
+        JSONObject response = new JSONObject();
+        response.element("status", "ok");
+        response.element("method", method);
+        response.element("error", new JSONArray());
+        response.element("result", results);
+        return response;
+    }
+
+    /**
+     * @return Number of colors in the palette
+     */
+    public int size()
+    {
+        return this.rgb.length;
+    }
+
+    /**
+     * @param i   Index of the color
+     *
+     * @return The color as a <code>0xRRGGBB</code> int
+     */
+    public int getRGB(int i)
+    {
+        return this.rgb[i];
+    }
+
+    /**
+     * @param i   Index of the color
+     *
+     * @return The color
+     */
+    public Color getColor(int i)
+    {
+        return new Color(this.rgb[i]);
+    }
+
+    /**
+     * @param i   Index of the color
+     *
+     * @return How much of the color is in the images, between 1 and 100
+     */
+    public double getWeight(int i)
+    {
+        return this.weights[i];
+    }
+
+    /**
+     * @param i   Index of the color
+     *
+     * @return The rank of the color
+     */
+    public int getRank(int i)
+    {
+        return this.ranks[i];
+    }
+
+    /**
+     * Write the palette in a compact binary form.
+     *
+     * @param out   Where to write the palette
+     *
+     * @throws IOException   If the palette cannot be written
+     */
+    public void writeTo(DataOutput out)
+        throws IOException
+    {
+        out.writeShort(this.rgb.length);
+        out.writeBoolean(this.upperCaseHex);
+        for (int i = 0; i < this.rgb.length; i++)
+        {
+            out.writeInt(this.rgb[i]);
+            out.writeDouble(this.weights[i]);
+            out.writeInt(this.ranks[i]);
+        }
+    }
+
+    /**
+     * Read a palette written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in   Where to read the palette from
+     *
+     * @return The palette
+     *
+     * @throws IOException   If the palette cannot be read
+     */
+    public static ColorPalette readFrom(DataInput in)
+        throws IOException
+    {
+        int count = in.readUnsignedShort();
+        boolean upperCaseHex = in.readBoolean();
+        int[] rgb = new int[count];
+        double[] weights = new double[count];
+        int[] ranks = new int[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            rgb[i] = in.readInt();
+            weights[i] = in.readDouble();
+            ranks[i] = in.readInt();
+        }
+        return new ColorPalette(rgb, weights, ranks, upperCaseHex);
+    }
+
+    private static boolean onlyKeys(JSONObject object, String... allowed)
+    {
+        for (Iterator<?> keys = object.keys(); keys.hasNext(); )
+        {
+            Object key = keys.next();
+            boolean found = false;
+            for (String name: allowed)
+            {
+                found |= name.equals(key);
+            }
+            if (!found)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,240 @@
+package com.tineye.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A cache of the colors extracted from images by
+ * {@link MulticolorEngineRequest#extractImageColorsImage} and
+ * {@link MulticolorEngineRequest#extractImageColorsURL}.
+ * <p>
+ * Color extraction gives the same colors every time for the same images and
+ * parameters, so palettes are kept until evicted, with no expiry. At most
+ * <code>maxEntries</code> palettes are held, evicting the least recently
+ * used. Palettes are stored as {@link ColorPalette}s, a few bytes per color.
+ * <p>
+ * A cache constructed with a file loads the palettes saved in it, if it
+ * exists, and {@link #save()} writes the current palettes back, so a restarted
+ * process does not extract them again.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class ColorPaletteCache
+{
+    private static final Logger logger = Logger.getLogger(ColorPaletteCache.class);
+
+    private static final int FILE_MAGIC = 0x54435043;
+    private static final int FILE_VERSION = 2;
+
+    // Keys are written with writeUTF, which is limited to 65535 bytes.
+    private static final int MAX_SAVED_KEY_LENGTH = 65535 / 3;
+
+    private final int maxEntries;
+    private final File file;
+    private final LinkedHashMap<String, ColorPalette> palettes;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Construct an in-memory <code>ColorPaletteCache</code>.
+     *
+     * @param maxEntries   Maximum number of palettes to hold
+     *
+     * @throws IllegalArgumentException   If <code>maxEntries</code> is not positive
+     */
+    public ColorPaletteCache(int maxEntries)
+    {
+        this(maxEntries, null);
+    }
+
+    /**
+     * Construct a <code>ColorPaletteCache</code> persisted to <code>file</code>,
+     * loading the palettes already saved in it. A file that cannot be read is
+     * logged and ignored.
+     *
+     * @param maxEntries   Maximum number of palettes to hold
+     * @param file         File to load from and {@link #save()} to, or null to keep the cache in memory only
+     *
+     * @throws IllegalArgumentException   If <code>maxEntries</code> is not positive
+     */
+    public ColorPaletteCache(int maxEntries, File file)
+    {
+        if (maxEntries <= 0)
+        {
+            throw new IllegalArgumentException("ColorPaletteCache maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.file = file;
+        this.palettes = new LinkedHashMap<String, ColorPalette>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ColorPalette> eldest)
+            {
+                return size() > ColorPaletteCache.this.maxEntries;
+            }
+        };
+
+        if (file != null && file.exists())
+        {
+            try
+            {
+                load();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Ignoring unreadable color palette cache '" + file + "': " + e.toString());
+                this.palettes.clear();
+            }
+        }
+    }
+
+    /**
+     * Get the palette cached for <code>key</code>.
+     *
+     * @param key   Identifies the images and extraction parameters
+     *
+     * @return The palette, or null if none is cached
+     */
+    public synchronized ColorPalette get(String key)
+    {
+        ColorPalette palette = this.palettes.get(key);
+        if (palette == null)
+        {
+            this.misses++;
+        }
+        else
+        {
+            this.hits++;
+        }
+        return palette;
+    }
+
+    /**
+     * Cache a palette.
+     *
+     * @param key       Identifies the images and extraction parameters
+     * @param palette   The extracted palette
+     */
+    public synchronized void put(String key, ColorPalette palette)
+    {
+        this.palettes.put(key, palette);
+    }
+
+    /**
+     * Write every cached palette to the cache file, replacing its contents.
+     * Does nothing for a cache without a file.
+     *
+     * @throws IOException   If the file cannot be written
+     */
+    public void save()
+        throws IOException
+    {
+        if (this.file == null)
+        {
+            return;
+        }
+        List<Map.Entry<String, ColorPalette>> entries = new ArrayList<Map.Entry<String, ColorPalette>>();
+        synchronized (this)
+        {
+            for (Map.Entry<String, ColorPalette> entry: this.palettes.entrySet())
+            {
+                if (entry.getKey().length() <= MAX_SAVED_KEY_LENGTH)
+                {
+                    entries.add(new AbstractMap.SimpleEntry<String, ColorPalette>(entry));
+                }
+            }
+        }
+
+        // Write a new file and rename it over the old one, so a crash
+        // while saving leaves the previous palettes intact.
+        File tempFile = new File(this.file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try
+        {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, ColorPalette> entry: entries)
+            {
+                out.writeUTF(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!tempFile.renameTo(this.file) && !(this.file.delete() && tempFile.renameTo(this.file)))
+        {
+            throw new IOException("Cannot replace '" + this.file + "'");
+        }
+    }
+
+    /**
+     * @return Number of palettes held
+     */
+    public synchronized int size()
+    {
+        return this.palettes.size();
+    }
+
+    /**
+     * @return Number of lookups that found a palette
+     */
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * @return Number of lookups that found no palette
+     */
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "size=" + this.palettes.size() + " hits=" + this.hits + " misses=" + this.misses;
+    }
+
+    private void load()
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        try
+        {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+            {
+                throw new IOException("Not a color palette cache file");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String key = in.readUTF();
+                this.palettes.put(key, ColorPalette.readFrom(in));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        logger.info("Loaded " + this.palettes.size() + " color palettes from '" + this.file + "'");
+    }
+}
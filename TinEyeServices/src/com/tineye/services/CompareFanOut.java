@@ -0,0 +1,277 @@
+package com.tineye.services;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compares one reference image to many candidate images, running up to
+ * <code>concurrency</code> MatchEngine <code>compare</code> requests at a time.
+ * <p>
+ * The body part holding the reference image data is built once and sent in
+ * every request, and the reference image hash used by the compare cache is
+ * computed once. Each comparison is passed to a {@link Listener} as it
+ * completes, and all of them are returned ranked by score once every
+ * candidate has been compared. A comparison that fails is reported with its
+ * error instead of stopping the others.
+ * <p>
+ * Call {@link #close()} when done to stop the worker threads.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class CompareFanOut implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(CompareFanOut.class);
+
+    private final MatchEngineRequest request;
+    private final ExecutorService workers;
+
+    /**
+     * Receives each comparison as it completes.
+     */
+    public interface Listener
+    {
+        /**
+         * Handle a comparison. Called by the thread that called
+         * {@link CompareFanOut#compare(Image, Image[], int, boolean, Listener)}.
+         *
+         * @param match   The comparison of the reference image to one candidate
+         */
+        void onMatch(Match match);
+    }
+
+    /**
+     * The comparison of the reference image to one candidate image.
+     */
+    public static class Match
+    {
+        private final int index;
+        private final Image candidate;
+        private final double score;
+        private final JSONObject response;
+        private final Exception error;
+
+        Match(int index, Image candidate, JSONObject response, Exception error)
+        {
+            this.index = index;
+            this.candidate = candidate;
+            this.response = response;
+            this.error = error;
+            this.score = scoreOf(response);
+        }
+
+        /**
+         * @return Position of the candidate in the candidates compared (starting from 0)
+         */
+        public int getIndex()
+        {
+            return this.index;
+        }
+
+        /**
+         * @return The candidate image
+         */
+        public Image getCandidate()
+        {
+            return this.candidate;
+        }
+
+        /**
+         * @return Score of the match, or 0 if the images do not match or the comparison failed
+         */
+        public double getScore()
+        {
+            return this.score;
+        }
+
+        /**
+         * @return The MatchEngine API JSON response, or null if the comparison threw an exception
+         */
+        public JSONObject getResponse()
+        {
+            return this.response;
+        }
+
+        /**
+         * @return The exception thrown by the comparison, or null if it returned a response
+         */
+        public Exception getError()
+        {
+            return this.error;
+        }
+
+        /**
+         * @return True if the comparison threw an exception or returned a <code>fail</code> status
+         */
+        public boolean isFailed()
+        {
+            return this.error != null || this.response == null ||
+                   "fail".equals(this.response.optString("status"));
+        }
+
+        private static double scoreOf(JSONObject response)
+        {
+            if (response == null)
+            {
+                return 0;
+            }
+            JSONArray results = response.optJSONArray("result");
+            if (results == null || results.isEmpty())
+            {
+                return 0;
+            }
+            JSONObject result = results.optJSONObject(0);
+            return result == null ? 0 : result.optDouble("score", 0);
+        }
+    }
+
+    // Highest score first, failed comparisons last, then in candidate order.
+    private static final Comparator<Match> BY_RANK = new Comparator<Match>()
+    {
+        public int compare(Match a, Match b)
+        {
+            if (a.isFailed() != b.isFailed())
+            {
+                return a.isFailed() ? 1 : -1;
+            }
+            int byScore = Double.compare(b.getScore(), a.getScore());
+            return byScore != 0 ? byScore : a.getIndex() - b.getIndex();
+        }
+    };
+
+    /**
+     * Construct a <code>CompareFanOut</code>.
+     *
+     * @param request       The MatchEngine API to compare with
+     * @param concurrency   Maximum number of comparisons running at a time
+     *
+     * @throws IllegalArgumentException   If <code>concurrency</code> is not positive
+     */
+    public CompareFanOut(MatchEngineRequest request, int concurrency)
+    {
+        if (concurrency <= 0)
+        {
+            throw new IllegalArgumentException("CompareFanOut concurrency must be positive");
+        }
+        this.request = request;
+        // Daemon threads, so a CompareFanOut that is never closed does not keep the JVM running.
+        this.workers = Executors.newFixedThreadPool(concurrency, new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "CompareFanOut");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Compare <code>reference</code> to each of <code>candidates</code>.
+     *
+     * @param reference             The image compared to every candidate, using its data
+     * @param candidates            The images to compare the reference to, using their data
+     * @param minScore              The minimum score of the results to return
+     * @param checkHorizontalFlip   If true, also check if the candidates are horizontally
+     *                              flipped versions of the reference
+     * @param listener              Receives each comparison as it completes, or null
+     *
+     * @return The comparisons, highest score first, with failed comparisons last
+     *
+     * @throws IllegalArgumentException   If the reference image has no data
+     * @throws InterruptedException       If interrupted while waiting for the comparisons;
+     *                                    the comparisons still running are cancelled
+     */
+    public List<Match> compare(final Image reference, Image[] candidates, final int minScore,
+                               final boolean checkHorizontalFlip, Listener listener)
+        throws InterruptedException
+    {
+        final ImageBody referenceBody = new ImageBody(reference);
+        if (this.request.getCompareCache() != null)
+        {
+            // Hash once here rather than in every worker.
+            reference.getDataHash();
+        }
+
+        CompletionService<Match> completed = new ExecutorCompletionService<Match>(this.workers);
+        List<Future<Match>> futures = new ArrayList<Future<Match>>(candidates.length);
+        for (int i = 0; i < candidates.length; i++)
+        {
+            final int index = i;
+            final Image candidate = candidates[i];
+
+            futures.add(completed.submit(new Callable<Match>()
+            {
+                public Match call()
+                {
+                    try
+                    {
+                        JSONObject response = request.compareImage(reference, referenceBody, candidate,
+                                                                   minScore, checkHorizontalFlip);
+                        return new Match(index, candidate, response, null);
+                    }
+                    catch (Exception e)
+                    {
+                        logger.warn("Compare to candidate " + index + " failed: " + e.toString());
+                        return new Match(index, candidate, null, e);
+                    }
+                }
+            }));
+        }
+
+        List<Match> matches = new ArrayList<Match>(candidates.length);
+        try
+        {
+            for (int i = 0; i < candidates.length; i++)
+            {
+                Match match = completed.take().get();
+                matches.add(match);
+                if (listener != null)
+                {
+                    listener.onMatch(match);
+                }
+            }
+        }
+        catch (ExecutionException e)
+        {
+            // Comparisons catch their own exceptions.
+            throw new IllegalStateException("Compare failed", e.getCause());
+        }
+        finally
+        {
+            if (matches.size() < candidates.length)
+            {
+                for (Future<Match> future: futures)
+                {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        Collections.sort(matches, BY_RANK);
+        return matches;
+    }
+
+    /**
+     * Stop the worker threads. Comparisons still running are interrupted.
+     */
+    public void close()
+    {
+        this.workers.shutdownNow();
+    }
+}
@@ -0,0 +1,609 @@
+package com.tineye.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Adds every file under a directory to the hosted image collection,
+ * overlapping the directory walk, file reads and uploads.
+ * <p>
+ * The pipeline has four stages connected by bounded queues:
+ * <ol>
+ *     <li>Directories are listed concurrently by <code>walkThreads</code> threads.</li>
+ *     <li>Files are read with NIO file channels into pooled buffers by
+ *         <code>readThreads</code> threads, and optionally transformed by
+ *         an {@link ImagePreprocessor}.</li>
+ *     <li>Images are grouped into batches of <code>batchSize</code>.</li>
+ *     <li>Up to <code>uploadThreads</code> batches are sent to the API at a time.</li>
+ * </ol>
+ * When a stage falls behind, the queue in front of it fills up and the stages
+ * before it wait, so the number of images held in memory stays bounded while
+ * both the disk and the network are kept busy. Given a {@link ByteBudget},
+ * readers also wait before reading a file while the image data read but not
+ * yet uploaded would exceed the budget, so memory stays bounded however large
+ * the files are.
+ * <p>
+ * Each file is added with the collection filepath made of its path relative
+ * to the root directory, with <code>/</code> separators. Files that cannot be
+ * read are logged and counted, and do not stop the pipeline. The per-stage
+ * counters and queue depths can be read from another thread while the
+ * pipeline runs.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class DirectoryIngestPipeline
+{
+    private static final Logger logger = Logger.getLogger(DirectoryIngestPipeline.class);
+
+    // Marks the end of a queue.
+    private static final FileTask END_OF_FILES = new FileTask(null, null);
+    private static final ReadImage END_OF_IMAGES = new ReadImage(null, 0);
+
+    // Longest wait for another image before a partial batch is sent.
+    private static final long BATCH_LINGER_MILLIS = 200;
+
+    private final BatchSender<Image> sender;
+    private final ImagePreprocessor preprocessor;
+    private final int batchSize;
+    private final int walkThreads;
+    private final int readThreads;
+    private final int uploadThreads;
+    private final int queueCapacity;
+    private final ByteBudget budget;
+
+    private volatile BlockingQueue<FileTask> fileQueue = null;
+    private volatile BlockingQueue<ReadImage> imageQueue = null;
+    private final AtomicInteger uploadsInFlight = new AtomicInteger();
+
+    private final AtomicLong directoriesWalked = new AtomicLong();
+    private final AtomicLong filesFound = new AtomicLong();
+    private final AtomicLong filesRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong filesFailed = new AtomicLong();
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong imagesSent = new AtomicLong();
+    private final AtomicLong imagesFailed = new AtomicLong();
+
+    /**
+     * Transforms images after they are read and before they are uploaded,
+     * for example to resize them.
+     */
+    public interface ImagePreprocessor
+    {
+        /**
+         * Transform an image.
+         *
+         * @param image   The image as read from disk
+         *
+         * @return The image to upload, or null to skip it. The pipeline releases the
+         *         returned image after uploading it; a preprocessor returning a
+         *         different image should release the one it was given itself.
+         *
+         * @throws Exception   If the image cannot be transformed, which skips it
+         */
+        Image process(Image image)
+            throws Exception;
+    }
+
+    /**
+     * Construct a <code>DirectoryIngestPipeline</code> sending batches with <code>sender</code>.
+     *
+     * @param sender          Adds each batch of images to the API, see {@link BatchSenders}
+     * @param preprocessor    Transforms each image before upload, or null to upload files as read
+     * @param batchSize       Number of images in each API request
+     * @param walkThreads     Number of threads listing directories
+     * @param readThreads     Number of threads reading files
+     * @param uploadThreads   Maximum number of API requests at the same time
+     * @param queueCapacity   Capacity of the queues between stages
+     *
+     * @throws IllegalArgumentException   If a size or thread count is not positive
+     */
+    public DirectoryIngestPipeline(BatchSender<Image> sender, ImagePreprocessor preprocessor, int batchSize,
+                                   int walkThreads, int readThreads, int uploadThreads, int queueCapacity)
+    {
+        this(sender, preprocessor, batchSize, walkThreads, readThreads, uploadThreads, queueCapacity, null);
+    }
+
+    /**
+     * Construct a <code>DirectoryIngestPipeline</code> sending batches with <code>sender</code>,
+     * holding no more image data than <code>budget</code> allows.
+     *
+     * @param sender          Adds each batch of images to the API, see {@link BatchSenders}
+     * @param preprocessor    Transforms each image before upload, or null to upload files as read
+     * @param batchSize       Number of images in each API request
+     * @param walkThreads     Number of threads listing directories
+     * @param readThreads     Number of threads reading files
+     * @param uploadThreads   Maximum number of API requests at the same time
+     * @param queueCapacity   Capacity of the queues between stages
+     * @param budget          Bounds the bytes of files read but not yet uploaded,
+     *                        or null for no bound. May be shared with other pipelines.
+     *
+     * @throws IllegalArgumentException   If a size or thread count is not positive
+     */
+    public DirectoryIngestPipeline(BatchSender<Image> sender, ImagePreprocessor preprocessor, int batchSize,
+                                   int walkThreads, int readThreads, int uploadThreads, int queueCapacity,
+                                   ByteBudget budget)
+    {
+        if (batchSize <= 0 || walkThreads <= 0 || readThreads <= 0 || uploadThreads <= 0 || queueCapacity <= 0)
+        {
+            throw new IllegalArgumentException("DirectoryIngestPipeline sizes and thread counts must be positive");
+        }
+        this.sender = sender;
+        this.preprocessor = preprocessor;
+        this.batchSize = batchSize;
+        this.walkThreads = walkThreads;
+        this.readThreads = readThreads;
+        this.uploadThreads = uploadThreads;
+        this.queueCapacity = queueCapacity;
+        this.budget = budget;
+    }
+
+    /**
+     * Add every file under <code>rootDir</code> to the hosted collection,
+     * returning when all uploads have finished.
+     *
+     * @param rootDir   The directory to ingest
+     *
+     * @return The number of images in batches the API accepted
+     *
+     * @throws InterruptedException   If interrupted while waiting for the pipeline
+     */
+    public long run(File rootDir)
+        throws InterruptedException
+    {
+        this.fileQueue = new LinkedBlockingQueue<FileTask>(this.queueCapacity);
+        this.imageQueue = new LinkedBlockingQueue<ReadImage>(this.queueCapacity);
+        long sentBefore = this.imagesSent.get();
+
+        ExecutorService walkers = Executors.newFixedThreadPool(this.walkThreads);
+        ExecutorService readers = Executors.newFixedThreadPool(this.readThreads);
+        ExecutorService uploaders = Executors.newFixedThreadPool(this.uploadThreads);
+
+        try
+        {
+            AtomicInteger pendingDirectories = new AtomicInteger(1);
+            walk(walkers, rootDir, "", pendingDirectories);
+
+            final AtomicInteger activeReaders = new AtomicInteger(this.readThreads);
+            for (int i = 0; i < this.readThreads; i++)
+            {
+                readers.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        readFiles(activeReaders);
+                    }
+                });
+            }
+            batchAndUpload(uploaders);
+
+            uploaders.shutdown();
+            uploaders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        finally
+        {
+            walkers.shutdownNow();
+            readers.shutdownNow();
+            uploaders.shutdownNow();
+        }
+        return this.imagesSent.get() - sentBefore;
+    }
+
+    /**
+     * @return Number of directories listed
+     */
+    public long getDirectoriesWalked()
+    {
+        return this.directoriesWalked.get();
+    }
+
+    /**
+     * @return Number of files found by the directory walk
+     */
+    public long getFilesFound()
+    {
+        return this.filesFound.get();
+    }
+
+    /**
+     * @return Number of files read and preprocessed
+     */
+    public long getFilesRead()
+    {
+        return this.filesRead.get();
+    }
+
+    /**
+     * @return Number of bytes of image data read
+     */
+    public long getBytesRead()
+    {
+        return this.bytesRead.get();
+    }
+
+    /**
+     * @return Number of files that could not be read or preprocessed
+     */
+    public long getFilesFailed()
+    {
+        return this.filesFailed.get();
+    }
+
+    /**
+     * @return Number of batches sent to the API
+     */
+    public long getBatchesSent()
+    {
+        return this.batchesSent.get();
+    }
+
+    /**
+     * @return Number of images the API accepted, including those in a batch with a
+     *         <code>warn</code> status that no error names
+     */
+    public long getImagesSent()
+    {
+        return this.imagesSent.get();
+    }
+
+    /**
+     * @return Number of images in batches that failed, or named by an error
+     *         in a batch with a <code>warn</code> status
+     */
+    public long getImagesFailed()
+    {
+        return this.imagesFailed.get();
+    }
+
+    /**
+     * @return Number of files found and waiting to be read
+     */
+    public int getFileQueueDepth()
+    {
+        BlockingQueue<FileTask> queue = this.fileQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return Number of images read and waiting to be batched
+     */
+    public int getImageQueueDepth()
+    {
+        BlockingQueue<ReadImage> queue = this.imageQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return Number of batches being sent to the API
+     */
+    public int getUploadsInFlight()
+    {
+        return this.uploadsInFlight.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "walked=" + this.directoriesWalked + " found=" + this.filesFound +
+               " fileQueue=" + getFileQueueDepth() + " read=" + this.filesRead +
+               " readFailed=" + this.filesFailed + " imageQueue=" + getImageQueueDepth() +
+               " uploading=" + getUploadsInFlight() + " sent=" + this.imagesSent +
+               " sendFailed=" + this.imagesFailed;
+    }
+
+    /**
+     * Read an image file into a buffer from the shared {@link BufferPool}.
+     * The buffer is released once the image has been uploaded.
+     *
+     * @param file                 The file to read
+     * @param collectionFilepath   Filepath of the image in the API image collection
+     *
+     * @return The image
+     *
+     * @throws IOException   If the file cannot be read
+     */
+    protected Image readFile(File file, String collectionFilepath)
+        throws IOException
+    {
+        return new Image(file.getPath(), collectionFilepath, null, BufferPool.getShared());
+    }
+
+    private void walk(final ExecutorService walkers, final File dir, final String prefix,
+                      final AtomicInteger pendingDirectories)
+    {
+        walkers.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    File[] children = dir.listFiles();
+                    if (children == null)
+                    {
+                        logger.warn("Cannot list directory '" + dir + "'");
+                        return;
+                    }
+                    directoriesWalked.incrementAndGet();
+
+                    for (File child: children)
+                    {
+                        if (child.isDirectory())
+                        {
+                            pendingDirectories.incrementAndGet();
+                            walk(walkers, child, prefix + child.getName() + "/", pendingDirectories);
+                        }
+                        else if (child.isFile())
+                        {
+                            fileQueue.put(new FileTask(child, prefix + child.getName()));
+                            filesFound.incrementAndGet();
+                        }
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    if (pendingDirectories.decrementAndGet() == 0)
+                    {
+                        endFiles();
+                    }
+                }
+            }
+        });
+    }
+
+    private void endFiles()
+    {
+        try
+        {
+            for (int i = 0; i < this.readThreads; i++)
+            {
+                this.fileQueue.put(END_OF_FILES);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readFiles(AtomicInteger activeReaders)
+    {
+        try
+        {
+            while (true)
+            {
+                FileTask task = this.fileQueue.take();
+                if (task == END_OF_FILES)
+                {
+                    break;
+                }
+                ReadImage image = readImage(task);
+                if (image != null)
+                {
+                    this.imageQueue.put(image);
+                }
+            }
+            if (activeReaders.decrementAndGet() == 0)
+            {
+                this.imageQueue.put(END_OF_IMAGES);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ReadImage readImage(FileTask task)
+        throws InterruptedException
+    {
+        long held = this.budget == null ? 0 : this.budget.acquire(task.file.length());
+        Image read = null;
+        try
+        {
+            read = readFile(task.file, task.collectionFilepath);
+            this.bytesRead.addAndGet(read.getDataLength());
+
+            Image image = read;
+            if (this.preprocessor != null)
+            {
+                image = this.preprocessor.process(read);
+            }
+            this.filesRead.incrementAndGet();
+            if (image == null)
+            {
+                read.release();
+                releaseBudget(held);
+                return null;
+            }
+            return new ReadImage(image, held);
+        }
+        catch (Exception e)
+        {
+            logger.error("Reading '" + task.file + "' failed: " + e.toString());
+            this.filesFailed.incrementAndGet();
+            if (read != null)
+            {
+                read.release();
+            }
+            releaseBudget(held);
+            return null;
+        }
+    }
+
+    private void batchAndUpload(ExecutorService uploaders)
+        throws InterruptedException
+    {
+        Semaphore slots = new Semaphore(this.uploadThreads);
+        List<Image> batch = new ArrayList<Image>(this.batchSize);
+        long batchHeld = 0;
+
+        while (true)
+        {
+            // A partial batch is sent when images stop arriving, which also
+            // happens when the readers are waiting for the budget it holds.
+            ReadImage image = this.imageQueue.poll(BATCH_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+            if (image != null && image != END_OF_IMAGES)
+            {
+                batch.add(image.image);
+                batchHeld += image.held;
+            }
+            boolean waiting = image == null || image == END_OF_IMAGES;
+            if (batch.size() == this.batchSize || (waiting && !batch.isEmpty()))
+            {
+                upload(uploaders, slots, batch, batchHeld);
+                batch = new ArrayList<Image>(this.batchSize);
+                batchHeld = 0;
+            }
+            if (image == END_OF_IMAGES)
+            {
+                break;
+            }
+        }
+    }
+
+    private void upload(ExecutorService uploaders, final Semaphore slots, final List<Image> batch,
+                        final long batchHeld)
+        throws InterruptedException
+    {
+        try
+        {
+            slots.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            releaseBudget(batchHeld);
+            throw e;
+        }
+        this.uploadsInFlight.incrementAndGet();
+
+        uploaders.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    JSONObject response = sender.send(batch);
+                    if ("fail".equals(response.optString("status")))
+                    {
+                        logger.error("Ingest batch of " + batch.size() + " failed: " + response.optJSONArray("error"));
+                        imagesFailed.addAndGet(batch.size());
+                    }
+                    else
+                    {
+                        countOutcomes(batch, response);
+                    }
+                }
+                catch (TinEyeServiceException e)
+                {
+                    logger.error("Ingest batch of " + batch.size() + " failed: " + e.toString());
+                    imagesFailed.addAndGet(batch.size());
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Ingest batch of " + batch.size() + " failed: " + e.toString());
+                    imagesFailed.addAndGet(batch.size());
+                }
+                finally
+                {
+                    batchesSent.incrementAndGet();
+                    uploadsInFlight.decrementAndGet();
+                    slots.release();
+                    for (Image image: batch)
+                    {
+                        image.release();
+                    }
+                    releaseBudget(batchHeld);
+                }
+            }
+        });
+    }
+
+    /**
+     * Count the images of a batch the API accepted, splitting a <code>warn</code>
+     * response so the images its errors name are counted as failed.
+     */
+    private void countOutcomes(List<Image> batch, JSONObject response)
+    {
+        List<String[]> keys = new ArrayList<String[]>(batch.size());
+        for (Image image: batch)
+        {
+            keys.add(ItemOutcomes.keysOf(image));
+        }
+        JSONObject[] outcomes = ItemOutcomes.split(this.sender.getMethod(), response, keys);
+
+        boolean unnamed = false;
+        for (int i = 0; i < outcomes.length; i++)
+        {
+            String status = outcomes[i].optString("status");
+            if ("fail".equals(status))
+            {
+                logger.error("Ingest of '" + batch.get(i).getCollectionFilepath() + "' failed: " +
+                             outcomes[i].optJSONArray("error"));
+                this.imagesFailed.incrementAndGet();
+            }
+            else
+            {
+                unnamed |= "warn".equals(status);
+                this.imagesSent.incrementAndGet();
+            }
+        }
+        if (unnamed)
+        {
+            logger.warn("Ingest batch of " + batch.size() + " had errors naming no image: " +
+                        response.optJSONArray("error"));
+        }
+    }
+
+    private void releaseBudget(long held)
+    {
+        if (this.budget != null)
+        {
+            this.budget.release(held);
+        }
+    }
+
+    private static class FileTask
+    {
+        final File file;
+        final String collectionFilepath;
+
+        FileTask(File file, String collectionFilepath)
+        {
+            this.file = file;
+            this.collectionFilepath = collectionFilepath;
+        }
+    }
+
+    /**
+     * An image read from disk along with the budget bytes it holds.
+     */
+    private static class ReadImage
+    {
+        final Image image;
+        final long held;
+
+        ReadImage(Image image, long held)
+        {
+            this.image = image;
+            this.held = held;
+        }
+    }
+}
@@ -0,0 +1,808 @@
+package com.tineye.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Finds clusters of near-duplicate images in a hosted MatchEngine collection.
+ * <p>
+ * Every filepath in the collection is listed with a {@link CollectionIterator}
+ * and searched for with a {@link BulkSearch}, running up to
+ * <code>concurrency</code> searches at a time. Each match scoring at least
+ * <code>minScore</code> joins the query and the match into the same cluster.
+ * Filepaths are mapped to integer ids as they are seen, and clusters are kept
+ * in a union-find over those ids, so a collection of millions of images
+ * needs a few arrays of ints plus the filepaths themselves.
+ * <p>
+ * Given a checkpoint file, the state is saved as a snapshot in that file plus
+ * a log of the changes since, in the same file name with <code>.log</code>
+ * appended. Each new filepath, each union that joins two clusters, each
+ * search done and each failed search is appended to the log. Records are
+ * collected in memory and handed to a background thread every
+ * <code>checkpointEvery</code> searches, so the searches never wait for the
+ * disk, and the log grows with the changes rather than with the size of the
+ * state. The log is compacted into a new snapshot when a run starts and ends.
+ * A new <code>DuplicateClusterer</code> with the same file resumes from the
+ * snapshot and log. Since the collection is listed by offset, images added to
+ * or deleted from it between runs may be skipped or searched twice.
+ * <p>
+ * A later search can join any two clusters, so clusters are passed to the
+ * {@link Listener} once every filepath has been searched, one at a time
+ * without building a list of all of them. A search that fails is logged and
+ * the run continues; the failed filepaths are saved with the checkpoint and
+ * searched again at the start of the next run.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class DuplicateClusterer
+{
+    private static final Logger logger = Logger.getLogger(DuplicateClusterer.class);
+
+    private static final int CHECKPOINT_MAGIC = 0x54444350;
+    private static final int CHECKPOINT_VERSION = 2;
+    private static final int LOG_MAGIC = 0x5444434c;
+    private static final String CHARSET = "UTF-8";
+
+    // Log record types.
+    private static final int LOG_FILEPATH = 'P';
+    private static final int LOG_UNION = 'U';
+    private static final int LOG_SEARCHED = 'S';
+    private static final int LOG_FAILED = 'F';
+    private static final int LOG_RETRIED = 'R';
+
+    private final MatchEngineRequest request;
+    private final int minScore;
+    private final int limit;
+    private final int concurrency;
+    private final File checkpointFile;
+    private final File logFile;
+    private final int checkpointEvery;
+
+    // Filepaths interned to ids, and the union-find over the ids.
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> filepaths = new ArrayList<String>();
+    private int[] parent = new int[1024];
+    private byte[] rank = new byte[1024];
+
+    // Filepaths whose last search failed, to search again.
+    private final Set<String> failedQueries = new LinkedHashSet<String>();
+
+    private long searched = 0;
+    private long sinceCheckpoint = 0;
+
+    // Snapshot the log applies to; a log left by an older snapshot is ignored.
+    private long epoch = 0;
+
+    // Log records not yet handed to the log writer, while a run is logging.
+    private ByteArrayOutputStream logBuffer = null;
+    private DataOutputStream logRecords = null;
+
+    // Only used by the log writer thread.
+    private FileOutputStream logStream = null;
+    private volatile boolean logFailed = false;
+
+    /**
+     * Receives each cluster found.
+     */
+    public interface Listener
+    {
+        /**
+         * Handle a cluster of near-duplicate images.
+         *
+         * @param filepaths   The collection filepaths of the images in the cluster,
+         *                    at least two of them
+         */
+        void onCluster(List<String> filepaths);
+    }
+
+    /**
+     * Construct a <code>DuplicateClusterer</code>, loading the checkpoint in
+     * <code>checkpointFile</code> if it exists.
+     *
+     * @param request           The MatchEngine API whose collection to cluster
+     * @param minScore          Minimum score of a match for two images to be in the same cluster
+     * @param limit             Maximum number of matches to use for each image
+     * @param concurrency       Maximum number of searches running at a time
+     * @param checkpointFile    File to save checkpoints to and resume from, or null
+     * @param checkpointEvery   Number of searches between writes to the checkpoint log
+     *
+     * @throws IOException                If the checkpoint file exists but cannot be read
+     * @throws IllegalArgumentException   If a limit is not positive
+     */
+    public DuplicateClusterer(MatchEngineRequest request, int minScore, int limit, int concurrency,
+                              File checkpointFile, int checkpointEvery)
+        throws IOException
+    {
+        if (limit <= 0 || concurrency <= 0 || checkpointEvery <= 0)
+        {
+            throw new IllegalArgumentException("DuplicateClusterer limits must be positive");
+        }
+        this.request = request;
+        this.minScore = minScore;
+        this.limit = limit;
+        this.concurrency = concurrency;
+        this.checkpointFile = checkpointFile;
+        this.logFile = checkpointFile == null ? null : new File(checkpointFile.getPath() + ".log");
+        this.checkpointEvery = checkpointEvery;
+
+        if (checkpointFile != null && checkpointFile.exists())
+        {
+            loadCheckpoint();
+            if (this.logFile.exists())
+            {
+                loadLog();
+            }
+            logger.info("Resuming from checkpoint '" + checkpointFile + "' after " + this.searched +
+                        " searches, with " + this.failedQueries.size() + " failed searches to retry");
+        }
+    }
+
+    /**
+     * Search again for the images whose search failed in an earlier run, then
+     * for every image in the collection not yet searched, then pass each
+     * cluster of two or more images to <code>listener</code>.
+     *
+     * @param listener   Receives each cluster
+     *
+     * @throws TinEyeServiceException   If listing the collection fails; the clusters found
+     *                                  so far are saved to the checkpoint file
+     * @throws IOException              If a checkpoint cannot be written
+     * @throws InterruptedException     If interrupted while waiting for searches; the
+     *                                  searches logged so far are kept for the next run
+     */
+    public void run(Listener listener)
+        throws TinEyeServiceException, IOException, InterruptedException
+    {
+        ExecutorService logWriter = openLog();
+        BulkSearch search = new BulkSearch(this.request, this.minScore, this.limit, false,
+                                           this.concurrency, true);
+        CollectionIterator collection = null;
+        Throwable listFailure = null;
+
+        try
+        {
+            List<String> retries = getFailedQueries();
+            if (!retries.isEmpty())
+            {
+                logger.info("Retrying " + retries.size() + " failed searches");
+                search.searchFilepaths(retries.iterator(), new ResultListener(logWriter, true));
+            }
+            collection = new CollectionIterator(this.request, (int)getSearched(), 1000, 1000, 10000, 2, 1000);
+            search.searchFilepaths(collection, new ResultListener(logWriter, false));
+        }
+        catch (IllegalStateException e)
+        {
+            listFailure = e.getCause();
+        }
+        finally
+        {
+            search.close();
+            if (collection != null)
+            {
+                collection.close();
+            }
+            closeLog(logWriter);
+        }
+
+        saveCheckpoint();
+        if (listFailure != null)
+        {
+            logger.error("'list' failed: " + listFailure);
+            throw new TinEyeServiceException("'list' failed", listFailure);
+        }
+        logger.info("Searched " + getSearched() + " images, " + getFailed() + " failed");
+
+        emitClusters(listener);
+    }
+
+    /**
+     * @return Number of images searched, including failed searches and those
+     *         searched before resuming
+     */
+    public synchronized long getSearched()
+    {
+        return this.searched;
+    }
+
+    /**
+     * @return Number of images whose last search failed, to be searched again
+     *         at the start of the next run
+     */
+    public synchronized long getFailed()
+    {
+        return this.failedQueries.size();
+    }
+
+    /**
+     * @return Number of distinct filepaths seen as queries or matches
+     */
+    public synchronized int getFilepathCount()
+    {
+        return this.filepaths.size();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "searched=" + this.searched + " failed=" + this.failedQueries.size() +
+               " filepaths=" + this.filepaths.size();
+    }
+
+    private synchronized List<String> getFailedQueries()
+    {
+        return new ArrayList<String>(this.failedQueries);
+    }
+
+    /**
+     * Apply a search result, and return the log records collected since the
+     * last write once there are <code>checkpointEvery</code> results to write,
+     * or null. The records for a search end with the record that counts it,
+     * so a search cut short by a crash is done again.
+     */
+    private synchronized byte[] addResult(BulkSearch.Result result, boolean retry)
+    {
+        this.sinceCheckpoint++;
+
+        String query = (String)result.getQuery();
+        if (result.isFailed())
+        {
+            logger.warn("Search for '" + query + "' failed: " +
+                        (result.getError() != null ? result.getError().toString()
+                                                   : result.getResponse().optJSONArray("error")));
+            if (this.failedQueries.add(query))
+            {
+                logFilepathRecord(LOG_FAILED, query);
+            }
+        }
+        else
+        {
+            int queryId = internLogged(query);
+
+            JSONArray matches = result.getResponse().optJSONArray("result");
+            for (int i = 0; matches != null && i < matches.size(); i++)
+            {
+                JSONObject match = matches.optJSONObject(i);
+                String filepath = match == null ? null : match.optString("filepath", null);
+                if (filepath != null && !filepath.equals(query))
+                {
+                    int matchId = internLogged(filepath);
+                    if (union(queryId, matchId))
+                    {
+                        logUnionRecord(queryId, matchId);
+                    }
+                }
+            }
+            if (retry && this.failedQueries.remove(query))
+            {
+                logFilepathRecord(LOG_RETRIED, query);
+            }
+        }
+        if (!retry)
+        {
+            this.searched++;
+            logRecord(LOG_SEARCHED);
+        }
+
+        if (this.sinceCheckpoint < this.checkpointEvery)
+        {
+            return null;
+        }
+        this.sinceCheckpoint = 0;
+        return takeLogRecords();
+    }
+
+    private int internLogged(String filepath)
+    {
+        int count = this.filepaths.size();
+        int id = intern(filepath);
+        if (id == count)
+        {
+            logFilepathRecord(LOG_FILEPATH, filepath);
+        }
+        return id;
+    }
+
+    private int intern(String filepath)
+    {
+        Integer id = this.ids.get(filepath);
+        if (id != null)
+        {
+            return id;
+        }
+        int newId = this.filepaths.size();
+        if (newId == this.parent.length)
+        {
+            this.parent = Arrays.copyOf(this.parent, newId * 2);
+            this.rank = Arrays.copyOf(this.rank, newId * 2);
+        }
+        this.parent[newId] = newId;
+        this.rank[newId] = 0;
+        this.ids.put(filepath, newId);
+        this.filepaths.add(filepath);
+        return newId;
+    }
+
+    private int find(int id)
+    {
+        while (this.parent[id] != id)
+        {
+            // Path halving.
+            this.parent[id] = this.parent[this.parent[id]];
+            id = this.parent[id];
+        }
+        return id;
+    }
+
+    private boolean union(int a, int b)
+    {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA == rootB)
+        {
+            return false;
+        }
+        if (this.rank[rootA] < this.rank[rootB])
+        {
+            this.parent[rootA] = rootB;
+        }
+        else if (this.rank[rootA] > this.rank[rootB])
+        {
+            this.parent[rootB] = rootA;
+        }
+        else
+        {
+            this.parent[rootB] = rootA;
+            this.rank[rootA]++;
+        }
+        return true;
+    }
+
+    /**
+     * Pass each cluster to the listener, grouping the ids by root with a
+     * counting sort rather than a list per cluster.
+     */
+    private synchronized void emitClusters(Listener listener)
+    {
+        int count = this.filepaths.size();
+        int[] sizes = new int[count];
+        for (int id = 0; id < count; id++)
+        {
+            sizes[find(id)]++;
+        }
+
+        int[] starts = new int[count + 1];
+        for (int root = 0; root < count; root++)
+        {
+            starts[root + 1] = starts[root] + sizes[root];
+        }
+        int[] next = Arrays.copyOf(starts, count);
+        int[] members = new int[count];
+        for (int id = 0; id < count; id++)
+        {
+            members[next[find(id)]++] = id;
+        }
+
+        long clusters = 0;
+        for (int root = 0; root < count; root++)
+        {
+            if (sizes[root] < 2)
+            {
+                continue;
+            }
+            List<String> cluster = new ArrayList<String>(sizes[root]);
+            for (int i = starts[root]; i < starts[root + 1]; i++)
+            {
+                cluster.add(this.filepaths.get(members[i]));
+            }
+            listener.onCluster(cluster);
+            clusters++;
+        }
+        logger.info("Found " + clusters + " clusters");
+    }
+
+    private void logRecord(int type)
+    {
+        if (this.logRecords == null)
+        {
+            return;
+        }
+        try
+        {
+            this.logRecords.writeByte(type);
+        }
+        catch (IOException e)
+        {
+            // Not thrown by a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void logFilepathRecord(int type, String filepath)
+    {
+        if (this.logRecords == null)
+        {
+            return;
+        }
+        try
+        {
+            this.logRecords.writeByte(type);
+            writeString(this.logRecords, filepath);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void logUnionRecord(int a, int b)
+    {
+        if (this.logRecords == null)
+        {
+            return;
+        }
+        try
+        {
+            this.logRecords.writeByte(LOG_UNION);
+            this.logRecords.writeInt(a);
+            this.logRecords.writeInt(b);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized byte[] takeLogRecords()
+    {
+        if (this.logBuffer == null || this.logBuffer.size() == 0)
+        {
+            return null;
+        }
+        byte[] records = this.logBuffer.toByteArray();
+        this.logBuffer.reset();
+        return records;
+    }
+
+    /**
+     * Compact the state into a new snapshot with an empty log, and start
+     * collecting log records for a background writer thread.
+     *
+     * @return The log writer, or null without a checkpoint file
+     */
+    private ExecutorService openLog()
+        throws IOException
+    {
+        saveCheckpoint();
+        if (this.checkpointFile == null)
+        {
+            return null;
+        }
+        this.logStream = new FileOutputStream(this.logFile, true);
+        this.logFailed = false;
+        synchronized (this)
+        {
+            this.logBuffer = new ByteArrayOutputStream();
+            this.logRecords = new DataOutputStream(this.logBuffer);
+            this.sinceCheckpoint = 0;
+        }
+        return Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "DuplicateClusterer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private void writeLog(ExecutorService logWriter, final byte[] records)
+    {
+        if (logWriter == null || records == null)
+        {
+            return;
+        }
+        try
+        {
+            logWriter.execute(new Runnable()
+            {
+                public void run()
+                {
+                    appendLog(records);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // A result passed on after the run ended; it is searched again on resume.
+        }
+    }
+
+    private void appendLog(byte[] records)
+    {
+        if (this.logFailed)
+        {
+            return;
+        }
+        try
+        {
+            this.logStream.write(records);
+            this.logStream.getChannel().force(false);
+        }
+        catch (IOException e)
+        {
+            // Appending after a partly written record would corrupt the log, so stop here;
+            // the full state is still saved when the run ends.
+            this.logFailed = true;
+            logger.error("Writing checkpoint log '" + this.logFile + "' failed: " + e.toString());
+        }
+    }
+
+    /**
+     * Hand the remaining log records to the log writer, wait for it to
+     * finish, and stop collecting log records.
+     */
+    private void closeLog(ExecutorService logWriter)
+        throws IOException, InterruptedException
+    {
+        if (logWriter == null)
+        {
+            return;
+        }
+        writeLog(logWriter, takeLogRecords());
+        logWriter.shutdown();
+        try
+        {
+            logWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                this.logBuffer = null;
+                this.logRecords = null;
+            }
+            this.logStream.close();
+        }
+    }
+
+    /**
+     * Applies each search result, and hands the log records to the log
+     * writer rather than writing them while other results wait.
+     */
+    private class ResultListener implements BulkSearch.Listener
+    {
+        private final ExecutorService logWriter;
+        private final boolean retry;
+
+        ResultListener(ExecutorService logWriter, boolean retry)
+        {
+            this.logWriter = logWriter;
+            this.retry = retry;
+        }
+
+        public void onResult(BulkSearch.Result result)
+        {
+            writeLog(this.logWriter, addResult(result, this.retry));
+        }
+    }
+
+    /**
+     * Save the state to a temporary file and rename it over the checkpoint
+     * file, so a crash while saving leaves the previous checkpoint intact,
+     * then start an empty log for the new snapshot.
+     */
+    private synchronized void saveCheckpoint()
+        throws IOException
+    {
+        if (this.checkpointFile == null)
+        {
+            return;
+        }
+        long newEpoch = this.epoch + 1;
+        File tempFile = new File(this.checkpointFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        try
+        {
+            int count = this.filepaths.size();
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeLong(newEpoch);
+            out.writeLong(this.searched);
+            out.writeInt(count);
+            for (int id = 0; id < count; id++)
+            {
+                writeString(out, this.filepaths.get(id));
+                out.writeInt(find(id));
+                out.writeByte(this.rank[id]);
+            }
+            out.writeInt(this.failedQueries.size());
+            for (String query: this.failedQueries)
+            {
+                writeString(out, query);
+            }
+            out.flush();
+            stream.getChannel().force(false);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(this.checkpointFile))
+        {
+            // Windows cannot rename over an existing file.
+            if (!this.checkpointFile.delete() || !tempFile.renameTo(this.checkpointFile))
+            {
+                throw new IOException("Could not replace checkpoint '" + this.checkpointFile + "'");
+            }
+        }
+        this.epoch = newEpoch;
+
+        // Until this is written the old log remains, and is ignored for its older epoch.
+        FileOutputStream logOut = new FileOutputStream(this.logFile);
+        try
+        {
+            DataOutputStream header = new DataOutputStream(logOut);
+            header.writeInt(LOG_MAGIC);
+            header.writeLong(newEpoch);
+            header.flush();
+            logOut.getChannel().force(false);
+        }
+        finally
+        {
+            logOut.close();
+        }
+    }
+
+    private void loadCheckpoint()
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.checkpointFile)));
+        try
+        {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION)
+            {
+                throw new IOException("'" + this.checkpointFile + "' is not a duplicate clustering checkpoint");
+            }
+            this.epoch = in.readLong();
+            this.searched = in.readLong();
+            int count = in.readInt();
+            if (count < 0)
+            {
+                throw new IOException("Corrupt checkpoint '" + this.checkpointFile + "'");
+            }
+            this.parent = new int[Math.max(1024, count)];
+            this.rank = new byte[Math.max(1024, count)];
+            for (int id = 0; id < count; id++)
+            {
+                String path = readString(in);
+                int root = in.readInt();
+                if (root < 0 || root >= count)
+                {
+                    throw new IOException("Corrupt checkpoint '" + this.checkpointFile + "'");
+                }
+                this.ids.put(path, id);
+                this.filepaths.add(path);
+                this.parent[id] = root;
+                this.rank[id] = in.readByte();
+            }
+            int failedCount = in.readInt();
+            for (int i = 0; i < failedCount; i++)
+            {
+                this.failedQueries.add(readString(in));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Replay the log written since the snapshot was saved. A record cut short
+     * by a crash ends the replay.
+     */
+    private void loadLog()
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.logFile)));
+        try
+        {
+            if (in.readInt() != LOG_MAGIC || in.readLong() != this.epoch)
+            {
+                logger.warn("Ignoring checkpoint log '" + this.logFile + "' left by an older checkpoint");
+                return;
+            }
+            int type;
+            while ((type = in.read()) != -1)
+            {
+                if (type == LOG_FILEPATH)
+                {
+                    intern(readString(in));
+                }
+                else if (type == LOG_UNION)
+                {
+                    int a = in.readInt();
+                    int b = in.readInt();
+                    if (a < 0 || b < 0 || a >= this.filepaths.size() || b >= this.filepaths.size())
+                    {
+                        throw new IOException("Corrupt checkpoint log '" + this.logFile + "'");
+                    }
+                    union(a, b);
+                }
+                else if (type == LOG_SEARCHED)
+                {
+                    this.searched++;
+                }
+                else if (type == LOG_FAILED)
+                {
+                    this.failedQueries.add(readString(in));
+                }
+                else if (type == LOG_RETRIED)
+                {
+                    this.failedQueries.remove(readString(in));
+                }
+                else
+                {
+                    throw new IOException("Corrupt checkpoint log '" + this.logFile + "'");
+                }
+            }
+        }
+        catch (EOFException e)
+        {
+            logger.warn("Checkpoint log '" + this.logFile + "' ends with an incomplete record");
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+        throws IOException
+    {
+        byte[] bytes = value.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            throw new IOException("Corrupt checkpoint string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
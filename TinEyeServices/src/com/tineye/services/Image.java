@@ -1,17 +1,32 @@
 package com.tineye.services;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import net.sf.json.JSONObject;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 
 
 /**
  * Class representing images used by the TinEye Services APIs.
  * <p>
+ * An image constructed with a {@link BufferPool} holds its data in a pooled
+ * buffer that may be longer than the data, and must be released with
+ * {@link #release()} once sent. Only {@link DirectoryIngestPipeline} creates
+ * such images; every other constructor allocates an exact-size array, so
+ * searches and other requests built from images made by the caller only use
+ * the pool if the caller constructs them with
+ * {@link #Image(String, String, JSONObject, BufferPool)} and releases them.
+ * <p>
  * Copyright (C) 2011-2012 Idee Inc. All rights reserved worldwide.
  */
 public class Image
@@ -22,6 +37,9 @@ public class Image
     private final JSONObject metadata;
 
     private byte[] data;
+    private int dataLength;
+    private BufferPool pool;
+    private String dataHash;
 
     /**
      * Construct an <code>Image</code> by reading the image data at the given filepath.
@@ -82,14 +100,56 @@ public class Image
      */
     public Image(String filepath, String collectionFilepath, JSONObject metadata)
         throws NullPointerException, IOException
+    {
+        this(filepath, collectionFilepath, metadata, null);
+    }
+
+    /**
+     * Construct an <code>Image</code> by reading the image data at the specified filepath
+     * into a buffer from <code>pool</code>, to associate with the JSON metadata and image
+     * collectionFilepath in the API.
+     * <p>
+     * Call {@link #release()} once the image has been sent to return the buffer
+     * to the pool.
+     *
+     * @param filepath             Path on disk to image to be read
+     * @param collectionFilepath   Filepath of the image in the API image collection
+     * @param metadata             Metadata to associate with the image in the API
+     * @param pool                 Pool to take the data buffer from, or null to allocate it
+     *
+     * @throws NullPointerException   If image filepath is null
+     * @throws IOException            If image cannot be read
+     */
+    public Image(String filepath, String collectionFilepath, JSONObject metadata, BufferPool pool)
+        throws NullPointerException, IOException
     {
         this.filepath = filepath;
+        this.pool = pool;
         this.readData();
 
         this.collectionFilepath = collectionFilepath;
         this.metadata = metadata;
     }
 
+    /**
+     * Construct an <code>Image</code> from image data that has already been read
+     * from the specified filepath, to associate with the JSON metadata and image
+     * collectionFilepath in the API.
+     *
+     * @param filepath             Path on disk the image data was read from
+     * @param data                 The image data
+     * @param collectionFilepath   Filepath of the image in the API image collection
+     * @param metadata             Metadata to associate with the image in the API
+     */
+    public Image(String filepath, byte[] data, String collectionFilepath, JSONObject metadata)
+    {
+        this.filepath = filepath;
+        this.data = data;
+        this.dataLength = data == null ? 0 : data.length;
+        this.collectionFilepath = collectionFilepath;
+        this.metadata = metadata;
+    }
+
     /**
      * Construct an <code>Image</code> with the specified image URL.
      *
@@ -183,10 +243,82 @@ public class Image
 
     /**
      * Get the Image data if set.
+     * <p>
+     * <b>For an image read into a pooled buffer, every call allocates and
+     * returns a new copy of the data</b>, since the buffer is longer than the
+     * data and is reused once the image is released. Call it once and keep the
+     * result rather than calling it repeatedly, and use
+     * {@link #getDataLength()} when only the size is needed. For other images
+     * the data array itself is returned.
      *
      * @return The Image data or null if not set
      */
     public byte[] getData()
+    {
+        if (this.data != null && this.data.length != this.dataLength)
+        {
+            return Arrays.copyOf(this.data, this.dataLength);
+        }
+        return this.data;
+    }
+
+    /**
+     * Get the length of the Image data.
+     *
+     * @return The number of bytes of image data, or 0 if not set
+     */
+    public int getDataLength()
+    {
+        return this.data == null ? 0 : this.dataLength;
+    }
+
+    /**
+     * Get the SHA-1 hash of the Image data, used to recognize repeated images.
+     *
+     * @return The hex encoded hash of the data, or null if the data is not set
+     */
+    public String getDataHash()
+    {
+        if (this.dataHash == null && this.data != null)
+        {
+            try
+            {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                digest.update(this.data, 0, this.dataLength);
+                this.dataHash = Hex.encodeHexString(digest.digest());
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                // Every Java platform is required to support SHA-1.
+                throw new IllegalStateException("SHA-1 is not available", e);
+            }
+        }
+        return this.dataHash;
+    }
+
+    /**
+     * Return the Image data buffer to the pool it was taken from.
+     * The Image has no data afterwards. Does nothing for an image
+     * that was not read into a pooled buffer.
+     */
+    public void release()
+    {
+        if (this.pool != null && this.data != null)
+        {
+            byte[] buffer = this.data;
+            this.data = null;
+            this.dataLength = 0;
+            this.dataHash = null;
+            this.pool.release(buffer);
+        }
+    }
+
+    /**
+     * Get the buffer holding the Image data, which may be longer than the data.
+     *
+     * @return The data buffer, of which the first {@link #getDataLength()} bytes are the data
+     */
+    byte[] getDataBuffer()
     {
         return this.data;
     }
@@ -201,6 +333,37 @@ public class Image
     protected void readData()
         throws NullPointerException, IOException
     {
-        this.data = FileUtils.readFileToByteArray(new File(this.filepath));
+        if (this.pool == null)
+        {
+            this.data = FileUtils.readFileToByteArray(new File(this.filepath));
+            this.dataLength = this.data.length;
+            return;
+        }
+
+        FileInputStream in = new FileInputStream(new File(this.filepath));
+        byte[] buffer = null;
+        try
+        {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException("'" + this.filepath + "' is too large to read");
+            }
+            buffer = this.pool.acquire((int)size);
+            ByteBuffer target = ByteBuffer.wrap(buffer, 0, (int)size);
+            while (target.hasRemaining() && channel.read(target) >= 0)
+            {
+                // Keep reading until the data is complete or the file ends.
+            }
+            this.data = buffer;
+            this.dataLength = target.position();
+            buffer = null;
+        }
+        finally
+        {
+            this.pool.release(buffer);
+            in.close();
+        }
     }
 }
@@ -0,0 +1,69 @@
+package com.tineye.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+/**
+ * Multipart body part holding the data of an {@link Image}.
+ * <p>
+ * Unlike <code>ByteArrayBody</code>, only the image data is written when
+ * the data is held in a pooled buffer longer than the image, so images read
+ * with a {@link BufferPool} can be sent without copying their data.
+ * An <code>ImageBody</code> never changes once constructed, so the same
+ * one can be sent in many requests, including concurrent ones.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+class ImageBody extends AbstractContentBody
+{
+    private final byte[] buffer;
+    private final int length;
+    private final String filename;
+
+    /**
+     * Construct an <code>ImageBody</code> with the data of <code>image</code>.
+     *
+     * @param image   The image to send
+     *
+     * @throws IllegalArgumentException   If the image has no data
+     */
+    ImageBody(Image image)
+    {
+        super("application/octet-stream");
+        if (image.getDataBuffer() == null)
+        {
+            throw new IllegalArgumentException("Image data may not be null");
+        }
+        this.buffer = image.getDataBuffer();
+        this.length = image.getDataLength();
+        this.filename = image.getFilepath();
+    }
+
+    public String getFilename()
+    {
+        return this.filename;
+    }
+
+    public void writeTo(OutputStream out)
+        throws IOException
+    {
+        out.write(this.buffer, 0, this.length);
+    }
+
+    public String getCharset()
+    {
+        return null;
+    }
+
+    public String getTransferEncoding()
+    {
+        return "binary";
+    }
+
+    public long getContentLength()
+    {
+        return this.length;
+    }
+}
@@ -0,0 +1,318 @@
+package com.tineye.services;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only journal of the batches submitted to the API and their
+ * outcomes, used to resume an interrupted ingest.
+ * <p>
+ * Each submitted item is recorded on a line <code>S &lt;batch&gt; &lt;key&gt;</code>
+ * and each batch outcome on a line <code>D &lt;batch&gt; ok|fail</code>, with the
+ * fields separated by tabs. An item the API rejected in a batch that was
+ * otherwise accepted is recorded on a line <code>F &lt;batch&gt; &lt;key&gt;</code>
+ * before the batch outcome. Records are buffered and forced to disk together
+ * once <code>syncEveryRecords</code> records have been written or
+ * <code>syncIntervalMillis</code> milliseconds have passed since the last
+ * sync, so the journal costs one <code>fsync</code> per group of records
+ * rather than one per record.
+ * <p>
+ * When a journal is reopened, the keys of every batch with a durable
+ * <code>ok</code> outcome, except the items recorded as rejected, are
+ * available from {@link #getCompletedKeys()}.
+ * Batches whose outcome was not synced before a crash are treated as not
+ * completed and are sent again. A line left incomplete by a crash is ignored.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class IngestJournal implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(IngestJournal.class);
+
+    private static final String CHARSET = "UTF-8";
+
+    private final int syncEveryRecords;
+    private final long syncIntervalMillis;
+
+    private final FileOutputStream stream;
+    private final Writer writer;
+    private final Set<String> completedKeys;
+
+    private long nextBatchId;
+    private int unsyncedRecords = 0;
+    private long lastSyncMillis = System.currentTimeMillis();
+
+    /**
+     * Open the journal at <code>file</code>, creating it if it does not exist.
+     *
+     * @param file                 The journal file
+     * @param syncEveryRecords     Number of records to write between syncs
+     * @param syncIntervalMillis   Longest time in milliseconds between syncs while records are written
+     *
+     * @throws IOException   If the journal cannot be read or opened for writing
+     */
+    public IngestJournal(File file, int syncEveryRecords, long syncIntervalMillis)
+        throws IOException
+    {
+        this.syncEveryRecords = syncEveryRecords;
+        this.syncIntervalMillis = syncIntervalMillis;
+
+        long[] maxBatchId = new long[] { -1 };
+        this.completedKeys = file.exists() ? replay(file, maxBatchId) : new HashSet<String>();
+        this.nextBatchId = maxBatchId[0] + 1;
+
+        boolean needsNewline = endsWithPartialLine(file);
+        this.stream = new FileOutputStream(file, true);
+        this.writer = new BufferedWriter(new OutputStreamWriter(this.stream, CHARSET));
+
+        if (needsNewline)
+        {
+            this.writer.write('\n');
+        }
+        logger.info("Opened ingest journal '" + file + "' with " + this.completedKeys.size() + " completed items");
+    }
+
+    /**
+     * Get the keys of the items in batches recorded as completed when the
+     * journal was opened.
+     *
+     * @return The completed item keys
+     */
+    public Set<String> getCompletedKeys()
+    {
+        return Collections.unmodifiableSet(this.completedKeys);
+    }
+
+    /**
+     * Record the submission of a batch of items.
+     *
+     * @param keys   The keys of the items in the batch
+     *
+     * @return The id of the batch, to pass to {@link #completed(long, boolean, List)}
+     *
+     * @throws IOException   If the records cannot be written
+     */
+    public synchronized long submitted(List<String> keys)
+        throws IOException
+    {
+        long batchId = this.nextBatchId++;
+        for (String key: keys)
+        {
+            this.writer.write("S\t" + batchId + "\t" + escape(key) + "\n");
+        }
+        recordsWritten(keys.size());
+        return batchId;
+    }
+
+    /**
+     * Record the outcome of a batch.
+     *
+     * @param batchId   The id returned by {@link #submitted(List)}
+     * @param ok        True if the API accepted the batch
+     *
+     * @throws IOException   If the record cannot be written
+     */
+    public synchronized void completed(long batchId, boolean ok)
+        throws IOException
+    {
+        completed(batchId, ok, Collections.<String>emptyList());
+    }
+
+    /**
+     * Record the outcome of a batch the API accepted only in part.
+     *
+     * @param batchId      The id returned by {@link #submitted(List)}
+     * @param ok           True if the API accepted the batch
+     * @param failedKeys   The keys of the items in the batch the API rejected,
+     *                     which are not completed even if the batch is
+     *
+     * @throws IOException   If the records cannot be written
+     */
+    public synchronized void completed(long batchId, boolean ok, List<String> failedKeys)
+        throws IOException
+    {
+        for (String key: failedKeys)
+        {
+            this.writer.write("F\t" + batchId + "\t" + escape(key) + "\n");
+        }
+        this.writer.write("D\t" + batchId + "\t" + (ok ? "ok" : "fail") + "\n");
+        recordsWritten(failedKeys.size() + 1);
+    }
+
+    /**
+     * Force all the records written so far to disk.
+     *
+     * @throws IOException   If the records cannot be written
+     */
+    public synchronized void sync()
+        throws IOException
+    {
+        this.writer.flush();
+        this.stream.getChannel().force(false);
+        this.unsyncedRecords = 0;
+        this.lastSyncMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Sync and close the journal.
+     *
+     * @throws IOException   If the records cannot be written
+     */
+    public synchronized void close()
+        throws IOException
+    {
+        try
+        {
+            sync();
+        }
+        finally
+        {
+            this.writer.close();
+        }
+    }
+
+    private void recordsWritten(int records)
+        throws IOException
+    {
+        this.unsyncedRecords += records;
+        if (this.unsyncedRecords >= this.syncEveryRecords ||
+            System.currentTimeMillis() - this.lastSyncMillis >= this.syncIntervalMillis)
+        {
+            sync();
+        }
+    }
+
+    private static Set<String> replay(File file, long[] maxBatchId)
+        throws IOException
+    {
+        Map<Long, List<String>> submitted = new HashMap<Long, List<String>>();
+        Map<Long, Set<String>> failed = new HashMap<Long, Set<String>>();
+        Set<String> completed = new HashSet<String>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t", 3);
+                if (fields.length != 3)
+                {
+                    continue;
+                }
+                long batchId;
+                try
+                {
+                    batchId = Long.parseLong(fields[1]);
+                }
+                catch (NumberFormatException e)
+                {
+                    continue;
+                }
+                maxBatchId[0] = Math.max(maxBatchId[0], batchId);
+
+                if ("S".equals(fields[0]))
+                {
+                    List<String> keys = submitted.get(batchId);
+                    if (keys == null)
+                    {
+                        keys = new ArrayList<String>();
+                        submitted.put(batchId, keys);
+                    }
+                    keys.add(unescape(fields[2]));
+                }
+                else if ("F".equals(fields[0]))
+                {
+                    Set<String> keys = failed.get(batchId);
+                    if (keys == null)
+                    {
+                        keys = new HashSet<String>();
+                        failed.put(batchId, keys);
+                    }
+                    keys.add(unescape(fields[2]));
+                }
+                else if ("D".equals(fields[0]))
+                {
+                    List<String> keys = submitted.remove(batchId);
+                    Set<String> failedKeys = failed.remove(batchId);
+                    if (keys != null && "ok".equals(fields[2]))
+                    {
+                        for (String key: keys)
+                        {
+                            if (failedKeys == null || !failedKeys.contains(key))
+                            {
+                                completed.add(key);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return completed;
+    }
+
+    private static boolean endsWithPartialLine(File file)
+        throws IOException
+    {
+        if (!file.exists() || file.length() == 0)
+        {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            raf.seek(raf.length() - 1);
+            return raf.read() != '\n';
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static String escape(String key)
+    {
+        return key.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String key)
+    {
+        StringBuilder out = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++)
+        {
+            char c = key.charAt(i);
+            if (c == '\\' && i + 1 < key.length())
+            {
+                char next = key.charAt(++i);
+                out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            }
+            else
+            {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
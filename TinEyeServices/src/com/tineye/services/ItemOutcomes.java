@@ -0,0 +1,242 @@
+package com.tineye.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Splits the API JSON response for a batch into an outcome for each item
+ * in the batch.
+ * <p>
+ * When the batch status is <code>warn</code>, each error message is given to
+ * the items it names by one of their keys, such as a collection filepath or
+ * URL. A key names an item only where it stands as a whole token in the
+ * message, delimited by quotes, whitespace or the ends of the message, so
+ * <code>a/1.jpg</code> does not match an error about <code>a/1.jpg.bak</code>
+ * and <code>http://x/1</code> does not match <code>http://x/10</code>. An
+ * item named by an error has a <code>fail</code> outcome with those errors.
+ * If some errors name no item, the items not named by any error have a
+ * <code>warn</code> outcome with those errors, since any of them may be the
+ * one that failed; otherwise they have an <code>ok</code> outcome. A batch
+ * with an <code>ok</code> or <code>fail</code> status gives every item that
+ * status.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+final class ItemOutcomes
+{
+    private ItemOutcomes()
+    {
+    }
+
+    /**
+     * Get the keys an API error message may name an image by.
+     *
+     * @param image   The image
+     *
+     * @return The collection filepath, local filepath and URL of the image that are set
+     */
+    static String[] keysOf(Image image)
+    {
+        List<String> keys = new ArrayList<String>(3);
+        if (image.getCollectionFilepath() != null)
+        {
+            keys.add(image.getCollectionFilepath());
+        }
+        if (image.getFilepath() != null)
+        {
+            keys.add(image.getFilepath());
+        }
+        if (image.getURL() != null)
+        {
+            keys.add(image.getURL().toString());
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    /**
+     * Get the keys an API error message may name an item of a batch by.
+     *
+     * @param item   An <code>Image</code>, a <code>MetadataEntry</code>, or a filepath
+     *               or URL <code>String</code>
+     *
+     * @return The keys of the item, or no keys for an item of another type
+     */
+    static String[] keysOfItem(Object item)
+    {
+        if (item instanceof Image)
+        {
+            return keysOf((Image)item);
+        }
+        if (item instanceof MetadataEntry)
+        {
+            return new String[] { ((MetadataEntry)item).getFilepath() };
+        }
+        if (item instanceof String)
+        {
+            return new String[] { (String)item };
+        }
+        return new String[0];
+    }
+
+    /**
+     * Give each error message to the items it names, whatever the batch status.
+     *
+     * @param errors     The API error messages for the batch, or null
+     * @param itemKeys   The keys naming each item, in batch order
+     *
+     * @return The errors naming each item, in batch order, followed by the
+     *         errors naming no item
+     */
+    static JSONArray[] attribute(JSONArray errors, List<String[]> itemKeys)
+    {
+        int count = itemKeys.size();
+        JSONArray[] attributed = new JSONArray[count + 1];
+        for (int i = 0; i <= count; i++)
+        {
+            attributed[i] = new JSONArray();
+        }
+
+        for (int e = 0; errors != null && e < errors.size(); e++)
+        {
+            String error = String.valueOf(errors.opt(e));
+            boolean found = false;
+            for (int i = 0; i < count; i++)
+            {
+                if (names(error, itemKeys.get(i)))
+                {
+                    attributed[i].element(error);
+                    found = true;
+                }
+            }
+            if (!found)
+            {
+                attributed[count].element(error);
+            }
+        }
+        return attributed;
+    }
+
+    /**
+     * Split a batch response into an outcome for each item.
+     *
+     * @param method     The API method the batch was sent to
+     * @param response   The API JSON response for the batch
+     * @param itemKeys   The keys naming each item, in batch order
+     *
+     * @return An API JSON response for each item, with <code>status</code>,
+     *         <code>method</code>, an empty <code>result</code> and the
+     *         <code>error</code> messages that apply to it
+     */
+    static JSONObject[] split(String method, JSONObject response, List<String[]> itemKeys)
+    {
+        String status = response == null ? "fail" : response.optString("status");
+        JSONArray errors = response == null ? null : response.optJSONArray("error");
+
+        JSONObject[] outcomes = new JSONObject[itemKeys.size()];
+        if (!"warn".equals(status))
+        {
+            String itemStatus = "fail".equals(status) ? "fail" : "ok";
+            for (int i = 0; i < outcomes.length; i++)
+            {
+                outcomes[i] = outcome(method, itemStatus, errors);
+            }
+            return outcomes;
+        }
+
+        JSONArray[] named = attribute(errors, itemKeys);
+        JSONArray unnamed = named[outcomes.length];
+
+        for (int i = 0; i < outcomes.length; i++)
+        {
+            if (!named[i].isEmpty())
+            {
+                outcomes[i] = outcome(method, "fail", named[i]);
+            }
+            else if (!unnamed.isEmpty())
+            {
+                outcomes[i] = outcome(method, "warn", unnamed);
+            }
+            else
+            {
+                outcomes[i] = outcome(method, "ok", null);
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * Check whether an item outcome shows the item was certainly applied.
+     *
+     * @param outcome   An outcome from {@link #split(String, JSONObject, List)}
+     *
+     * @return True if the outcome status is <code>ok</code>
+     */
+    static boolean succeeded(JSONObject outcome)
+    {
+        return "ok".equals(outcome.optString("status"));
+    }
+
+    private static boolean names(String error, String[] keys)
+    {
+        for (String key: keys)
+        {
+            if (key != null && key.length() > 0 && containsToken(error, key))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether <code>key</code> occurs in <code>error</code> as a whole token:
+     * preceded by the start of the message, whitespace, a quote, an opening
+     * bracket or <code>=</code>, and followed by the end of the message,
+     * whitespace, a quote or a closing bracket, or by punctuation that ends
+     * the message or a phrase.
+     */
+    static boolean containsToken(String error, String key)
+    {
+        for (int at = error.indexOf(key); at >= 0; at = error.indexOf(key, at + 1))
+        {
+            int end = at + key.length();
+            if (at > 0 && !isOpening(error.charAt(at - 1)))
+            {
+                continue;
+            }
+            if (end == error.length() || isClosing(error.charAt(end)))
+            {
+                return true;
+            }
+            if (".,;:".indexOf(error.charAt(end)) >= 0 &&
+                (end + 1 == error.length() || isClosing(error.charAt(end + 1))))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOpening(char c)
+    {
+        return Character.isWhitespace(c) || "'\"`([<=".indexOf(c) >= 0;
+    }
+
+    private static boolean isClosing(char c)
+    {
+        return Character.isWhitespace(c) || "'\"`)]>".indexOf(c) >= 0;
+    }
+
+    private static JSONObject outcome(String method, String status, JSONArray errors)
+    {
+        JSONObject outcome = new JSONObject();
+        outcome.element("status", status);
+        outcome.element("method", method);
+        outcome.element("result", new JSONArray());
+        outcome.element("error", errors == null ? new JSONArray() : errors);
+        return outcome;
+    }
+}
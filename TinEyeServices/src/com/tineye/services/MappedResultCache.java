@@ -0,0 +1,596 @@
+package com.tineye.services;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link ResultCache} kept in memory-mapped files, so cached responses
+ * survive a restart and take no space on the Java heap.
+ * <p>
+ * Responses are appended as JSON text to a ring of <code>segmentCount</code>
+ * segment files of <code>segmentBytes</code> bytes each. When the segment
+ * being written is full, writing moves on to the next segment in the ring,
+ * and every response in it, which are the oldest in the cache, is evicted. A
+ * response read from the older half of the ring is copied to the segment
+ * being written, so responses that keep being requested are not evicted:
+ * eviction approximates least recently used order at the cost of one copy
+ * per response per half-turn of the ring.
+ * <p>
+ * Responses are found through an open-addressing hash table in a separate
+ * memory-mapped index file, sized for <code>maxEntries</code> responses.
+ * When that many responses are cached, the oldest segment is evicted to make
+ * room. Each response also expires <code>ttlMillis</code> milliseconds after
+ * it is cached.
+ * <p>
+ * Opening a directory written with different sizes discards its contents.
+ * Changes are written to disk by the operating system; {@link #flush()} and
+ * {@link #close()} force them to disk. A <code>MappedResultCache</code> must
+ * only be opened by one instance at a time, in one process.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class MappedResultCache implements ResultCache, Closeable
+{
+    private static final Logger logger = Logger.getLogger(MappedResultCache.class);
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final int MAGIC = 0x54524d43;
+    private static final int VERSION = 1;
+
+    // Index header: magic, version, segment count, segment bytes, slot count,
+    // current segment, write offset.
+    private static final int HEADER_BYTES = 64;
+    private static final int CURRENT_SEGMENT_POSITION = 20;
+    private static final int WRITE_OFFSET_POSITION = 24;
+
+    // Index slot: key hash, segment, offset and length of the record.
+    private static final int SLOT_BYTES = 24;
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+
+    // Record: length, expiry time, key length, key bytes, response bytes.
+    private static final int RECORD_HEADER_BYTES = 16;
+
+    private final int segmentCount;
+    private final int segmentBytes;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final int slotCount;
+
+    private final MappedByteBuffer index;
+    private final MappedByteBuffer[] segments;
+
+    private int currentSegment;
+    private int writeOffset;
+    private int liveSlots = 0;
+    private int removedSlots = 0;
+    private boolean closed = false;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long promotions = 0;
+
+    /**
+     * Open the cache in <code>directory</code>, creating it if it does not exist.
+     *
+     * @param directory      The directory holding the index and segment files
+     * @param segmentCount   Number of segment files, at least 2
+     * @param segmentBytes   Size of each segment file in bytes
+     * @param maxEntries     Maximum number of responses to hold
+     * @param ttlMillis      Time in milliseconds a response stays valid after it is cached
+     *
+     * @throws IOException                If the files cannot be created or mapped
+     * @throws IllegalArgumentException   If a size is out of range
+     */
+    public MappedResultCache(File directory, int segmentCount, int segmentBytes, int maxEntries, long ttlMillis)
+        throws IOException
+    {
+        if (segmentCount < 2 || segmentBytes <= RECORD_HEADER_BYTES || maxEntries <= 0 ||
+            maxEntries > (1 << 24) || ttlMillis <= 0)
+        {
+            throw new IllegalArgumentException("MappedResultCache sizes are out of range");
+        }
+        this.segmentCount = segmentCount;
+        this.segmentBytes = segmentBytes;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.slotCount = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create cache directory '" + directory + "'");
+        }
+
+        long indexBytes = HEADER_BYTES + (long)this.slotCount * SLOT_BYTES;
+        File indexFile = new File(directory, "index");
+        boolean existing = indexFile.length() == indexBytes;
+
+        this.index = map(indexFile, indexBytes);
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+        {
+            this.segments[i] = map(new File(directory, "segment-" + i), segmentBytes);
+        }
+
+        if (existing && this.index.getInt(0) == MAGIC && this.index.getInt(4) == VERSION &&
+            this.index.getInt(8) == segmentCount && this.index.getInt(12) == segmentBytes &&
+            this.index.getInt(16) == this.slotCount)
+        {
+            this.currentSegment = this.index.getInt(CURRENT_SEGMENT_POSITION);
+            this.writeOffset = this.index.getInt(WRITE_OFFSET_POSITION);
+            if (this.currentSegment < 0 || this.currentSegment >= segmentCount ||
+                this.writeOffset < 0 || this.writeOffset > segmentBytes)
+            {
+                // Start the next write in a new segment.
+                this.currentSegment = 0;
+                this.writeOffset = segmentBytes;
+            }
+            for (int slot = 0; slot < this.slotCount; slot++)
+            {
+                long hash = slotHash(slot);
+                if (hash == REMOVED)
+                {
+                    this.removedSlots++;
+                }
+                else if (hash != EMPTY)
+                {
+                    this.liveSlots++;
+                }
+            }
+            logger.info("Opened result cache '" + directory + "' with " + this.liveSlots + " responses");
+        }
+        else
+        {
+            for (int slot = 0; slot < this.slotCount; slot++)
+            {
+                this.index.putLong(slotPosition(slot), EMPTY);
+            }
+            this.index.putInt(0, MAGIC);
+            this.index.putInt(4, VERSION);
+            this.index.putInt(8, segmentCount);
+            this.index.putInt(12, segmentBytes);
+            this.index.putInt(16, this.slotCount);
+            this.currentSegment = 0;
+            this.writeOffset = 0;
+            writePosition();
+            logger.info("Created result cache '" + directory + "'");
+        }
+    }
+
+    public synchronized JSONObject get(String key)
+    {
+        if (this.closed)
+        {
+            return null;
+        }
+        byte[] keyBytes = encode(key);
+        long hash = hash(keyBytes);
+        int slot = find(hash, keyBytes);
+        if (slot < 0)
+        {
+            this.misses++;
+            return null;
+        }
+
+        int segment = this.index.getInt(slotPosition(slot) + 8);
+        int offset = this.index.getInt(slotPosition(slot) + 12);
+        int length = this.index.getInt(slotPosition(slot) + 16);
+        long expiresMillis = this.segments[segment].getLong(offset + 4);
+
+        JSONObject response = null;
+        byte[] responseBytes = null;
+        if (System.currentTimeMillis() < expiresMillis)
+        {
+            responseBytes = new byte[length - RECORD_HEADER_BYTES - keyBytes.length];
+            ByteBuffer record = this.segments[segment].duplicate();
+            record.position(offset + RECORD_HEADER_BYTES + keyBytes.length);
+            record.get(responseBytes);
+            response = decode(responseBytes);
+        }
+        if (response == null)
+        {
+            removeSlot(slot);
+            this.misses++;
+            return null;
+        }
+
+        // Copy responses still in use out of the half of the ring evicted next.
+        int age = (this.currentSegment - segment + this.segmentCount) % this.segmentCount;
+        if (age >= this.segmentCount / 2)
+        {
+            insert(keyBytes, hash, responseBytes, expiresMillis);
+            this.promotions++;
+        }
+        this.hits++;
+        return response;
+    }
+
+    public synchronized void put(String key, JSONObject response)
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        byte[] keyBytes = encode(key);
+        long now = System.currentTimeMillis();
+        long expiresMillis = this.ttlMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + this.ttlMillis;
+        insert(keyBytes, hash(keyBytes), encode(response.toString()), expiresMillis);
+    }
+
+    public synchronized void invalidate(String keyPrefix)
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        for (int slot = 0; slot < this.slotCount; slot++)
+        {
+            long hash = slotHash(slot);
+            if (hash != EMPTY && hash != REMOVED && (!validRecord(slot) || recordKey(slot).startsWith(keyPrefix)))
+            {
+                removeSlot(slot);
+            }
+        }
+    }
+
+    /**
+     * Force all cached responses to disk.
+     */
+    public synchronized void flush()
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        this.index.force();
+        for (MappedByteBuffer segment: this.segments)
+        {
+            segment.force();
+        }
+    }
+
+    /**
+     * Force all cached responses to disk and stop using the cache. Later calls
+     * to {@link #get(String)} return null and {@link #put(String, JSONObject)}
+     * does nothing. The files stay mapped until the mappings are garbage collected.
+     */
+    public synchronized void close()
+    {
+        flush();
+        this.closed = true;
+    }
+
+    /**
+     * @return Number of responses held, including expired ones not yet removed
+     */
+    public synchronized int size()
+    {
+        return this.liveSlots;
+    }
+
+    /**
+     * @return Number of lookups that found a valid response
+     */
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * @return Number of lookups that found no valid response
+     */
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    /**
+     * @return Number of responses evicted with the oldest segment
+     */
+    public synchronized long getEvictions()
+    {
+        return this.evictions;
+    }
+
+    /**
+     * @return Number of responses copied to the newest segment because they were requested
+     */
+    public synchronized long getPromotions()
+    {
+        return this.promotions;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "size=" + this.liveSlots + " hits=" + this.hits + " misses=" + this.misses +
+               " evictions=" + this.evictions + " promotions=" + this.promotions;
+    }
+
+    private void insert(byte[] keyBytes, long hash, byte[] responseBytes, long expiresMillis)
+    {
+        int recordBytes = RECORD_HEADER_BYTES + keyBytes.length + responseBytes.length;
+        if (recordBytes > this.segmentBytes)
+        {
+            return;
+        }
+
+        int existing = find(hash, keyBytes);
+        if (existing >= 0)
+        {
+            removeSlot(existing);
+        }
+        if (this.writeOffset + recordBytes > this.segmentBytes)
+        {
+            nextSegment();
+        }
+        for (int i = 0; i < this.segmentCount && this.liveSlots >= this.maxEntries; i++)
+        {
+            nextSegment();
+        }
+        if (this.liveSlots + this.removedSlots >= this.slotCount * 3 / 4)
+        {
+            rehash();
+        }
+
+        ByteBuffer record = this.segments[this.currentSegment].duplicate();
+        record.position(this.writeOffset);
+        record.putInt(recordBytes);
+        record.putLong(expiresMillis);
+        record.putInt(keyBytes.length);
+        record.put(keyBytes);
+        record.put(responseBytes);
+
+        placeSlot(hash, this.currentSegment, this.writeOffset, recordBytes);
+        this.writeOffset += recordBytes;
+        writePosition();
+    }
+
+    private void nextSegment()
+    {
+        this.currentSegment = (this.currentSegment + 1) % this.segmentCount;
+        this.writeOffset = 0;
+
+        for (int slot = 0; slot < this.slotCount; slot++)
+        {
+            long hash = slotHash(slot);
+            if (hash != EMPTY && hash != REMOVED &&
+                this.index.getInt(slotPosition(slot) + 8) == this.currentSegment)
+            {
+                removeSlot(slot);
+                this.evictions++;
+            }
+        }
+        writePosition();
+    }
+
+    private void rehash()
+    {
+        long[] hashes = new long[this.liveSlots];
+        int[] locations = new int[this.liveSlots * 3];
+        int live = 0;
+
+        for (int slot = 0; slot < this.slotCount; slot++)
+        {
+            long hash = slotHash(slot);
+            if (hash != EMPTY && hash != REMOVED)
+            {
+                int position = slotPosition(slot);
+                hashes[live] = hash;
+                locations[live * 3] = this.index.getInt(position + 8);
+                locations[live * 3 + 1] = this.index.getInt(position + 12);
+                locations[live * 3 + 2] = this.index.getInt(position + 16);
+                live++;
+            }
+            this.index.putLong(slotPosition(slot), EMPTY);
+        }
+        this.liveSlots = 0;
+        this.removedSlots = 0;
+
+        for (int i = 0; i < live; i++)
+        {
+            placeSlot(hashes[i], locations[i * 3], locations[i * 3 + 1], locations[i * 3 + 2]);
+        }
+    }
+
+    private int find(long hash, byte[] keyBytes)
+    {
+        int mask = this.slotCount - 1;
+        int slot = (int)(hash ^ (hash >>> 32)) & mask;
+
+        for (int probes = 0; probes < this.slotCount; probes++)
+        {
+            long slotHash = slotHash(slot);
+            if (slotHash == EMPTY)
+            {
+                return -1;
+            }
+            if (slotHash == hash && keyMatches(slot, keyBytes))
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void placeSlot(long hash, int segment, int offset, int length)
+    {
+        int mask = this.slotCount - 1;
+        int slot = (int)(hash ^ (hash >>> 32)) & mask;
+
+        while (slotHash(slot) != EMPTY && slotHash(slot) != REMOVED)
+        {
+            slot = (slot + 1) & mask;
+        }
+        if (slotHash(slot) == REMOVED)
+        {
+            this.removedSlots--;
+        }
+        int position = slotPosition(slot);
+        this.index.putLong(position, hash);
+        this.index.putInt(position + 8, segment);
+        this.index.putInt(position + 12, offset);
+        this.index.putInt(position + 16, length);
+        this.liveSlots++;
+    }
+
+    private void removeSlot(int slot)
+    {
+        this.index.putLong(slotPosition(slot), REMOVED);
+        this.liveSlots--;
+        this.removedSlots++;
+    }
+
+    private boolean keyMatches(int slot, byte[] keyBytes)
+    {
+        if (!validRecord(slot))
+        {
+            return false;
+        }
+        int position = slotPosition(slot);
+        MappedByteBuffer segment = this.segments[this.index.getInt(position + 8)];
+        int offset = this.index.getInt(position + 12);
+
+        if (segment.getInt(offset + 12) != keyBytes.length)
+        {
+            return false;
+        }
+        byte[] stored = new byte[keyBytes.length];
+        ByteBuffer record = segment.duplicate();
+        record.position(offset + RECORD_HEADER_BYTES);
+        record.get(stored);
+        return Arrays.equals(stored, keyBytes);
+    }
+
+    /**
+     * Check that a slot points to a whole record, in case the files were
+     * left inconsistent by a crash of the machine.
+     */
+    private boolean validRecord(int slot)
+    {
+        int position = slotPosition(slot);
+        int segment = this.index.getInt(position + 8);
+        int offset = this.index.getInt(position + 12);
+        int length = this.index.getInt(position + 16);
+
+        if (segment < 0 || segment >= this.segmentCount || offset < 0 ||
+            length < RECORD_HEADER_BYTES || offset > this.segmentBytes - length)
+        {
+            return false;
+        }
+        int keyLength = this.segments[segment].getInt(offset + 12);
+        return this.segments[segment].getInt(offset) == length &&
+               keyLength >= 0 && keyLength <= length - RECORD_HEADER_BYTES;
+    }
+
+    private String recordKey(int slot)
+    {
+        int position = slotPosition(slot);
+        MappedByteBuffer segment = this.segments[this.index.getInt(position + 8)];
+        int offset = this.index.getInt(position + 12);
+
+        byte[] keyBytes = new byte[segment.getInt(offset + 12)];
+        ByteBuffer record = segment.duplicate();
+        record.position(offset + RECORD_HEADER_BYTES);
+        record.get(keyBytes);
+        try
+        {
+            return new String(keyBytes, CHARSET);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long slotHash(int slot)
+    {
+        return this.index.getLong(slotPosition(slot));
+    }
+
+    private static int slotPosition(int slot)
+    {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private void writePosition()
+    {
+        this.index.putInt(CURRENT_SEGMENT_POSITION, this.currentSegment);
+        this.index.putInt(WRITE_OFFSET_POSITION, this.writeOffset);
+    }
+
+    private static MappedByteBuffer map(File file, long bytes)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(bytes);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+        finally
+        {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+    }
+
+    // 64-bit FNV-1a, avoiding the values that mark empty and removed slots.
+    private static long hash(byte[] bytes)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b: bytes)
+        {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY || hash == REMOVED ? 1 : hash;
+    }
+
+    private static byte[] encode(String text)
+    {
+        try
+        {
+            return text.getBytes(CHARSET);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Every Java platform is required to support UTF-8.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JSONObject decode(byte[] bytes)
+    {
+        try
+        {
+            Object json = JSONSerializer.toJSON(new String(bytes, CHARSET));
+            return json instanceof JSONObject ? (JSONObject)json : null;
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        catch (JSONException e)
+        {
+            // A record torn by a crash; treat it as missing.
+            return null;
+        }
+    }
+}
@@ -2,10 +2,10 @@ package com.tineye.services;
 
 import java.net.URISyntaxException;
 
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import org.apache.http.entity.mime.MultipartEntity;
-import org.apache.http.entity.mime.content.ByteArrayBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.log4j.Logger;
 
@@ -21,6 +21,8 @@ public class MatchEngineRequest extends TinEyeServiceRequest
 {
     private static final Logger logger = Logger.getLogger(MatchEngineRequest.class);
 
+    private volatile ResultCache compareCache = null;
+
     /**
      * Construct a <code>MatchEngineRequest</code> instance to issue
      * HTTP requests to the MatchEngine API.
@@ -57,6 +59,34 @@ public class MatchEngineRequest extends TinEyeServiceRequest
         super(apiURL, username, password);
     }
 
+    /**
+     * Set the cache used to answer repeated <code>compare</code> requests without calling the API.
+     * <p>
+     * Comparisons are cached by the unordered pair of images, identified by the hash
+     * of their data or by their URL, along with the minimum score and flip setting,
+     * so comparing the same two images in either order is answered from one entry.
+     * Only responses with an <code>ok</code> status are cached. Unlike searches,
+     * comparisons do not depend on the collection and are not invalidated when it
+     * is modified.
+     *
+     * @param compareCache   The cache to use, for example a {@link MemoryResultCache},
+     *                       or null to stop caching
+     */
+    public void setCompareCache(ResultCache compareCache)
+    {
+        this.compareCache = compareCache;
+    }
+
+    /**
+     * Get the cache used to answer repeated <code>compare</code> requests.
+     *
+     * @return The compare cache, or null if comparisons are not cached
+     */
+    public ResultCache getCompareCache()
+    {
+        return this.compareCache;
+    }
+
     /**
      * Add the images in <code>images</code> to the hosted image collection.
      * <p>
@@ -93,7 +123,7 @@ public class MatchEngineRequest extends TinEyeServiceRequest
             int i = 0;
             for(Image image: images)
             {
-                ByteArrayBody imageToAdd = new ByteArrayBody(image.getData(), image.getFilepath());
+                ImageBody imageToAdd = new ImageBody(image);
                 postEntity.addPart("images[" + i + "]", imageToAdd);
 
                 if (image.getCollectionFilepath() != null)
@@ -105,6 +135,7 @@ public class MatchEngineRequest extends TinEyeServiceRequest
                 i += 1;
             }
             responseJSON = postAPIRequest("add", postEntity);
+            invalidateCachedResults();
         }
         catch (Exception e)
         {
@@ -143,10 +174,19 @@ public class MatchEngineRequest extends TinEyeServiceRequest
 
         try
         {
+            JSONArray skipped = new JSONArray();
+            Image[] toSend = removeURLFailures(images, skipped);
+            if (toSend.length == 0 && images.length > 0)
+            {
+                return addURLFailures("add", null, skipped);
+            }
+
+            String[] urls = new String[toSend.length];
             int i = 0;
-            for(Image image: images)
+            for(Image image: toSend)
             {
-                StringBody toAdd = new StringBody(image.getURL().toString());
+                urls[i] = image.getURL().toString();
+                StringBody toAdd = new StringBody(urls[i]);
                 postEntity.addPart("urls[" + i + "]", toAdd);
 
                 toAdd = new StringBody(image.getCollectionFilepath());
@@ -155,6 +195,9 @@ public class MatchEngineRequest extends TinEyeServiceRequest
                 i += 1;
             }
             responseJSON = postAPIRequest("add", postEntity);
+            invalidateCachedResults();
+            recordURLFailures(responseJSON, urls);
+            responseJSON = addURLFailures("add", responseJSON, skipped);
         }
         catch (Exception e)
         {
@@ -200,13 +243,27 @@ public class MatchEngineRequest extends TinEyeServiceRequest
 
         try
         {
-            postEntity.addPart("image",     new ByteArrayBody(image.getData(), image.getFilepath()));
+            // Only hash the image when the search can be cached or coalesced.
+            String params = null;
+            if (getResultCache() != null || isCoalesceRequests())
+            {
+                params = searchParams("image_sha1=" + image.getDataHash(), minScore, offset, limit,
+                                      checkHorizontalFlip);
+            }
+            String cacheKey = resultCacheKey("search", params);
+            JSONObject cached = getCachedResult(cacheKey);
+            if (cached != null)
+            {
+                return cached;
+            }
+            postEntity.addPart("image",     new ImageBody(image));
             postEntity.addPart("min_score", new StringBody(Integer.toString(minScore)));
             postEntity.addPart("offset",    new StringBody(Integer.toString(offset)));
             postEntity.addPart("limit",     new StringBody(Integer.toString(limit)));
             postEntity.addPart("check_horizontal_flip", new StringBody(Boolean.toString(checkHorizontalFlip)));
 
-            responseJSON = postAPIRequest("search", postEntity);
+            responseJSON = postReadOnlyAPIRequest("search", params, postEntity);
+            putCachedResult(cacheKey, responseJSON);
         }
         catch (Exception e)
         {
@@ -254,13 +311,21 @@ public class MatchEngineRequest extends TinEyeServiceRequest
 
         try
         {
+            String params = searchParams("filepath=" + filepath, minScore, offset, limit, checkHorizontalFlip);
+            String cacheKey = resultCacheKey("search", params);
+            JSONObject cached = getCachedResult(cacheKey);
+            if (cached != null)
+            {
+                return cached;
+            }
             postEntity.addPart("filepath",  new StringBody(filepath));
             postEntity.addPart("min_score", new StringBody(Integer.toString(minScore)));
             postEntity.addPart("offset",    new StringBody(Integer.toString(offset)));
             postEntity.addPart("limit",     new StringBody(Integer.toString(limit)));
             postEntity.addPart("check_horizontal_flip", new StringBody(Boolean.toString(checkHorizontalFlip)));
 
-            responseJSON = postAPIRequest("search", postEntity);
+            responseJSON = postReadOnlyAPIRequest("search", params, postEntity);
+            putCachedResult(cacheKey, responseJSON);
         }
         catch (Exception e)
         {
@@ -306,13 +371,27 @@ public class MatchEngineRequest extends TinEyeServiceRequest
 
         try
         {
+            String params = searchParams("url=" + url, minScore, offset, limit, checkHorizontalFlip);
+            String cacheKey = resultCacheKey("search", params);
+            JSONObject cached = getCachedResult(cacheKey);
+            if (cached != null)
+            {
+                return cached;
+            }
+            JSONObject failure = getURLFailure("search", url);
+            if (failure != null)
+            {
+                return failure;
+            }
             postEntity.addPart("url",       new StringBody(url));
             postEntity.addPart("min_score", new StringBody(Integer.toString(minScore)));
             postEntity.addPart("offset",    new StringBody(Integer.toString(offset)));
             postEntity.addPart("limit",     new StringBody(Integer.toString(limit)));
             postEntity.addPart("check_horizontal_flip", new StringBody(Boolean.toString(checkHorizontalFlip)));
 
-            responseJSON = postAPIRequest("search", postEntity);
+            responseJSON = postReadOnlyAPIRequest("search", params, postEntity);
+            putCachedResult(cacheKey, responseJSON);
+            recordURLFailures(responseJSON, url);
         }
         catch (Exception e)
         {
@@ -322,6 +401,54 @@ public class MatchEngineRequest extends TinEyeServiceRequest
         return responseJSON;
     }
 
+    /**
+     * Get every result of a search using image data, fetching
+     * {@link SearchResultIterator#DEFAULT_PAGE_SIZE} results at a time.
+     *
+     * @param image      The image to search for
+     * @param minScore   Minimum score of results to return
+     * @param checkHorizontalFlip   If true, also search for horizontally flipped image in collection
+     *
+     * @return An iterator over the results, which must be closed if not iterated to the end
+     */
+    public SearchResultIterator searchAllImage(Image image, int minScore, boolean checkHorizontalFlip)
+    {
+        return new SearchResultIterator(SearchPageFetchers.searchImage(this, image, minScore, checkHorizontalFlip),
+                                        SearchResultIterator.DEFAULT_PAGE_SIZE, minScore);
+    }
+
+    /**
+     * Get every result of a search using an image in the collection, fetching
+     * {@link SearchResultIterator#DEFAULT_PAGE_SIZE} results at a time.
+     *
+     * @param filepath   The collection filepath of the image to search for
+     * @param minScore   Minimum score of results to return
+     * @param checkHorizontalFlip   If true, also search for horizontally flipped image in collection
+     *
+     * @return An iterator over the results, which must be closed if not iterated to the end
+     */
+    public SearchResultIterator searchAllFilepath(String filepath, int minScore, boolean checkHorizontalFlip)
+    {
+        return new SearchResultIterator(SearchPageFetchers.searchFilepath(this, filepath, minScore, checkHorizontalFlip),
+                                        SearchResultIterator.DEFAULT_PAGE_SIZE, minScore);
+    }
+
+    /**
+     * Get every result of a search using an image URL, fetching
+     * {@link SearchResultIterator#DEFAULT_PAGE_SIZE} results at a time.
+     *
+     * @param url        The URL to the image to search for
+     * @param minScore   Minimum score of results to return
+     * @param checkHorizontalFlip   If true, also search for horizontally flipped image in collection
+     *
+     * @return An iterator over the results, which must be closed if not iterated to the end
+     */
+    public SearchResultIterator searchAllURL(String url, int minScore, boolean checkHorizontalFlip)
+    {
+        return new SearchResultIterator(SearchPageFetchers.searchURL(this, url, minScore, checkHorizontalFlip),
+                                        SearchResultIterator.DEFAULT_PAGE_SIZE, minScore);
+    }
+
     /**
      * Compare <code>image1</code> to <code>image2</code> and return the match score.
      * <p>
@@ -349,18 +476,54 @@ public class MatchEngineRequest extends TinEyeServiceRequest
      */
     public JSONObject compareImage(Image image1, Image image2, int minScore, boolean checkHorizontalFlip)
         throws TinEyeServiceException
+    {
+        return compareImage(image1, null, image2, minScore, checkHorizontalFlip);
+    }
+
+    /**
+     * Compare <code>image1</code> to <code>image2</code>, sending <code>image1</code>
+     * with a body part that may already have been used for other comparisons.
+     *
+     * @param image1      The first image to compare using its data
+     * @param body1       The body part holding the data of <code>image1</code>,
+     *                    or null to create one
+     * @param image2      The second image to compare using its data
+     * @param minScore    The minimum score of the result to return
+     * @param checkHorizontalFlip   If true, also check if <code>image2</code> is the
+     *                              horizontally flipped version of <code>image1</code>
+     *
+     * @return The MatchEngine API JSON response with compare results
+     *
+     * @throws TinEyeServiceException   If exception occurs issuing the MatchEngine API
+     *                                  <code>compare</code> request or parsing the response
+     */
+    JSONObject compareImage(Image image1, ImageBody body1, Image image2, int minScore, boolean checkHorizontalFlip)
+        throws TinEyeServiceException
     {
         MultipartEntity postEntity = new MultipartEntity();
         JSONObject responseJSON = null;
 
         try
         {
-            postEntity.addPart("image1",    new ByteArrayBody(image1.getData(), image1.getFilepath()));
-            postEntity.addPart("image2",    new ByteArrayBody(image2.getData(), image2.getFilepath()));
+            String first = null;
+            String second = null;
+            if (this.compareCache != null)
+            {
+                first = "image_sha1=" + image1.getDataHash();
+                second = "image_sha1=" + image2.getDataHash();
+                JSONObject cached = getCachedCompare(first, second, minScore, checkHorizontalFlip);
+                if (cached != null)
+                {
+                    return cached;
+                }
+            }
+            postEntity.addPart("image1",    body1 != null ? body1 : new ImageBody(image1));
+            postEntity.addPart("image2",    new ImageBody(image2));
             postEntity.addPart("min_score", new StringBody(Integer.toString(minScore)));
             postEntity.addPart("check_horizontal_flip", new StringBody(Boolean.toString(checkHorizontalFlip)));
 
             responseJSON = postAPIRequest("compare", postEntity);
+            putCachedCompare(first, second, minScore, checkHorizontalFlip, responseJSON);
         }
         catch (Exception e)
         {
@@ -404,12 +567,26 @@ public class MatchEngineRequest extends TinEyeServiceRequest
 
         try
         {
+            String first = "url=" + url1;
+            String second = "url=" + url2;
+            JSONObject cached = getCachedCompare(first, second, minScore, checkHorizontalFlip);
+            if (cached != null)
+            {
+                return cached;
+            }
+            JSONObject failure = getURLFailure("compare", url1, url2);
+            if (failure != null)
+            {
+                return failure;
+            }
             postEntity.addPart("url1",      new StringBody(url1));
             postEntity.addPart("url2",      new StringBody(url2));
             postEntity.addPart("min_score", new StringBody(Integer.toString(minScore)));
             postEntity.addPart("check_horizontal_flip", new StringBody(Boolean.toString(checkHorizontalFlip)));
 
             responseJSON = postAPIRequest("compare", postEntity);
+            putCachedCompare(first, second, minScore, checkHorizontalFlip, responseJSON);
+            recordURLFailures(responseJSON, url1, url2);
         }
         catch (Exception e)
         {
@@ -418,4 +595,143 @@ public class MatchEngineRequest extends TinEyeServiceRequest
         }
         return responseJSON;
     }
+
+    /**
+     * Build the parameters identifying a search, for caching and coalescing.
+     *
+     * @param query                 Identifies the image searched for
+     * @param minScore              Minimum score to return for results
+     * @param offset                Offset to start returning results from
+     * @param limit                 Maximum number of results to return
+     * @param checkHorizontalFlip   Whether horizontally flipped images are also searched for
+     *
+     * @return The search parameters
+     */
+    private static String searchParams(String query, int minScore, int offset, int limit, boolean checkHorizontalFlip)
+    {
+        return query + "&min_score=" + minScore + "&offset=" + offset +
+               "&limit=" + limit + "&check_horizontal_flip=" + checkHorizontalFlip;
+    }
+
+    /**
+     * Get a cached comparison of two images, in the order they were given.
+     *
+     * @param first                 Identifies the first image
+     * @param second                Identifies the second image
+     * @param minScore              Minimum score of the result
+     * @param checkHorizontalFlip   Whether flipped images are also compared
+     *
+     * @return The cached response, or null if there is none or no compare cache is set
+     */
+    private JSONObject getCachedCompare(String first, String second, int minScore, boolean checkHorizontalFlip)
+    {
+        ResultCache cache = this.compareCache;
+        if (cache == null || first == null)
+        {
+            return null;
+        }
+        boolean reversed = first.compareTo(second) > 0;
+        JSONObject cached = cache.get(compareCacheKey(first, second, minScore, checkHorizontalFlip));
+
+        if (cached != null && reversed)
+        {
+            reverseCompare(cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Cache a comparison of two images if its status is <code>ok</code>.
+     *
+     * @param first                 Identifies the first image, or null if the comparison
+     *                              should not be cached
+     * @param second                Identifies the second image
+     * @param minScore              Minimum score of the result
+     * @param checkHorizontalFlip   Whether flipped images are also compared
+     * @param response              The API JSON response
+     */
+    private void putCachedCompare(String first, String second, int minScore, boolean checkHorizontalFlip,
+                                  JSONObject response)
+    {
+        ResultCache cache = this.compareCache;
+        if (cache == null || first == null || response == null || !"ok".equals(response.optString("status")))
+        {
+            return;
+        }
+        JSONObject toCache = response;
+
+        // Entries are stored in the order of the sorted pair.
+        if (first.compareTo(second) > 0)
+        {
+            toCache = JSONObject.fromObject(response);
+            reverseCompare(toCache);
+        }
+        cache.put(compareCacheKey(first, second, minScore, checkHorizontalFlip), toCache);
+    }
+
+    private String compareCacheKey(String first, String second, int minScore, boolean checkHorizontalFlip)
+    {
+        boolean reversed = first.compareTo(second) > 0;
+        return requestKey("compare", (reversed ? second + "&" + first : first + "&" + second) +
+                          "&min_score=" + minScore + "&check_horizontal_flip=" + checkHorizontalFlip);
+    }
+
+    /**
+     * Turn a comparison of image1 to image2 into a comparison of image2 to image1 by
+     * swapping the fields that describe one side of the match, such as
+     * <code>query_overlap_percent</code> and <code>target_overlap_percent</code>.
+     * Whether the images match flipped does not depend on their order.
+     *
+     * @param response   The API JSON response to change in place
+     */
+    private static void reverseCompare(JSONObject response)
+    {
+        JSONArray results = response.optJSONArray("result");
+        if (results == null)
+        {
+            return;
+        }
+        for (int i = 0; i < results.size(); i++)
+        {
+            JSONObject result = results.optJSONObject(i);
+            if (result == null)
+            {
+                continue;
+            }
+            swapFields(result, "query_", "target_");
+            swapFields(result, "image1_", "image2_");
+        }
+    }
+
+    private static void swapFields(JSONObject result, String prefix, String otherPrefix)
+    {
+        JSONObject swapped = new JSONObject();
+        for (Object key: result.keySet())
+        {
+            String name = (String)key;
+            if (name.startsWith(prefix))
+            {
+                swapped.element(otherPrefix + name.substring(prefix.length()), result.get(name));
+            }
+            else if (name.startsWith(otherPrefix))
+            {
+                swapped.element(prefix + name.substring(otherPrefix.length()), result.get(name));
+            }
+        }
+        if (swapped.isEmpty())
+        {
+            return;
+        }
+        for (Object key: swapped.keySet())
+        {
+            String name = (String)key;
+            String original = name.startsWith(prefix) ? otherPrefix + name.substring(prefix.length())
+                                                      : prefix + name.substring(otherPrefix.length());
+            if (!swapped.containsKey(original))
+            {
+                result.remove(original);
+            }
+        }
+        result.putAll(swapped);
+    }
 }
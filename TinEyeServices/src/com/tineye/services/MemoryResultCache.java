@@ -0,0 +1,192 @@
+package com.tineye.services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.json.JSONObject;
+
+/**
+ * An in-memory {@link ResultCache} holding at most <code>maxEntries</code>
+ * responses for at most <code>ttlMillis</code> milliseconds each.
+ * <p>
+ * When full, the least recently used response is evicted. Responses are
+ * copied on the way in and out, so callers can modify the responses they
+ * are given without affecting the cache.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class MemoryResultCache implements ResultCache
+{
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    private final LinkedHashMap<String, CachedResponse> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+    private long invalidations = 0;
+
+    /**
+     * Construct a <code>MemoryResultCache</code>.
+     *
+     * @param maxEntries   Maximum number of responses to hold
+     * @param ttlMillis    Time in milliseconds a response stays valid after it is cached,
+     *                     or <code>Long.MAX_VALUE</code> for responses that never change
+     *
+     * @throws IllegalArgumentException   If the limits are not positive
+     */
+    public MemoryResultCache(int maxEntries, long ttlMillis)
+    {
+        if (maxEntries <= 0 || ttlMillis <= 0)
+        {
+            throw new IllegalArgumentException("MemoryResultCache limits must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest)
+            {
+                if (size() > MemoryResultCache.this.maxEntries)
+                {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized JSONObject get(String key)
+    {
+        CachedResponse entry = this.entries.get(key);
+        if (entry == null)
+        {
+            this.misses++;
+            return null;
+        }
+        if (System.currentTimeMillis() >= entry.expiresMillis)
+        {
+            this.entries.remove(key);
+            this.expirations++;
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return JSONObject.fromObject(entry.response);
+    }
+
+    public void put(String key, JSONObject response)
+    {
+        long now = System.currentTimeMillis();
+        long expiresMillis = this.ttlMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + this.ttlMillis;
+        CachedResponse entry = new CachedResponse(JSONObject.fromObject(response), expiresMillis);
+        synchronized (this)
+        {
+            this.entries.put(key, entry);
+        }
+    }
+
+    public synchronized void invalidate(String keyPrefix)
+    {
+        Iterator<String> keys = this.entries.keySet().iterator();
+        while (keys.hasNext())
+        {
+            if (keys.next().startsWith(keyPrefix))
+            {
+                keys.remove();
+                this.invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Remove every cached response.
+     */
+    public synchronized void clear()
+    {
+        this.invalidations += this.entries.size();
+        this.entries.clear();
+    }
+
+    /**
+     * @return Number of responses held, including expired ones not yet removed
+     */
+    public synchronized int size()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * @return Number of lookups that found a valid response
+     */
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * @return Number of lookups that found no valid response
+     */
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    /**
+     * @return Fraction of lookups that found a valid response, or 0 if there have been none
+     */
+    public synchronized double getHitRate()
+    {
+        long lookups = this.hits + this.misses;
+        return lookups == 0 ? 0 : (double)this.hits / lookups;
+    }
+
+    /**
+     * @return Number of responses evicted to make room for newer ones
+     */
+    public synchronized long getEvictions()
+    {
+        return this.evictions;
+    }
+
+    /**
+     * @return Number of responses removed because they expired
+     */
+    public synchronized long getExpirations()
+    {
+        return this.expirations;
+    }
+
+    /**
+     * @return Number of responses removed by {@link #invalidate(String)} or {@link #clear()}
+     */
+    public synchronized long getInvalidations()
+    {
+        return this.invalidations;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "size=" + this.entries.size() + " hits=" + this.hits + " misses=" + this.misses +
+               " evictions=" + this.evictions + " expirations=" + this.expirations +
+               " invalidations=" + this.invalidations;
+    }
+
+    private static class CachedResponse
+    {
+        final JSONObject response;
+        final long expiresMillis;
+
+        CachedResponse(JSONObject response, long expiresMillis)
+        {
+            this.response = response;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.tineye.services;
+
+import net.sf.json.JSONObject;
+
+/**
+ * The metadata associated with an image in the hosted image collection.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class MetadataEntry
+{
+    private final String filepath;
+    private final JSONObject metadata;
+
+    /**
+     * Construct a <code>MetadataEntry</code> for the collection image at
+     * <code>filepath</code>.
+     *
+     * @param filepath   Filepath of the image in the hosted image collection
+     * @param metadata   Metadata associated with the image
+     */
+    public MetadataEntry(String filepath, JSONObject metadata)
+    {
+        this.filepath = filepath;
+        this.metadata = metadata;
+    }
+
+    /**
+     * Get the filepath of the image in the hosted image collection.
+     *
+     * @return The collection image filepath
+     */
+    public String getFilepath()
+    {
+        return this.filepath;
+    }
+
+    /**
+     * Get the metadata associated with the image.
+     *
+     * @return The image metadata
+     */
+    public JSONObject getMetadata()
+    {
+        return this.metadata;
+    }
+}
@@ -0,0 +1,262 @@
+package com.tineye.services;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Exports the metadata of collection images by calling the API
+ * <code>get_metadata</code> method for batches of filepaths concurrently.
+ * <p>
+ * Filepaths are read from an iterator, usually a {@link CollectionIterator}
+ * over the whole collection, and grouped into batches of <code>batchSize</code>.
+ * Up to <code>parallelism</code> batches are requested at a time, and the
+ * entries of each batch are written as soon as it returns, so memory use is
+ * bounded by the batches in flight whatever the size of the collection.
+ * Entries are written in the order the batches complete.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class MetadataExporter
+{
+    private static final Logger logger = Logger.getLogger(MetadataExporter.class);
+
+    private final MetadataRequest request;
+    private final int batchSize;
+    private final int parallelism;
+
+    private final AtomicLong entriesExported = new AtomicLong();
+    private final AtomicLong batchesExported = new AtomicLong();
+    private volatile long startMillis = 0;
+    private volatile long endMillis = 0;
+
+    /**
+     * Writes exported metadata entries to an output.
+     */
+    public interface EntryWriter
+    {
+        /**
+         * Write one metadata entry.
+         *
+         * @param entry   The entry to write
+         *
+         * @throws IOException   If the entry cannot be written
+         */
+        void write(MetadataEntry entry)
+            throws IOException;
+
+        /**
+         * Flush any buffered entries to the output.
+         *
+         * @throws IOException   If the entries cannot be written
+         */
+        void flush()
+            throws IOException;
+    }
+
+    /**
+     * Construct a <code>MetadataExporter</code> reading metadata from the
+     * collection of <code>request</code>.
+     *
+     * @param request       The API to read metadata from
+     * @param batchSize     Number of filepaths in each <code>get_metadata</code> request
+     * @param parallelism   Maximum number of <code>get_metadata</code> requests at the same time
+     *
+     * @throws IllegalArgumentException   If the batch size or parallelism is not positive
+     */
+    public MetadataExporter(MetadataRequest request, int batchSize, int parallelism)
+    {
+        if (batchSize <= 0 || parallelism <= 0)
+        {
+            throw new IllegalArgumentException("MetadataExporter batch size and parallelism must be positive");
+        }
+        this.request = request;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Get an <code>EntryWriter</code> writing newline delimited JSON to <code>out</code>.
+     * <p>
+     * Each entry is written on its own line as a JSON object with a
+     * <code>filepath</code> and a <code>metadata</code> field.
+     *
+     * @param out   Where to write the entries. It is flushed but not closed by the exporter.
+     *
+     * @return A writer of newline delimited JSON
+     */
+    public static EntryWriter ndjson(final Writer out)
+    {
+        return new EntryWriter()
+        {
+            public void write(MetadataEntry entry)
+                throws IOException
+            {
+                JSONObject line = new JSONObject();
+                line.element("filepath", entry.getFilepath());
+                line.element("metadata", entry.getMetadata());
+
+                out.write(line.toString());
+                out.write('\n');
+            }
+
+            public void flush()
+                throws IOException
+            {
+                out.flush();
+            }
+        };
+    }
+
+    /**
+     * Export the metadata of each image in <code>filepaths</code> to <code>out</code>.
+     *
+     * @param filepaths   The collection image filepaths to export
+     * @param out         Where to write the metadata entries
+     *
+     * @return The number of entries written
+     *
+     * @throws TinEyeServiceException   If a <code>get_metadata</code> request fails or
+     *                                  the entries cannot be written
+     * @throws InterruptedException     If interrupted while waiting for a batch
+     */
+    public long export(Iterator<String> filepaths, EntryWriter out)
+        throws TinEyeServiceException, InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(this.parallelism);
+        CompletionService<List<MetadataEntry>> completed = new ExecutorCompletionService<List<MetadataEntry>>(pool);
+
+        this.startMillis = System.currentTimeMillis();
+        this.endMillis = 0;
+        long written = 0;
+        int inFlight = 0;
+
+        try
+        {
+            while (true)
+            {
+                while (inFlight < this.parallelism && filepaths.hasNext())
+                {
+                    final List<String> batch = new ArrayList<String>(this.batchSize);
+                    while (batch.size() < this.batchSize && filepaths.hasNext())
+                    {
+                        batch.add(filepaths.next());
+                    }
+                    completed.submit(new Callable<List<MetadataEntry>>()
+                    {
+                        public List<MetadataEntry> call()
+                            throws TinEyeServiceException
+                        {
+                            return fetchBatch(batch);
+                        }
+                    });
+                    inFlight += 1;
+                }
+                if (inFlight == 0)
+                {
+                    break;
+                }
+                List<MetadataEntry> entries = completed.take().get();
+                inFlight -= 1;
+
+                for (MetadataEntry entry: entries)
+                {
+                    out.write(entry);
+                }
+                out.flush();
+
+                written += entries.size();
+                this.entriesExported.addAndGet(entries.size());
+                this.batchesExported.incrementAndGet();
+            }
+        }
+        catch (ExecutionException e)
+        {
+            logger.error("'export' failed: " + e.getCause().toString());
+            throw new TinEyeServiceException("'export' failed", e.getCause());
+        }
+        catch (IOException e)
+        {
+            logger.error("'export' failed writing entries: " + e.toString());
+            throw new TinEyeServiceException("'export' failed writing entries", e);
+        }
+        finally
+        {
+            pool.shutdownNow();
+            this.endMillis = System.currentTimeMillis();
+        }
+        return written;
+    }
+
+    /**
+     * Get the number of metadata entries written so far.
+     *
+     * @return The number of entries exported
+     */
+    public long getEntriesExported()
+    {
+        return this.entriesExported.get();
+    }
+
+    /**
+     * Get the number of <code>get_metadata</code> batches written so far.
+     *
+     * @return The number of batches exported
+     */
+    public long getBatchesExported()
+    {
+        return this.batchesExported.get();
+    }
+
+    /**
+     * Get the average number of entries exported per second by the
+     * current or last export.
+     *
+     * @return The export throughput in entries per second
+     */
+    public double getEntriesPerSecond()
+    {
+        long start = this.startMillis;
+        long end = this.endMillis == 0 ? System.currentTimeMillis() : this.endMillis;
+
+        if (start == 0 || end <= start)
+        {
+            return 0;
+        }
+        return this.entriesExported.get() * 1000.0 / (end - start);
+    }
+
+    private List<MetadataEntry> fetchBatch(List<String> filepaths)
+        throws TinEyeServiceException
+    {
+        JSONObject response = this.request.getMetadata(filepaths.toArray(new String[filepaths.size()]));
+
+        if ("fail".equals(response.optString("status")))
+        {
+            throw new TinEyeServiceException("'get_metadata' failed: " + response.optJSONArray("error"));
+        }
+        JSONArray result = response.optJSONArray("result");
+        List<MetadataEntry> entries = new ArrayList<MetadataEntry>(filepaths.size());
+
+        for (int i = 0; result != null && i < result.size(); i++)
+        {
+            JSONObject match = result.getJSONObject(i);
+            entries.add(new MetadataEntry(match.optString("filepath"), match.optJSONObject("metadata")));
+        }
+        return entries;
+    }
+}
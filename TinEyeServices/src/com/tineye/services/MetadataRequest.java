@@ -7,7 +7,6 @@ import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import org.apache.http.entity.mime.MultipartEntity;
-import org.apache.http.entity.mime.content.ByteArrayBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.log4j.Logger;
 
@@ -99,7 +98,7 @@ public class MetadataRequest extends TinEyeServiceRequest
             int i = 0;
             for(Image image: images)
             {
-                ByteArrayBody toAdd = new ByteArrayBody(image.getData(), image.getFilepath());
+                ImageBody toAdd = new ImageBody(image);
                 postEntity.addPart("images[" + i + "]", toAdd);
 
                 if (image.getFilepath() != null)
@@ -119,6 +118,7 @@ public class MetadataRequest extends TinEyeServiceRequest
             postEntity.addPart("ignore_interior_background", new StringBody(Boolean.toString(ignoreInteriorBackground)));
 
             responseJSON = postAPIRequest("add", postEntity);
+            invalidateCachedResults();
         }
         catch (Exception e)
         {
@@ -169,16 +169,25 @@ public class MetadataRequest extends TinEyeServiceRequest
 
         try
         {
+            JSONArray skipped = new JSONArray();
+            Image[] toSend = removeURLFailures(images, skipped);
+            if (toSend.length == 0 && images.length > 0)
+            {
+                return addURLFailures("add", null, skipped);
+            }
+
+            String[] urls = new String[toSend.length];
             int i = 0;
-            for(Image image: images)
+            for(Image image: toSend)
             {
-                StringBody toAdd = new StringBody(image.getURL().toString());
+                urls[i] = image.getURL().toString();
+                StringBody toAdd = new StringBody(urls[i]);
                 postEntity.addPart("urls[" + i + "]", toAdd);
 
                 toAdd = new StringBody(image.getCollectionFilepath());
                 postEntity.addPart("filepaths[" + i + "]", toAdd);
 
-                if (images[i].getMetadata() != null)
+                if (image.getMetadata() != null)
                 {
                     toAdd = new StringBody(image.getMetadata().toString());
                     postEntity.addPart("metadata[" + i + "]", toAdd);
@@ -190,6 +199,9 @@ public class MetadataRequest extends TinEyeServiceRequest
             postEntity.addPart("ignore_interior_background", new StringBody(Boolean.toString(ignoreInteriorBackground)));
 
             responseJSON = postAPIRequest("add", postEntity);
+            invalidateCachedResults();
+            recordURLFailures(responseJSON, urls);
+            responseJSON = addURLFailures("add", responseJSON, skipped);
         }
         catch (Exception e)
         {
@@ -271,7 +283,7 @@ public class MetadataRequest extends TinEyeServiceRequest
 
         try
         {
-            responseJSON = getAPIRequest("get_search_metadata");
+            responseJSON = getRefreshedAPIRequest("get_search_metadata");
         }
         catch (Exception e)
         {
@@ -307,7 +319,7 @@ public class MetadataRequest extends TinEyeServiceRequest
 
         try
         {
-            responseJSON = getAPIRequest("get_return_metadata");
+            responseJSON = getRefreshedAPIRequest("get_return_metadata");
         }
         catch (Exception e)
         {
@@ -392,6 +404,7 @@ public class MetadataRequest extends TinEyeServiceRequest
             }
 
             responseJSON = postAPIRequest("update_metadata", postEntity);
+            invalidateCachedResults();
         }
         catch (Exception e)
         {
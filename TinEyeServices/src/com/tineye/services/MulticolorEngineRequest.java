@@ -7,7 +7,6 @@ import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import org.apache.http.entity.mime.MultipartEntity;
-import org.apache.http.entity.mime.content.ByteArrayBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.log4j.Logger;
 
@@ -20,6 +19,8 @@ public class MulticolorEngineRequest extends MetadataRequest
 {
     private static final Logger logger = Logger.getLogger(MulticolorEngineRequest.class);
 
+    private volatile ColorPaletteCache colorPaletteCache = null;
+
     /**
      * Construct a <code>MulticolorEngineRequest</code> instance to issue
      * HTTP requests to the MulticolorEngine API.
@@ -56,6 +57,33 @@ public class MulticolorEngineRequest extends MetadataRequest
         super(apiURL, username, password);
     }
 
+    /**
+     * Set the cache used to answer repeated <code>extract_image_colors</code> requests
+     * without calling the API.
+     * <p>
+     * Palettes are cached by the hash of the image data or by the image URLs,
+     * along with the limit, background options and color format. Only responses
+     * with an <code>ok</code> status are cached, and a cached palette is returned
+     * as a response holding just the <code>status</code>, <code>method</code>,
+     * <code>error</code> and <code>result</code> fields.
+     *
+     * @param colorPaletteCache   The cache to use, or null to stop caching
+     */
+    public void setColorPaletteCache(ColorPaletteCache colorPaletteCache)
+    {
+        this.colorPaletteCache = colorPaletteCache;
+    }
+
+    /**
+     * Get the cache used to answer repeated <code>extract_image_colors</code> requests.
+     *
+     * @return The color palette cache, or null if palettes are not cached
+     */
+    public ColorPaletteCache getColorPaletteCache()
+    {
+        return this.colorPaletteCache;
+    }
+
     /**
      * Do a color search against the hosted image collection using an image and return matches
      * with corresponding scores.
@@ -106,7 +134,7 @@ public class MulticolorEngineRequest extends MetadataRequest
 
         try
         {
-            postEntity.addPart("image",                      new ByteArrayBody(image.getData(), image.getFilepath()));
+            postEntity.addPart("image",                      new ImageBody(image));
             postEntity.addPart("ignore_background",          new StringBody(Boolean.toString(ignoreBackground)));
             postEntity.addPart("ignore_interior_background", new StringBody(Boolean.toString(ignoreInteriorBackground)));
 
@@ -385,6 +413,50 @@ public class MulticolorEngineRequest extends MetadataRequest
         return responseJSON;
     }
 
+    /**
+     * Get every result of a color search using specified colors, fetching
+     * {@link SearchResultIterator#DEFAULT_PAGE_SIZE} results at a time. When
+     * results are sorted by metadata, paging stops only when the results run out.
+     *
+     * @param colors             List of colors for searching the collection.
+     * @param weights            List of weights corresponding to the colors, or empty list.
+     * @param metadata           Metadata to perform additional filtering on the search results.
+     * @param returnMetadata     Metadata fields to return with each match,
+     *                           which can include sorting options.
+     * @param sortMetadata       If true, sort results by metadata score instead of by match score.
+     * @param minScore           Minimum score of search results to return.
+     *
+     * @return An iterator over the results, which must be closed if not iterated to the end
+     */
+    public SearchResultIterator searchAllColor(Color[] colors, float[] weights, JSONObject metadata,
+                                               JSONArray returnMetadata, boolean sortMetadata, int minScore)
+    {
+        return new SearchResultIterator(SearchPageFetchers.searchColor(this, colors, weights, metadata,
+                                                                       returnMetadata, sortMetadata, minScore),
+                                        SearchResultIterator.DEFAULT_PAGE_SIZE, sortMetadata ? 0 : minScore);
+    }
+
+    /**
+     * Get every result of a search using metadata only, fetching
+     * {@link SearchResultIterator#DEFAULT_PAGE_SIZE} results at a time. When
+     * results are sorted by metadata, paging stops only when the results run out.
+     *
+     * @param metadata         Metadata to perform additional filtering on the search results.
+     * @param returnMetadata   Metadata fields to return with each match,
+     *                         which can include sorting options.
+     * @param sortMetadata     If true, sort results by metadata score instead of by match score.
+     * @param minScore         Minimum score of search results to return.
+     *
+     * @return An iterator over the results, which must be closed if not iterated to the end
+     */
+    public SearchResultIterator searchAllMetadata(JSONObject metadata, JSONArray returnMetadata,
+                                                  boolean sortMetadata, int minScore)
+    {
+        return new SearchResultIterator(SearchPageFetchers.searchMetadata(this, metadata, returnMetadata,
+                                                                          sortMetadata, minScore),
+                                        SearchResultIterator.DEFAULT_PAGE_SIZE, sortMetadata ? 0 : minScore);
+    }
+
     /**
      * Extract the dominant colors from the images passed in.
      * <p>
@@ -428,10 +500,27 @@ public class MulticolorEngineRequest extends MetadataRequest
 
         try
         {
+            String cacheKey = null;
+            if (this.colorPaletteCache != null)
+            {
+                StringBuilder hashes = new StringBuilder();
+                for (Image image: images)
+                {
+                    hashes.append(hashes.length() == 0 ? "" : ",").append(image.getDataHash());
+                }
+                cacheKey = paletteCacheKey("image_sha1=" + hashes, limit, ignoreBackground,
+                                           ignoreInteriorBackground, colorFormat);
+                ColorPalette cached = this.colorPaletteCache.get(cacheKey);
+                if (cached != null)
+                {
+                    return cached.toResponse("extract_image_colors", colorFormat);
+                }
+            }
+
             int i = 0;
             for(Image image: images)
             {
-                postEntity.addPart("images[" + i + "]", new ByteArrayBody(image.getData(), image.getFilepath()));
+                postEntity.addPart("images[" + i + "]", new ImageBody(image));
                 i += 1;
             }
             postEntity.addPart("limit",                      new StringBody(Integer.toString(limit)));
@@ -440,6 +529,7 @@ public class MulticolorEngineRequest extends MetadataRequest
             postEntity.addPart("color_format",               new StringBody(colorFormat));
 
             responseJSON = postAPIRequest("extract_image_colors", postEntity);
+            putCachedPalette(cacheKey, responseJSON);
         }
         catch (Exception e)
         {
@@ -492,6 +582,28 @@ public class MulticolorEngineRequest extends MetadataRequest
 
         try
         {
+            String cacheKey = null;
+            if (this.colorPaletteCache != null)
+            {
+                StringBuilder urls = new StringBuilder();
+                for (String imageURL: imageURLs)
+                {
+                    urls.append(urls.length() == 0 ? "" : ",").append(imageURL);
+                }
+                cacheKey = paletteCacheKey("urls=" + urls, limit, ignoreBackground,
+                                           ignoreInteriorBackground, colorFormat);
+                ColorPalette cached = this.colorPaletteCache.get(cacheKey);
+                if (cached != null)
+                {
+                    return cached.toResponse("extract_image_colors", colorFormat);
+                }
+            }
+            JSONObject failure = getURLFailure("extract_image_colors", imageURLs);
+            if (failure != null)
+            {
+                return failure;
+            }
+
             int i = 0;
             for(String imageURL: imageURLs)
             {
@@ -504,6 +616,8 @@ public class MulticolorEngineRequest extends MetadataRequest
             postEntity.addPart("color_format",               new StringBody(colorFormat));
 
             responseJSON = postAPIRequest("extract_image_colors", postEntity);
+            putCachedPalette(cacheKey, responseJSON);
+            recordURLFailures(responseJSON, imageURLs);
         }
         catch (Exception e)
         {
@@ -805,7 +919,7 @@ public class MulticolorEngineRequest extends MetadataRequest
             int i = 0;
             for(Image image: images)
             {
-                postEntity.addPart("images[" + i + "]", new ByteArrayBody(image.getData(), image.getFilepath()));
+                postEntity.addPart("images[" + i + "]", new ImageBody(image));
                 i += 1;
             }
 
@@ -1394,4 +1508,27 @@ public class MulticolorEngineRequest extends MetadataRequest
         }
         return responseJSON;
     }
+
+    private String paletteCacheKey(String images, int limit, boolean ignoreBackground,
+                                   boolean ignoreInteriorBackground, String colorFormat)
+    {
+        return requestKey("extract_image_colors", images + "&limit=" + limit +
+                          "&ignore_background=" + ignoreBackground +
+                          "&ignore_interior_background=" + ignoreInteriorBackground +
+                          "&color_format=" + colorFormat);
+    }
+
+    private void putCachedPalette(String cacheKey, JSONObject response)
+    {
+        ColorPaletteCache cache = this.colorPaletteCache;
+        if (cache == null || cacheKey == null)
+        {
+            return;
+        }
+        ColorPalette palette = ColorPalette.fromResponse(response);
+        if (palette != null)
+        {
+            cache.put(cacheKey, palette);
+        }
+    }
 }
@@ -0,0 +1,344 @@
+package com.tineye.services;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Remembers image URLs the API could not fetch, so requests for them fail
+ * on the client instead of making the API try to fetch them again.
+ * <p>
+ * A failure is recorded when an error message in an API response matches
+ * one of the error rules and can be attributed to a URL: either the message
+ * names the URL as a whole token, or the request had only one URL and the
+ * message describes fetching or downloading an image, so that an error such
+ * as a search timeout is not pinned on the URL searched for. The rules are
+ * matched against the message with the request URLs removed, so a URL such
+ * as <code>http://host/404.jpg</code> does not itself match a rule. Each
+ * rule sets how long failures matching it are remembered, since a missing
+ * image is likely to stay missing while a timeout may not happen again.
+ * Rules are checked in the order they were set; error messages matching no
+ * rule are not recorded.
+ * <p>
+ * The default rules remember <code>404</code>, <code>not found</code>,
+ * <code>403</code> and <code>forbidden</code> errors for 10 minutes,
+ * <code>timed out</code> and <code>timeout</code> errors for 30 seconds, and
+ * other download errors for 1 minute. Change them with
+ * {@link #setErrorTTL(String, long)}.
+ * <p>
+ * Set on a {@link TinEyeServiceRequest} with
+ * {@link TinEyeServiceRequest#setNegativeURLCache(NegativeURLCache)}. A
+ * <code>NegativeURLCache</code> can be shared by requests to different APIs.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class NegativeURLCache
+{
+    private static final long NOT_FOUND_TTL_MILLIS = 10 * 60 * 1000L;
+    private static final long TIMEOUT_TTL_MILLIS = 30 * 1000L;
+    private static final long DOWNLOAD_TTL_MILLIS = 60 * 1000L;
+
+    // Lowercase text showing an error is about fetching an image from its URL.
+    private static final String[] FETCH_ERROR_TEXTS = { "download", "fetch", "retriev", "url" };
+
+    private final int maxEntries;
+
+    // Lowercase error text to TTL, in the order the rules are checked.
+    private final LinkedHashMap<String, Long> errorTTLs = new LinkedHashMap<String, Long>();
+
+    private final LinkedHashMap<String, Failure> failures;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long recorded = 0;
+
+    /**
+     * Construct a <code>NegativeURLCache</code> with the default error rules.
+     *
+     * @param maxEntries   Maximum number of failing URLs to remember
+     *
+     * @throws IllegalArgumentException   If <code>maxEntries</code> is not positive
+     */
+    public NegativeURLCache(int maxEntries)
+    {
+        if (maxEntries <= 0)
+        {
+            throw new IllegalArgumentException("NegativeURLCache maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.failures = new LinkedHashMap<String, Failure>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest)
+            {
+                return size() > NegativeURLCache.this.maxEntries;
+            }
+        };
+
+        setErrorTTL("404", NOT_FOUND_TTL_MILLIS);
+        setErrorTTL("not found", NOT_FOUND_TTL_MILLIS);
+        setErrorTTL("403", NOT_FOUND_TTL_MILLIS);
+        setErrorTTL("forbidden", NOT_FOUND_TTL_MILLIS);
+        setErrorTTL("timed out", TIMEOUT_TTL_MILLIS);
+        setErrorTTL("timeout", TIMEOUT_TTL_MILLIS);
+        setErrorTTL("download", DOWNLOAD_TTL_MILLIS);
+    }
+
+    /**
+     * Set how long failures whose error message contains <code>errorText</code>
+     * are remembered. A new rule is checked after the existing ones; changing
+     * an existing rule keeps its place.
+     *
+     * @param errorText   Text to look for in error messages, ignoring case
+     * @param ttlMillis   Time in milliseconds to remember matching failures,
+     *                    or 0 to remove the rule
+     *
+     * @throws IllegalArgumentException   If <code>ttlMillis</code> is negative
+     */
+    public synchronized void setErrorTTL(String errorText, long ttlMillis)
+    {
+        if (ttlMillis < 0)
+        {
+            throw new IllegalArgumentException("NegativeURLCache TTL must not be negative");
+        }
+        String key = errorText.toLowerCase(Locale.ENGLISH);
+        if (ttlMillis == 0)
+        {
+            this.errorTTLs.remove(key);
+        }
+        else
+        {
+            this.errorTTLs.put(key, ttlMillis);
+        }
+    }
+
+    /**
+     * Get the recorded error for the first of <code>urls</code> known to fail,
+     * as an API JSON response with a <code>fail</code> status.
+     *
+     * @param method   The API method the response is for
+     * @param urls     The image URLs of the request
+     *
+     * @return The failure response, or null if none of the URLs is known to fail
+     */
+    public JSONObject getFailure(String method, String... urls)
+    {
+        for (String url: urls)
+        {
+            String error = getError(url);
+            if (error != null)
+            {
+                JSONArray errors = new JSONArray();
+                errors.element(error);
+                return failureResponse(method, errors);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the recorded error for <code>url</code>.
+     *
+     * @param url   The image URL
+     *
+     * @return The error message the API returned for the URL, or null if it is not known to fail
+     */
+    public synchronized String getError(String url)
+    {
+        Failure failure = this.failures.get(url);
+        if (failure == null)
+        {
+            this.misses++;
+            return null;
+        }
+        if (System.currentTimeMillis() >= failure.expiresMillis)
+        {
+            this.failures.remove(url);
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return failure.error;
+    }
+
+    /**
+     * Record the URL fetch failures reported in the <code>error</code> array of
+     * <code>response</code>.
+     *
+     * @param response   The API JSON response
+     * @param urls       The image URLs of the request
+     */
+    public void recordFailures(JSONObject response, String... urls)
+    {
+        if (response == null || "ok".equals(response.optString("status")) || urls.length == 0)
+        {
+            return;
+        }
+        JSONArray errors = response.optJSONArray("error");
+        if (errors == null)
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+
+        synchronized (this)
+        {
+            for (int i = 0; i < errors.size(); i++)
+            {
+                String error = String.valueOf(errors.opt(i));
+                String withoutURLs = withoutURLs(error, urls);
+                long ttlMillis = errorTTL(withoutURLs);
+                if (ttlMillis == 0)
+                {
+                    continue;
+                }
+                Failure failure = new Failure(error, now + ttlMillis);
+
+                boolean attributed = false;
+                for (String url: urls)
+                {
+                    if (url != null && url.length() > 0 && ItemOutcomes.containsToken(error, url))
+                    {
+                        this.failures.put(url, failure);
+                        this.recorded++;
+                        attributed = true;
+                    }
+                }
+                if (!attributed && urls.length == 1 && urls[0] != null && isFetchError(withoutURLs))
+                {
+                    this.failures.put(urls[0], failure);
+                    this.recorded++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget a failing URL, so the next request for it calls the API.
+     *
+     * @param url   The image URL
+     */
+    public synchronized void remove(String url)
+    {
+        this.failures.remove(url);
+    }
+
+    /**
+     * Forget every failing URL.
+     */
+    public synchronized void clear()
+    {
+        this.failures.clear();
+    }
+
+    /**
+     * @return Number of failing URLs remembered, including expired ones not yet removed
+     */
+    public synchronized int size()
+    {
+        return this.failures.size();
+    }
+
+    /**
+     * @return Number of lookups that found a URL known to fail
+     */
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * @return Number of lookups that found no failure for a URL
+     */
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    /**
+     * @return Number of failures recorded
+     */
+    public synchronized long getRecorded()
+    {
+        return this.recorded;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "size=" + this.failures.size() + " hits=" + this.hits + " misses=" + this.misses +
+               " recorded=" + this.recorded;
+    }
+
+    /**
+     * Build an API JSON response with a <code>fail</code> status.
+     *
+     * @param method   The API method the response is for
+     * @param errors   The error messages
+     *
+     * @return The failure response
+     */
+    static JSONObject failureResponse(String method, JSONArray errors)
+    {
+        JSONObject response = new JSONObject();
+        response.element("status", "fail");
+        response.element("method", method);
+        response.element("result", new JSONArray());
+        response.element("error", errors);
+        return response;
+    }
+
+    private static String withoutURLs(String error, String[] urls)
+    {
+        String stripped = error;
+        for (String url: urls)
+        {
+            if (url != null && url.length() > 0)
+            {
+                stripped = stripped.replace(url, "");
+            }
+        }
+        return stripped;
+    }
+
+    private static boolean isFetchError(String error)
+    {
+        String lowerError = error.toLowerCase(Locale.ENGLISH);
+        for (String text: FETCH_ERROR_TEXTS)
+        {
+            if (lowerError.contains(text))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long errorTTL(String error)
+    {
+        String lowerError = error.toLowerCase(Locale.ENGLISH);
+        for (Map.Entry<String, Long> rule: this.errorTTLs.entrySet())
+        {
+            if (lowerError.contains(rule.getKey()))
+            {
+                return rule.getValue();
+            }
+        }
+        return 0;
+    }
+
+    private static class Failure
+    {
+        final String error;
+        final long expiresMillis;
+
+        Failure(String error, long expiresMillis)
+        {
+            this.error = error;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+}
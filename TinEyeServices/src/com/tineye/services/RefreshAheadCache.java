@@ -0,0 +1,365 @@
+package com.tineye.services;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A cache for small API responses that change rarely but are requested
+ * often, such as <code>count</code>, <code>get_search_metadata</code> and
+ * <code>get_return_metadata</code>.
+ * <p>
+ * A response is fresh for <code>ttlMillis</code> milliseconds after it is
+ * loaded. Once it is older than <code>ttlMillis - refreshAheadMillis</code>,
+ * the next request for it starts reloading it in the background while still
+ * returning the cached response, so callers that keep requesting a response
+ * never wait for it to be reloaded. Only a request for a response that has
+ * expired, or was never loaded, waits for the API; concurrent requests for
+ * the same response share one load.
+ * <p>
+ * If a load fails, or the API returns a <code>fail</code> status, an expired
+ * response is still returned as long as it is less than
+ * <code>maxStaleMillis</code> milliseconds past its expiry. When there is no
+ * such response, an exception thrown by the load is thrown, and a
+ * <code>fail</code> response is returned to the caller as the API gave it.
+ * A <code>fail</code> response is never cached.
+ * <p>
+ * Set on a {@link TinEyeServiceRequest} with
+ * {@link TinEyeServiceRequest#setRefreshAheadCache(RefreshAheadCache)}.
+ * Call {@link #close()} to stop the background refresh thread.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class RefreshAheadCache implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(RefreshAheadCache.class);
+
+    private final long ttlMillis;
+    private final long refreshAheadMillis;
+    private final long maxStaleMillis;
+
+    private final ExecutorService refresher;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, FutureTask<JSONObject>> loads =
+        new ConcurrentHashMap<String, FutureTask<JSONObject>>();
+
+    // Invalidations of each key; loads started before one do not store their response.
+    private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong staleServed = new AtomicLong();
+
+    /**
+     * Loads a response from the API.
+     */
+    public interface Loader
+    {
+        /**
+         * Load the response.
+         *
+         * @return The API JSON response
+         *
+         * @throws Exception   If the response cannot be loaded
+         */
+        JSONObject load()
+            throws Exception;
+    }
+
+    /**
+     * Construct a <code>RefreshAheadCache</code>.
+     *
+     * @param ttlMillis            Time in milliseconds a response is fresh after it is loaded
+     * @param refreshAheadMillis   Time in milliseconds before expiry at which a response
+     *                             is reloaded in the background
+     * @param maxStaleMillis       Time in milliseconds past expiry a response may still be
+     *                             returned when reloading it fails
+     *
+     * @throws IllegalArgumentException   If the TTL is not positive, or the other times are
+     *                                    negative or the refresh time is not less than the TTL
+     */
+    public RefreshAheadCache(long ttlMillis, long refreshAheadMillis, long maxStaleMillis)
+    {
+        if (ttlMillis <= 0 || refreshAheadMillis < 0 || refreshAheadMillis >= ttlMillis || maxStaleMillis < 0)
+        {
+            throw new IllegalArgumentException("RefreshAheadCache times must not be negative, " +
+                                               "and the refresh time must be less than the TTL");
+        }
+        this.ttlMillis = ttlMillis;
+        this.refreshAheadMillis = refreshAheadMillis;
+        this.maxStaleMillis = maxStaleMillis;
+
+        this.refresher = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "RefreshAheadCache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Get the response for <code>key</code>, loading it with <code>loader</code>
+     * if it is not cached or has expired.
+     *
+     * @param key      Identifies the response
+     * @param loader   Loads the response from the API
+     *
+     * @return A copy of the cached or loaded response, or the <code>fail</code>
+     *         response the load returned if there is no stale response to return instead
+     *
+     * @throws TinEyeServiceException   If the load threw an exception and there is
+     *                                  no stale response to return instead
+     */
+    public JSONObject get(String key, Loader loader)
+        throws TinEyeServiceException
+    {
+        Entry entry = this.entries.get(key);
+        long now = System.currentTimeMillis();
+
+        if (entry != null && now - entry.loadedMillis < this.ttlMillis)
+        {
+            if (now - entry.loadedMillis >= this.ttlMillis - this.refreshAheadMillis)
+            {
+                refresh(key, loader);
+            }
+            this.hits.incrementAndGet();
+            return JSONObject.fromObject(entry.response);
+        }
+        this.misses.incrementAndGet();
+
+        boolean staleAvailable = entry != null && now - entry.loadedMillis < this.ttlMillis + this.maxStaleMillis;
+        JSONObject response;
+        try
+        {
+            response = load(key, loader);
+        }
+        catch (TinEyeServiceException e)
+        {
+            if (staleAvailable)
+            {
+                logger.warn("Returning stale '" + key + "' after load failed: " + e.toString());
+                this.staleServed.incrementAndGet();
+                return JSONObject.fromObject(entry.response);
+            }
+            throw e;
+        }
+
+        if (isFailed(response) && staleAvailable)
+        {
+            logger.warn("Returning stale '" + key + "' after load failed: " + response.optJSONArray("error"));
+            this.staleServed.incrementAndGet();
+            return JSONObject.fromObject(entry.response);
+        }
+        return JSONObject.fromObject(response);
+    }
+
+    /**
+     * Remove the response for <code>key</code>, so the next request loads it again.
+     *
+     * @param key   Identifies the response
+     */
+    public void invalidate(String key)
+    {
+        generationOf(key).incrementAndGet();
+        this.entries.remove(key);
+        // Requests from now on start a new load rather than joining one started before.
+        this.loads.remove(key);
+    }
+
+    /**
+     * Stop the background refresh thread. Responses already cached can still be
+     * requested, and are reloaded by the requesting thread once they expire.
+     */
+    public void close()
+    {
+        this.refresher.shutdownNow();
+    }
+
+    /**
+     * @return Number of requests answered with a fresh response
+     */
+    public long getHits()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * @return Number of requests that waited for a response to be loaded
+     */
+    public long getMisses()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * @return Number of background refreshes started
+     */
+    public long getRefreshes()
+    {
+        return this.refreshes.get();
+    }
+
+    /**
+     * @return Number of requests answered with a stale response because loading failed
+     */
+    public long getStaleServed()
+    {
+        return this.staleServed.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "hits=" + this.hits + " misses=" + this.misses + " refreshes=" + this.refreshes +
+               " staleServed=" + this.staleServed;
+    }
+
+    private void refresh(String key, Loader loader)
+    {
+        FutureTask<JSONObject> task = newLoad(key, loader);
+        if (this.loads.putIfAbsent(key, task) == null)
+        {
+            try
+            {
+                this.refresher.execute(task);
+                this.refreshes.incrementAndGet();
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Closed: the response is reloaded by a request once it expires.
+                this.loads.remove(key, task);
+            }
+        }
+    }
+
+    private JSONObject load(String key, Loader loader)
+        throws TinEyeServiceException
+    {
+        FutureTask<JSONObject> task = newLoad(key, loader);
+        FutureTask<JSONObject> inFlight = this.loads.putIfAbsent(key, task);
+        if (inFlight == null)
+        {
+            task.run();
+            inFlight = task;
+        }
+
+        try
+        {
+            return inFlight.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new TinEyeServiceException("Interrupted loading '" + key + "'", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof TinEyeServiceException)
+            {
+                throw (TinEyeServiceException)e.getCause();
+            }
+            throw new TinEyeServiceException("Loading '" + key + "' failed", e.getCause());
+        }
+    }
+
+    private FutureTask<JSONObject> newLoad(final String key, final Loader loader)
+    {
+        final AtomicLong generation = generationOf(key);
+        final long startGeneration = generation.get();
+
+        return new FutureTask<JSONObject>(new Callable<JSONObject>()
+        {
+            public JSONObject call()
+                throws Exception
+            {
+                JSONObject response;
+                try
+                {
+                    response = loader.load();
+                }
+                catch (Exception e)
+                {
+                    logger.warn("Loading '" + key + "' failed: " + e.toString());
+                    throw e;
+                }
+                if (response == null)
+                {
+                    logger.warn("Loading '" + key + "' failed: no response");
+                    throw new TinEyeServiceException("Loading '" + key + "' failed: no response");
+                }
+                if (isFailed(response))
+                {
+                    // Returned to the caller unless a stale response is available, but not cached.
+                    logger.warn("Loading '" + key + "' failed: " + response.optJSONArray("error"));
+                    return response;
+                }
+                if (generation.get() == startGeneration)
+                {
+                    Entry entry = new Entry(response, System.currentTimeMillis());
+                    entries.put(key, entry);
+                    if (generation.get() != startGeneration)
+                    {
+                        // Invalidated while storing.
+                        entries.remove(key, entry);
+                    }
+                }
+                return response;
+            }
+        })
+        {
+            @Override
+            protected void done()
+            {
+                loads.remove(key, this);
+            }
+        };
+    }
+
+    private AtomicLong generationOf(String key)
+    {
+        AtomicLong generation = this.generations.get(key);
+        if (generation == null)
+        {
+            AtomicLong added = new AtomicLong();
+            generation = this.generations.putIfAbsent(key, added);
+            if (generation == null)
+            {
+                generation = added;
+            }
+        }
+        return generation;
+    }
+
+    private static boolean isFailed(JSONObject response)
+    {
+        return "fail".equals(response.optString("status"));
+    }
+
+    private static class Entry
+    {
+        final JSONObject response;
+        final long loadedMillis;
+
+        Entry(JSONObject response, long loadedMillis)
+        {
+            this.response = response;
+            this.loadedMillis = loadedMillis;
+        }
+    }
+}
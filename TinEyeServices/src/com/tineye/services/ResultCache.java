@@ -0,0 +1,42 @@
+package com.tineye.services;
+
+import net.sf.json.JSONObject;
+
+/**
+ * A cache of API JSON responses, used by {@link TinEyeServiceRequest} and its
+ * subclasses to answer repeated read-only requests without calling the API.
+ * <p>
+ * Keys start with the API URL of the collection the response came from,
+ * followed by the API method and the request parameters, so one cache can be
+ * shared by requests to several collections. Implementations must be safe
+ * to use from many threads.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public interface ResultCache
+{
+    /**
+     * Get the cached response for <code>key</code>.
+     *
+     * @param key   The cache key
+     *
+     * @return The cached response, or null if there is none or it has expired.
+     *         Callers may modify the returned object.
+     */
+    JSONObject get(String key);
+
+    /**
+     * Cache <code>response</code> under <code>key</code>.
+     *
+     * @param key        The cache key
+     * @param response   The API JSON response to cache
+     */
+    void put(String key, JSONObject response);
+
+    /**
+     * Remove every cached response whose key starts with <code>keyPrefix</code>.
+     *
+     * @param keyPrefix   The key prefix, usually the API URL of a collection that was modified
+     */
+    void invalidate(String keyPrefix);
+}
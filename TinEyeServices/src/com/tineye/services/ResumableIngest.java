@@ -0,0 +1,367 @@
+package com.tineye.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Adds a large number of images to the hosted image collection in a way
+ * that can be resumed after a crash or restart.
+ * <p>
+ * Images are sent in batches of <code>batchSize</code>, with up to
+ * <code>parallelism</code> batches in flight. Every batch and its outcome is
+ * recorded in an {@link IngestJournal}. Running the ingest again with the
+ * same journal skips the images of every batch recorded as completed, so only
+ * the images not yet durably accepted by the API are sent again. Batches that
+ * returned a <code>fail</code> status or threw an exception are retried on the
+ * next run, as are the images of a <code>warn</code> batch that the API errors
+ * name, or all the images of the batch when an error names none of them.
+ * <p>
+ * Each image is identified in the journal by a key. Use
+ * {@link #run(Iterator, ImageLoader)} to give the keys up front, so that the
+ * data of an image already completed is never read; an image is then only
+ * loaded when its key is not completed. Images passed to
+ * {@link #run(Iterator)} are keyed by their collection filepath, or by their
+ * URL or local filepath if they have no collection filepath.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class ResumableIngest
+{
+    private static final Logger logger = Logger.getLogger(ResumableIngest.class);
+
+    private final BatchSender<Image> sender;
+    private final File journalFile;
+    private final int batchSize;
+    private final int parallelism;
+
+    private final AtomicLong imagesSkipped = new AtomicLong();
+    private final AtomicLong imagesAdded = new AtomicLong();
+    private final AtomicLong imagesFailed = new AtomicLong();
+
+    /**
+     * Construct a <code>ResumableIngest</code> sending batches with <code>sender</code>.
+     *
+     * @param sender        Adds each batch of images to the API, see {@link BatchSenders}
+     * @param journalFile   The journal recording the batches sent
+     * @param batchSize     Number of images in each API request
+     * @param parallelism   Maximum number of API requests at the same time
+     *
+     * @throws IllegalArgumentException   If the batch size or parallelism is not positive
+     */
+    public ResumableIngest(BatchSender<Image> sender, File journalFile, int batchSize, int parallelism)
+    {
+        if (batchSize <= 0 || parallelism <= 0)
+        {
+            throw new IllegalArgumentException("ResumableIngest batch size and parallelism must be positive");
+        }
+        this.sender = sender;
+        this.journalFile = journalFile;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Loads the image for a key not yet completed.
+     */
+    public interface ImageLoader
+    {
+        /**
+         * Load the image identified by <code>key</code>.
+         *
+         * @param key   The key of the image, as produced by the key iterator
+         *
+         * @return The image to add
+         *
+         * @throws IOException   If the image cannot be read; the image is counted
+         *                       as failed and tried again on the next run
+         */
+        Image load(String key)
+            throws IOException;
+    }
+
+    /**
+     * Add the images in <code>images</code> that are not recorded as completed in the journal.
+     * <p>
+     * The images are already built when they are checked against the journal,
+     * so images read from local files have their data read even if they are
+     * skipped. Use {@link #run(Iterator, ImageLoader)} to resume such an ingest
+     * without reading the completed images.
+     *
+     * @param images   The images to add. Images are only read from the iterator as they
+     *                 are batched, so it may produce them lazily.
+     *
+     * @return The number of images added in this run
+     *
+     * @throws TinEyeServiceException   If the journal cannot be read or written
+     * @throws InterruptedException     If interrupted while waiting for a batch
+     */
+    public long run(final Iterator<Image> images)
+        throws TinEyeServiceException, InterruptedException
+    {
+        final Image[] current = new Image[1];
+
+        return run(new Iterator<String>()
+        {
+            public boolean hasNext()
+            {
+                return images.hasNext();
+            }
+
+            public String next()
+            {
+                current[0] = images.next();
+                return key(current[0]);
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        },
+        new ImageLoader()
+        {
+            public Image load(String key)
+            {
+                return current[0];
+            }
+        });
+    }
+
+    /**
+     * Add the images whose keys are not recorded as completed in the journal,
+     * loading each image only once its key is known not to be completed.
+     *
+     * @param keys     The keys of the images to add, such as their collection
+     *                 filepaths. Keys are only read from the iterator as they are
+     *                 batched, so it may produce them lazily.
+     * @param loader   Loads the image for each key not completed
+     *
+     * @return The number of images added in this run
+     *
+     * @throws TinEyeServiceException   If the journal cannot be read or written
+     * @throws InterruptedException     If interrupted while waiting for a batch
+     */
+    public long run(Iterator<String> keys, ImageLoader loader)
+        throws TinEyeServiceException, InterruptedException
+    {
+        final IngestJournal journal;
+        try
+        {
+            journal = new IngestJournal(this.journalFile, 1000, 1000);
+        }
+        catch (IOException e)
+        {
+            logger.error("Opening ingest journal failed: " + e.toString());
+            throw new TinEyeServiceException("Opening ingest journal failed", e);
+        }
+        Set<String> completed = journal.getCompletedKeys();
+        long addedBefore = this.imagesAdded.get();
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.parallelism);
+        Semaphore slots = new Semaphore(this.parallelism);
+        AtomicReference<IOException> journalFailure = new AtomicReference<IOException>();
+
+        try
+        {
+            List<String> batchKeys = new ArrayList<String>(this.batchSize);
+            List<Image> batch = new ArrayList<Image>(this.batchSize);
+            while (keys.hasNext() && journalFailure.get() == null)
+            {
+                String key = keys.next();
+                if (completed.contains(key))
+                {
+                    this.imagesSkipped.incrementAndGet();
+                    continue;
+                }
+                Image image;
+                try
+                {
+                    image = loader.load(key);
+                }
+                catch (IOException e)
+                {
+                    logger.error("Loading image '" + key + "' failed: " + e.toString());
+                    this.imagesFailed.incrementAndGet();
+                    continue;
+                }
+                batchKeys.add(key);
+                batch.add(image);
+
+                if (batch.size() == this.batchSize)
+                {
+                    submit(pool, slots, journal, batchKeys, batch, journalFailure);
+                    batchKeys = new ArrayList<String>(this.batchSize);
+                    batch = new ArrayList<Image>(this.batchSize);
+                }
+            }
+            if (!batch.isEmpty() && journalFailure.get() == null)
+            {
+                submit(pool, slots, journal, batchKeys, batch, journalFailure);
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        finally
+        {
+            pool.shutdownNow();
+            try
+            {
+                journal.close();
+            }
+            catch (IOException e)
+            {
+                journalFailure.compareAndSet(null, e);
+            }
+        }
+
+        if (journalFailure.get() != null)
+        {
+            logger.error("Writing ingest journal failed: " + journalFailure.get().toString());
+            throw new TinEyeServiceException("Writing ingest journal failed", journalFailure.get());
+        }
+        return this.imagesAdded.get() - addedBefore;
+    }
+
+    /**
+     * Get the number of images skipped because they were already completed.
+     *
+     * @return The number of images skipped
+     */
+    public long getImagesSkipped()
+    {
+        return this.imagesSkipped.get();
+    }
+
+    /**
+     * Get the number of images the API accepted.
+     *
+     * @return The number of images added
+     */
+    public long getImagesAdded()
+    {
+        return this.imagesAdded.get();
+    }
+
+    /**
+     * Get the number of images that failed and will be retried on the next run.
+     *
+     * @return The number of images that failed
+     */
+    public long getImagesFailed()
+    {
+        return this.imagesFailed.get();
+    }
+
+    private void submit(ExecutorService pool, final Semaphore slots, final IngestJournal journal,
+                        final List<String> keys, final List<Image> batch,
+                        final AtomicReference<IOException> journalFailure)
+        throws InterruptedException
+    {
+        slots.acquire();
+        pool.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    sendBatch(journal, keys, batch);
+                }
+                catch (IOException e)
+                {
+                    journalFailure.compareAndSet(null, e);
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Ingest batch failed: " + e.toString());
+                    imagesFailed.addAndGet(batch.size());
+                }
+                finally
+                {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    private void sendBatch(IngestJournal journal, List<String> keys, List<Image> images)
+        throws IOException
+    {
+        List<String[]> itemKeys = new ArrayList<String[]>(images.size());
+        for (Image image: images)
+        {
+            itemKeys.add(ItemOutcomes.keysOf(image));
+        }
+        long batchId = journal.submitted(keys);
+        JSONObject response = null;
+
+        try
+        {
+            response = this.sender.send(images);
+        }
+        catch (TinEyeServiceException e)
+        {
+            logger.error("Ingest batch " + batchId + " failed: " + e.toString());
+        }
+        catch (RuntimeException e)
+        {
+            // Still journaled as failed below, so the batch is retried on the next run.
+            logger.error("Ingest batch " + batchId + " failed: " + e.toString());
+        }
+
+        boolean ok = response != null && !"fail".equals(response.optString("status"));
+        if (response != null && !ok)
+        {
+            logger.error("Ingest batch " + batchId + " failed: " + response.optJSONArray("error"));
+        }
+
+        List<String> failedKeys = new ArrayList<String>();
+        if (ok)
+        {
+            JSONObject[] outcomes = ItemOutcomes.split("add", response, itemKeys);
+            for (int i = 0; i < outcomes.length; i++)
+            {
+                if (!ItemOutcomes.succeeded(outcomes[i]))
+                {
+                    failedKeys.add(keys.get(i));
+                }
+            }
+            if (!failedKeys.isEmpty())
+            {
+                logger.warn("Ingest batch " + batchId + " rejected " + failedKeys.size() + " images: " +
+                            response.optJSONArray("error"));
+            }
+        }
+        journal.completed(batchId, ok, failedKeys);
+
+        int failed = ok ? failedKeys.size() : images.size();
+        this.imagesAdded.addAndGet(images.size() - failed);
+        this.imagesFailed.addAndGet(failed);
+    }
+
+    private static String key(Image image)
+    {
+        if (image.getCollectionFilepath() != null)
+        {
+            return image.getCollectionFilepath();
+        }
+        if (image.getURL() != null)
+        {
+            return image.getURL().toString();
+        }
+        return image.getFilepath();
+    }
+}
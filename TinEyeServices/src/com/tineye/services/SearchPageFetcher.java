@@ -0,0 +1,29 @@
+package com.tineye.services;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Fetches one page of the results of a search, given the offset and limit
+ * of the page.
+ * <p>
+ * Implementations for the MatchEngine and MulticolorEngine search methods
+ * are available from {@link SearchPageFetchers}.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public interface SearchPageFetcher
+{
+    /**
+     * Fetch a page of search results.
+     *
+     * @param offset   Offset of the first result to return (starting from 0)
+     * @param limit    Maximum number of results to return
+     *
+     * @return The API JSON response with the search results
+     *
+     * @throws TinEyeServiceException   If an exception occurs issuing the API
+     *                                  request or parsing the response
+     */
+    JSONObject fetch(int offset, int limit)
+        throws TinEyeServiceException;
+}
@@ -0,0 +1,234 @@
+package com.tineye.services;
+
+import java.awt.Color;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Provides {@link SearchPageFetcher} implementations for the MatchEngine
+ * and MulticolorEngine search methods. Every parameter of the search other
+ * than the offset and limit is fixed when the fetcher is created.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public final class SearchPageFetchers
+{
+    private SearchPageFetchers()
+    {
+    }
+
+    /**
+     * Get a fetcher for the results of a MatchEngine search using image data.
+     *
+     * @param request               The MatchEngine API to search
+     * @param image                 The image to search for
+     * @param minScore              Minimum score of results to return
+     * @param checkHorizontalFlip   If true, also search for horizontally flipped images
+     *
+     * @return A fetcher calling {@link MatchEngineRequest#searchImage(Image, int, int, int, boolean)}
+     */
+    public static SearchPageFetcher searchImage(final MatchEngineRequest request, final Image image,
+                                                final int minScore, final boolean checkHorizontalFlip)
+    {
+        return new SearchPageFetcher()
+        {
+            public JSONObject fetch(int offset, int limit)
+                throws TinEyeServiceException
+            {
+                return request.searchImage(image, minScore, offset, limit, checkHorizontalFlip);
+            }
+        };
+    }
+
+    /**
+     * Get a fetcher for the results of a MatchEngine search using an image in the collection.
+     *
+     * @param request               The MatchEngine API to search
+     * @param filepath              The collection filepath of the image to search for
+     * @param minScore              Minimum score of results to return
+     * @param checkHorizontalFlip   If true, also search for horizontally flipped images
+     *
+     * @return A fetcher calling {@link MatchEngineRequest#searchFilepath(String, int, int, int, boolean)}
+     */
+    public static SearchPageFetcher searchFilepath(final MatchEngineRequest request, final String filepath,
+                                                   final int minScore, final boolean checkHorizontalFlip)
+    {
+        return new SearchPageFetcher()
+        {
+            public JSONObject fetch(int offset, int limit)
+                throws TinEyeServiceException
+            {
+                return request.searchFilepath(filepath, minScore, offset, limit, checkHorizontalFlip);
+            }
+        };
+    }
+
+    /**
+     * Get a fetcher for the results of a MatchEngine search using an image URL.
+     *
+     * @param request               The MatchEngine API to search
+     * @param url                   The URL to the image to search for
+     * @param minScore              Minimum score of results to return
+     * @param checkHorizontalFlip   If true, also search for horizontally flipped images
+     *
+     * @return A fetcher calling {@link MatchEngineRequest#searchURL(String, int, int, int, boolean)}
+     */
+    public static SearchPageFetcher searchURL(final MatchEngineRequest request, final String url,
+                                              final int minScore, final boolean checkHorizontalFlip)
+    {
+        return new SearchPageFetcher()
+        {
+            public JSONObject fetch(int offset, int limit)
+                throws TinEyeServiceException
+            {
+                return request.searchURL(url, minScore, offset, limit, checkHorizontalFlip);
+            }
+        };
+    }
+
+    /**
+     * Get a fetcher for the results of a MulticolorEngine color search using image data.
+     *
+     * @param request                    The MulticolorEngine API to search
+     * @param image                      The image whose colors to search for
+     * @param metadata                   Metadata to filter the results on, or null
+     * @param returnMetadata             Metadata fields to return with each result, or null
+     * @param sortMetadata               If true, sort results by metadata score instead of by match score
+     * @param ignoreBackground           If true, ignore the background color of the image
+     * @param ignoreInteriorBackground   If true, ignore interior regions with the background color
+     * @param minScore                   Minimum score of results to return
+     *
+     * @return A fetcher calling {@link MulticolorEngineRequest#searchImage(Image, JSONObject, JSONArray, boolean, boolean, boolean, int, int, int)}
+     */
+    public static SearchPageFetcher searchImage(final MulticolorEngineRequest request, final Image image,
+                                                final JSONObject metadata, final JSONArray returnMetadata,
+                                                final boolean sortMetadata, final boolean ignoreBackground,
+                                                final boolean ignoreInteriorBackground, final int minScore)
+    {
+        return new SearchPageFetcher()
+        {
+            public JSONObject fetch(int offset, int limit)
+                throws TinEyeServiceException
+            {
+                return request.searchImage(image, metadata, returnMetadata, sortMetadata,
+                                           ignoreBackground, ignoreInteriorBackground, minScore, offset, limit);
+            }
+        };
+    }
+
+    /**
+     * Get a fetcher for the results of a MulticolorEngine color search using an image in the collection.
+     *
+     * @param request                    The MulticolorEngine API to search
+     * @param filepath                   The collection filepath of the image whose colors to search for
+     * @param metadata                   Metadata to filter the results on, or null
+     * @param returnMetadata             Metadata fields to return with each result, or null
+     * @param sortMetadata               If true, sort results by metadata score instead of by match score
+     * @param ignoreBackground           If true, ignore the background color of the image
+     * @param ignoreInteriorBackground   If true, ignore interior regions with the background color
+     * @param minScore                   Minimum score of results to return
+     *
+     * @return A fetcher calling {@link MulticolorEngineRequest#searchFilepath(String, JSONObject, JSONArray, boolean, boolean, boolean, int, int, int)}
+     */
+    public static SearchPageFetcher searchFilepath(final MulticolorEngineRequest request,
+                                                   final String filepath, final JSONObject metadata,
+                                                   final JSONArray returnMetadata, final boolean sortMetadata,
+                                                   final boolean ignoreBackground,
+                                                   final boolean ignoreInteriorBackground, final int minScore)
+    {
+        return new SearchPageFetcher()
+        {
+            public JSONObject fetch(int offset, int limit)
+                throws TinEyeServiceException
+            {
+                return request.searchFilepath(filepath, metadata, returnMetadata, sortMetadata,
+                                              ignoreBackground, ignoreInteriorBackground, minScore, offset, limit);
+            }
+        };
+    }
+
+    /**
+     * Get a fetcher for the results of a MulticolorEngine color search using an image URL.
+     *
+     * @param request                    The MulticolorEngine API to search
+     * @param imageURL                   The URL to the image whose colors to search for
+     * @param metadata                   Metadata to filter the results on, or null
+     * @param returnMetadata             Metadata fields to return with each result, or null
+     * @param sortMetadata               If true, sort results by metadata score instead of by match score
+     * @param ignoreBackground           If true, ignore the background color of the image
+     * @param ignoreInteriorBackground   If true, ignore interior regions with the background color
+     * @param minScore                   Minimum score of results to return
+     *
+     * @return A fetcher calling {@link MulticolorEngineRequest#searchURL(String, JSONObject, JSONArray, boolean, boolean, boolean, int, int, int)}
+     */
+    public static SearchPageFetcher searchURL(final MulticolorEngineRequest request, final String imageURL,
+                                              final JSONObject metadata, final JSONArray returnMetadata,
+                                              final boolean sortMetadata, final boolean ignoreBackground,
+                                              final boolean ignoreInteriorBackground, final int minScore)
+    {
+        return new SearchPageFetcher()
+        {
+            public JSONObject fetch(int offset, int limit)
+                throws TinEyeServiceException
+            {
+                return request.searchURL(imageURL, metadata, returnMetadata, sortMetadata,
+                                         ignoreBackground, ignoreInteriorBackground, minScore, offset, limit);
+            }
+        };
+    }
+
+    /**
+     * Get a fetcher for the results of a MulticolorEngine search for colors.
+     *
+     * @param request          The MulticolorEngine API to search
+     * @param colors           The colors to search for
+     * @param weights          Weights of the colors, or an empty array
+     * @param metadata         Metadata to filter the results on, or null
+     * @param returnMetadata   Metadata fields to return with each result, or null
+     * @param sortMetadata     If true, sort results by metadata score instead of by match score
+     * @param minScore         Minimum score of results to return
+     *
+     * @return A fetcher calling {@link MulticolorEngineRequest#searchColor(Color[], float[], JSONObject, JSONArray, boolean, int, int, int)}
+     */
+    public static SearchPageFetcher searchColor(final MulticolorEngineRequest request, final Color[] colors,
+                                                final float[] weights, final JSONObject metadata,
+                                                final JSONArray returnMetadata, final boolean sortMetadata,
+                                                final int minScore)
+    {
+        return new SearchPageFetcher()
+        {
+            public JSONObject fetch(int offset, int limit)
+                throws TinEyeServiceException
+            {
+                return request.searchColor(colors, weights, metadata, returnMetadata, sortMetadata,
+                                           minScore, offset, limit);
+            }
+        };
+    }
+
+    /**
+     * Get a fetcher for the results of a MulticolorEngine search using metadata only.
+     *
+     * @param request          The MulticolorEngine API to search
+     * @param metadata         Metadata to filter the results on, or null
+     * @param returnMetadata   Metadata fields to return with each result, or null
+     * @param sortMetadata     If true, sort results by metadata score instead of by match score
+     * @param minScore         Minimum score of results to return
+     *
+     * @return A fetcher calling {@link MulticolorEngineRequest#searchMetadata(JSONObject, JSONArray, boolean, int, int, int)}
+     */
+    public static SearchPageFetcher searchMetadata(final MulticolorEngineRequest request,
+                                                   final JSONObject metadata, final JSONArray returnMetadata,
+                                                   final boolean sortMetadata, final int minScore)
+    {
+        return new SearchPageFetcher()
+        {
+            public JSONObject fetch(int offset, int limit)
+                throws TinEyeServiceException
+            {
+                return request.searchMetadata(metadata, returnMetadata, sortMetadata, minScore, offset, limit);
+            }
+        };
+    }
+}
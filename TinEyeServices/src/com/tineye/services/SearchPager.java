@@ -0,0 +1,173 @@
+package com.tineye.services;
+
+import java.util.Iterator;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Serves pages of search results from a larger window of results fetched
+ * in one API call.
+ * <p>
+ * A page that falls inside the current window is built from it without
+ * calling the API. Otherwise the window holding the page is fetched: windows
+ * start at multiples of <code>windowSize</code>, so paging back and forth
+ * within a window never calls the API again, or at the page offset when the
+ * page would cross a window boundary. A page larger than a window is fetched
+ * on its own.
+ * <p>
+ * A window with fewer results than requested is the last one, so pages past
+ * its end are returned empty without calling the API. Responses with a
+ * <code>fail</code> status are returned without being kept. Call
+ * {@link #reset()} after the collection changes to drop the window.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class SearchPager
+{
+    private final SearchPageFetcher fetcher;
+    private final int windowSize;
+
+    private JSONObject window = null;
+    private JSONArray windowResults = null;
+    private int windowOffset = 0;
+    private boolean lastWindow = false;
+
+    private long pages = 0;
+    private long fetches = 0;
+
+    /**
+     * Construct a <code>SearchPager</code>.
+     *
+     * @param fetcher      Fetches windows of results from the API
+     * @param windowSize   Number of results to fetch at once, for example 100
+     *
+     * @throws IllegalArgumentException   If <code>windowSize</code> is not positive
+     */
+    public SearchPager(SearchPageFetcher fetcher, int windowSize)
+    {
+        if (windowSize <= 0)
+        {
+            throw new IllegalArgumentException("SearchPager windowSize must be positive");
+        }
+        this.fetcher = fetcher;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Get a page of search results.
+     *
+     * @param offset   Offset of the first result to return (starting from 0)
+     * @param limit    Maximum number of results to return
+     *
+     * @return The API JSON response for the window holding the page, with
+     *         <code>result</code> holding only the results of the page
+     *
+     * @throws TinEyeServiceException   If an exception occurs fetching a window
+     * @throws IllegalArgumentException If <code>offset</code> is negative or
+     *                                  <code>limit</code> is not positive
+     */
+    public synchronized JSONObject getPage(int offset, int limit)
+        throws TinEyeServiceException
+    {
+        if (offset < 0 || limit <= 0)
+        {
+            throw new IllegalArgumentException("SearchPager offset must not be negative and limit must be positive");
+        }
+        this.pages++;
+
+        if (limit > this.windowSize)
+        {
+            this.fetches++;
+            return this.fetcher.fetch(offset, limit);
+        }
+        if (!inWindow(offset, limit))
+        {
+            int start = (offset / this.windowSize) * this.windowSize;
+            if (offset + limit > start + this.windowSize)
+            {
+                start = offset;
+            }
+            this.fetches++;
+            JSONObject response = this.fetcher.fetch(start, this.windowSize);
+            if (response == null || "fail".equals(response.optString("status")))
+            {
+                return response;
+            }
+            JSONArray results = response.optJSONArray("result");
+            this.window = response;
+            this.windowResults = results == null ? new JSONArray() : results;
+            this.windowOffset = start;
+            this.lastWindow = this.windowResults.size() < this.windowSize;
+        }
+        return page(offset, limit);
+    }
+
+    /**
+     * Drop the current window, so the next page is fetched from the API.
+     */
+    public synchronized void reset()
+    {
+        this.window = null;
+        this.windowResults = null;
+        this.windowOffset = 0;
+        this.lastWindow = false;
+    }
+
+    /**
+     * @return Number of pages requested
+     */
+    public synchronized long getPages()
+    {
+        return this.pages;
+    }
+
+    /**
+     * @return Number of API calls made to fetch pages
+     */
+    public synchronized long getFetches()
+    {
+        return this.fetches;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "pages=" + this.pages + " fetches=" + this.fetches + " windowSize=" + this.windowSize;
+    }
+
+    private boolean inWindow(int offset, int limit)
+    {
+        if (this.window == null || offset < this.windowOffset)
+        {
+            return false;
+        }
+        // Past the end of the last window there are no more results.
+        int windowEnd = this.windowOffset + this.windowResults.size();
+        return offset + limit <= windowEnd || this.lastWindow;
+    }
+
+    private JSONObject page(int offset, int limit)
+    {
+        JSONObject page = new JSONObject();
+        Iterator<?> keys = this.window.keys();
+        while (keys.hasNext())
+        {
+            String key = (String)keys.next();
+            if (!"result".equals(key))
+            {
+                page.element(key, this.window.get(key));
+            }
+        }
+
+        JSONArray results = new JSONArray();
+        int from = offset - this.windowOffset;
+        int to = Math.min(from + limit, this.windowResults.size());
+        for (int i = from; i < to; i++)
+        {
+            results.element(this.windowResults.get(i));
+        }
+        page.element("result", results);
+        return page;
+    }
+}
@@ -0,0 +1,244 @@
+package com.tineye.services;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Iterates over every result of a search, fetching the results one page at
+ * a time.
+ * <p>
+ * While the caller consumes one page, the next page is fetched in the
+ * background. The iteration ends after a page with fewer results than
+ * requested, or after a result scoring below <code>minScore</code>, since
+ * results are sorted by score and the following pages cannot hold any
+ * result above it.
+ * <p>
+ * Because <code>Iterator</code> methods cannot throw checked exceptions, a
+ * failed search is reported by {@link #hasNext()} or {@link #next()} throwing
+ * an <code>IllegalStateException</code> whose cause is the
+ * <code>TinEyeServiceException</code>. Call {@link #close()} to stop
+ * prefetching if the iteration is abandoned before the end.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class SearchResultIterator implements Iterator<JSONObject>, Closeable
+{
+    private static final Logger logger = Logger.getLogger(SearchResultIterator.class);
+
+    /**
+     * Number of results requested per page by the <code>searchAll</code> methods.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final SearchPageFetcher pageFetcher;
+    private final int pageSize;
+    private final double minScore;
+
+    private final ExecutorService fetcher;
+    private Future<List<JSONObject>> nextPage = null;
+
+    private int nextOffset = 0;
+    private boolean endReached = false;
+    private Iterator<JSONObject> current = Collections.<JSONObject>emptyList().iterator();
+
+    /**
+     * Construct a <code>SearchResultIterator</code>.
+     *
+     * @param pageFetcher   Fetches pages of results from the API
+     * @param pageSize      Number of results to request per page
+     * @param minScore      Score below which the iteration ends, or 0 to page until
+     *                      the results run out, for results not sorted by score
+     *
+     * @throws IllegalArgumentException   If <code>pageSize</code> is not positive
+     */
+    public SearchResultIterator(SearchPageFetcher pageFetcher, int pageSize, double minScore)
+    {
+        if (pageSize <= 0)
+        {
+            throw new IllegalArgumentException("SearchResultIterator pageSize must be positive");
+        }
+        this.pageFetcher = pageFetcher;
+        this.pageSize = pageSize;
+        this.minScore = minScore;
+
+        // A daemon thread, so an iterator abandoned without close() does not keep the JVM running.
+        this.fetcher = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "SearchResultIterator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        schedulePage();
+    }
+
+    /**
+     * Check if there are more results, waiting for the next page if needed.
+     *
+     * @return True if there are more results
+     *
+     * @throws IllegalStateException   If a search request fails
+     */
+    public boolean hasNext()
+    {
+        while (!this.current.hasNext())
+        {
+            if (this.nextPage == null)
+            {
+                close();
+                return false;
+            }
+            List<JSONObject> page = takePage();
+            schedulePage();
+            this.current = page.iterator();
+        }
+        return true;
+    }
+
+    /**
+     * Get the next search result.
+     *
+     * @return The next result, with the fields returned by the search method
+     *
+     * @throws NoSuchElementException   If there are no more results
+     * @throws IllegalStateException    If a search request fails
+     */
+    public JSONObject next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        return this.current.next();
+    }
+
+    /**
+     * Not supported, search results cannot be removed.
+     *
+     * @throws UnsupportedOperationException   Always
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException("SearchResultIterator does not support remove");
+    }
+
+    /**
+     * Stop fetching pages. Any results not yet returned are discarded.
+     */
+    public void close()
+    {
+        this.endReached = true;
+        if (this.nextPage != null)
+        {
+            this.nextPage.cancel(true);
+            this.nextPage = null;
+        }
+        this.fetcher.shutdownNow();
+    }
+
+    private void schedulePage()
+    {
+        if (this.endReached)
+        {
+            this.nextPage = null;
+            return;
+        }
+        final int offset = this.nextOffset;
+
+        this.nextPage = this.fetcher.submit(new Callable<List<JSONObject>>()
+        {
+            public List<JSONObject> call()
+                throws TinEyeServiceException
+            {
+                return fetchPage(offset);
+            }
+        });
+        this.nextOffset += this.pageSize;
+    }
+
+    private List<JSONObject> takePage()
+    {
+        Future<List<JSONObject>> future = this.nextPage;
+        this.nextPage = null;
+        try
+        {
+            List<JSONObject> page = future.get();
+            if (page.size() < this.pageSize)
+            {
+                this.endReached = true;
+            }
+            else if (this.minScore > 0 &&
+                     page.get(page.size() - 1).optDouble("score", this.minScore) < this.minScore)
+            {
+                this.endReached = true;
+            }
+            return belowMinScoreRemoved(page);
+        }
+        catch (ExecutionException e)
+        {
+            close();
+            throw new IllegalStateException("'search' failed", e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            close();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for 'search'", e);
+        }
+    }
+
+    private List<JSONObject> belowMinScoreRemoved(List<JSONObject> page)
+    {
+        if (this.minScore <= 0)
+        {
+            return page;
+        }
+        List<JSONObject> kept = new ArrayList<JSONObject>(page.size());
+        for (JSONObject result: page)
+        {
+            if (result.optDouble("score", this.minScore) >= this.minScore)
+            {
+                kept.add(result);
+            }
+        }
+        return kept;
+    }
+
+    private List<JSONObject> fetchPage(int offset)
+        throws TinEyeServiceException
+    {
+        JSONObject response = this.pageFetcher.fetch(offset, this.pageSize);
+
+        if (response == null || "fail".equals(response.optString("status")))
+        {
+            Object errors = response == null ? "no response" : response.optJSONArray("error");
+            logger.error("'search' at offset " + offset + " failed: " + errors);
+            throw new TinEyeServiceException("'search' at offset " + offset + " failed: " + errors);
+        }
+        JSONArray result = response.optJSONArray("result");
+        List<JSONObject> results = new ArrayList<JSONObject>(result == null ? 0 : result.size());
+
+        for (int i = 0; result != null && i < result.size(); i++)
+        {
+            results.add(result.getJSONObject(i));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,51 @@
+package com.tineye.services;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A <code>Future</code> that is completed explicitly by calling
+ * {@link #set(Object)} or {@link #setException(Throwable)} rather
+ * than by running a task.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+class SettableFuture<V> extends FutureTask<V>
+{
+    private static final Callable<Object> NOTHING = new Callable<Object>()
+    {
+        public Object call()
+        {
+            throw new IllegalStateException("SettableFuture is completed by set, not run");
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    SettableFuture()
+    {
+        super((Callable<V>)NOTHING);
+    }
+
+    /**
+     * Complete the future with <code>value</code>, unless it is already done.
+     *
+     * @param value   The result of the future
+     */
+    @Override
+    public void set(V value)
+    {
+        super.set(value);
+    }
+
+    /**
+     * Complete the future exceptionally with <code>cause</code>, unless it is already done.
+     *
+     * @param cause   The exception thrown by <code>get</code>, wrapped in an
+     *                <code>ExecutionException</code>
+     */
+    @Override
+    public void setException(Throwable cause)
+    {
+        super.setException(cause);
+    }
+}
@@ -0,0 +1,301 @@
+package com.tineye.services;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link SearchPageFetcher} that, after returning a full page, fetches the
+ * following page in the background so it is ready if it is requested next.
+ * <p>
+ * A speculatively fetched page is kept for <code>holdMillis</code>
+ * milliseconds after it arrives and is returned, at most once, for a request
+ * with the same offset and limit. A request for a page still being fetched
+ * waits for it instead of fetching it again. At most
+ * <code>maxSpeculative</code> pages are fetched or held at a time; no page is
+ * speculatively fetched while that many are.
+ * <p>
+ * Compare {@link #getHits()} to {@link #getSpeculations()} to see whether
+ * prefetching pays for the extra API calls it makes. Call {@link #close()} to
+ * stop the background thread.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class SpeculativeSearchPrefetcher implements SearchPageFetcher, Closeable
+{
+    private static final Logger logger = Logger.getLogger(SpeculativeSearchPrefetcher.class);
+
+    private final SearchPageFetcher fetcher;
+    private final long holdMillis;
+    private final int maxSpeculative;
+
+    private final ExecutorService prefetcher;
+
+    // Keyed by "offset/limit", oldest first.
+    private final LinkedHashMap<String, Speculation> speculations = new LinkedHashMap<String, Speculation>();
+
+    private long requests = 0;
+    private long hits = 0;
+    private long started = 0;
+    private long wasted = 0;
+    private long skipped = 0;
+
+    /**
+     * Construct a <code>SpeculativeSearchPrefetcher</code>.
+     *
+     * @param fetcher          Fetches pages from the API
+     * @param holdMillis       Time in milliseconds a prefetched page is kept after it arrives
+     * @param maxSpeculative   Maximum number of pages being prefetched or held at a time
+     *
+     * @throws IllegalArgumentException   If the limits are not positive
+     */
+    public SpeculativeSearchPrefetcher(SearchPageFetcher fetcher, long holdMillis, int maxSpeculative)
+    {
+        if (holdMillis <= 0 || maxSpeculative <= 0)
+        {
+            throw new IllegalArgumentException("SpeculativeSearchPrefetcher limits must be positive");
+        }
+        this.fetcher = fetcher;
+        this.holdMillis = holdMillis;
+        this.maxSpeculative = maxSpeculative;
+
+        this.prefetcher = Executors.newFixedThreadPool(maxSpeculative, new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "SpeculativeSearchPrefetcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public JSONObject fetch(int offset, int limit)
+        throws TinEyeServiceException
+    {
+        Speculation speculation;
+        synchronized (this)
+        {
+            this.requests++;
+            expire();
+            speculation = this.speculations.remove(key(offset, limit));
+        }
+
+        JSONObject response = null;
+        if (speculation != null)
+        {
+            response = await(speculation, offset);
+        }
+        if (response != null)
+        {
+            synchronized (this)
+            {
+                this.hits++;
+            }
+        }
+        else
+        {
+            response = this.fetcher.fetch(offset, limit);
+        }
+
+        if (isFullPage(response, limit))
+        {
+            speculate(offset + limit, limit);
+        }
+        return response;
+    }
+
+    /**
+     * Stop prefetching and drop every held page.
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            for (Speculation speculation: this.speculations.values())
+            {
+                speculation.future.cancel(true);
+                this.wasted++;
+            }
+            this.speculations.clear();
+        }
+        this.prefetcher.shutdownNow();
+    }
+
+    /**
+     * @return Number of pages requested
+     */
+    public synchronized long getRequests()
+    {
+        return this.requests;
+    }
+
+    /**
+     * @return Number of requests answered with a prefetched page
+     */
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * @return Number of pages prefetched
+     */
+    public synchronized long getSpeculations()
+    {
+        return this.started;
+    }
+
+    /**
+     * @return Number of prefetched pages dropped without being requested, or that failed
+     */
+    public synchronized long getWasted()
+    {
+        return this.wasted;
+    }
+
+    /**
+     * @return Number of pages not prefetched because <code>maxSpeculative</code> pages were
+     *         already being prefetched or held
+     */
+    public synchronized long getSkipped()
+    {
+        return this.skipped;
+    }
+
+    /**
+     * @return Fraction of prefetched pages that were requested, from 0 to 1
+     */
+    public synchronized double getHitRate()
+    {
+        return this.started == 0 ? 0 : (double)this.hits / this.started;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "requests=" + this.requests + " speculations=" + this.started + " hits=" + this.hits +
+               " wasted=" + this.wasted + " skipped=" + this.skipped;
+    }
+
+    private void speculate(final int offset, final int limit)
+    {
+        String key = key(offset, limit);
+        synchronized (this)
+        {
+            expire();
+            if (this.speculations.containsKey(key))
+            {
+                return;
+            }
+            if (this.speculations.size() >= this.maxSpeculative)
+            {
+                this.skipped++;
+                return;
+            }
+
+            final Speculation speculation = new Speculation();
+            try
+            {
+                speculation.future = this.prefetcher.submit(new Callable<JSONObject>()
+                {
+                    public JSONObject call()
+                        throws TinEyeServiceException
+                    {
+                        try
+                        {
+                            return fetcher.fetch(offset, limit);
+                        }
+                        finally
+                        {
+                            speculation.arrivedMillis = System.currentTimeMillis();
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Closed.
+                return;
+            }
+            this.speculations.put(key, speculation);
+            this.started++;
+        }
+    }
+
+    private JSONObject await(Speculation speculation, int offset)
+    {
+        try
+        {
+            JSONObject response = speculation.future.get();
+            if (response != null && !"fail".equals(response.optString("status")))
+            {
+                return response;
+            }
+        }
+        catch (ExecutionException e)
+        {
+            logger.warn("Prefetching page at offset " + offset + " failed: " + e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this)
+        {
+            this.wasted++;
+        }
+        return null;
+    }
+
+    /**
+     * Drop the pages held longer than <code>holdMillis</code>.
+     */
+    private void expire()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Speculation> held = this.speculations.values().iterator();
+        while (held.hasNext())
+        {
+            long arrivedMillis = held.next().arrivedMillis;
+            if (arrivedMillis != 0 && now - arrivedMillis >= this.holdMillis)
+            {
+                held.remove();
+                this.wasted++;
+            }
+        }
+    }
+
+    private static boolean isFullPage(JSONObject response, int limit)
+    {
+        if (response == null || "fail".equals(response.optString("status")))
+        {
+            return false;
+        }
+        JSONArray results = response.optJSONArray("result");
+        return results != null && results.size() >= limit;
+    }
+
+    private static String key(int offset, int limit)
+    {
+        return offset + "/" + limit;
+    }
+
+    private static class Speculation
+    {
+        Future<JSONObject> future;
+        volatile long arrivedMillis = 0;
+    }
+}
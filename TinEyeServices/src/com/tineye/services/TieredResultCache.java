@@ -0,0 +1,58 @@
+package com.tineye.services;
+
+import net.sf.json.JSONObject;
+
+/**
+ * A {@link ResultCache} made of a small, fast first tier in front of a
+ * larger second tier, such as a {@link MemoryResultCache} in front of a
+ * {@link MappedResultCache}.
+ * <p>
+ * Responses are cached in both tiers. A response found only in the second
+ * tier is copied into the first, so after a restart the responses still in
+ * use move back into memory as they are requested.
+ * <p>
+ * Copyright (C) 2026 Idée Inc. All rights reserved worldwide.
+ */
+public class TieredResultCache implements ResultCache
+{
+    private final ResultCache first;
+    private final ResultCache second;
+
+    /**
+     * Construct a <code>TieredResultCache</code>.
+     *
+     * @param first    The tier checked first
+     * @param second   The tier checked when the first has no response
+     */
+    public TieredResultCache(ResultCache first, ResultCache second)
+    {
+        this.first = first;
+        this.second = second;
+    }
+
+    public JSONObject get(String key)
+    {
+        JSONObject response = this.first.get(key);
+        if (response == null)
+        {
+            response = this.second.get(key);
+            if (response != null)
+            {
+                this.first.put(key, response);
+            }
+        }
+        return response;
+    }
+
+    public void put(String key, JSONObject response)
+    {
+        this.first.put(key, response);
+        this.second.put(key, response);
+    }
+
+    public void invalidate(String keyPrefix)
+    {
+        this.first.invalidate(keyPrefix);
+        this.second.invalidate(keyPrefix);
+    }
+}
@@ -2,7 +2,15 @@ package com.tineye.services;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.sf.json.JSONArray;
 import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 import net.sf.json.JSONSerializer;
@@ -33,6 +41,16 @@ public class TinEyeServiceRequest
     // The TinEye Services APIs will always be on port 80.
     private final int port = 80;
 
+    private volatile ResultCache resultCache = null;
+    private volatile RefreshAheadCache refreshAheadCache = null;
+    private volatile NegativeURLCache negativeURLCache = null;
+
+    // Identical read-only requests in flight, when coalescing is on.
+    private volatile boolean coalesceRequests = false;
+    private final ConcurrentHashMap<String, FutureTask<JSONObject>> inFlightRequests =
+        new ConcurrentHashMap<String, FutureTask<JSONObject>>();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
     /**
      * Construct a <code>TinEyeServiceRequest</code> instance to issue
      * HTTP requests to a specific TinEye Services API.
@@ -77,6 +95,116 @@ public class TinEyeServiceRequest
         this.host = new URI(apiURL).getHost();
     }
 
+    /**
+     * Set the cache used to answer repeated read-only requests, such as searches,
+     * without calling the API.
+     * <p>
+     * Only responses with an <code>ok</code> status are cached. Responses cached for
+     * this API URL are invalidated whenever images are added to or deleted from the
+     * collection through this request.
+     *
+     * @param resultCache   The cache to use, or null to stop caching
+     */
+    public void setResultCache(ResultCache resultCache)
+    {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Get the cache used to answer repeated read-only requests.
+     *
+     * @return The result cache, or null if results are not cached
+     */
+    public ResultCache getResultCache()
+    {
+        return this.resultCache;
+    }
+
+    /**
+     * Set the cache used for <code>count</code> and, for APIs with metadata,
+     * <code>get_search_metadata</code> and <code>get_return_metadata</code>.
+     * <p>
+     * The cached count is invalidated whenever images are added to or deleted
+     * from the collection through this request.
+     *
+     * @param refreshAheadCache   The cache to use, or null to always call the API
+     */
+    public void setRefreshAheadCache(RefreshAheadCache refreshAheadCache)
+    {
+        this.refreshAheadCache = refreshAheadCache;
+    }
+
+    /**
+     * Get the cache used for <code>count</code> and the metadata schema methods.
+     *
+     * @return The refresh-ahead cache, or null if these methods are not cached
+     */
+    public RefreshAheadCache getRefreshAheadCache()
+    {
+        return this.refreshAheadCache;
+    }
+
+    /**
+     * Set the cache of image URLs the API could not fetch.
+     * <p>
+     * Requests with a URL known to fail return a <code>fail</code> response with
+     * the error the API gave for it, without calling the API. When adding images
+     * by URL, only the images with URLs known to fail are left out, and their
+     * errors are added to the response.
+     *
+     * @param negativeURLCache   The cache to use, or null to always call the API
+     */
+    public void setNegativeURLCache(NegativeURLCache negativeURLCache)
+    {
+        this.negativeURLCache = negativeURLCache;
+    }
+
+    /**
+     * Get the cache of image URLs the API could not fetch.
+     *
+     * @return The negative URL cache, or null if failing URLs are not remembered
+     */
+    public NegativeURLCache getNegativeURLCache()
+    {
+        return this.negativeURLCache;
+    }
+
+    /**
+     * Set whether identical read-only requests made at the same time share one API call.
+     * <p>
+     * When on, a read-only request with the same method and parameters as one
+     * already in flight waits for that request and returns a copy of its response,
+     * or throws its exception, instead of calling the API again. This applies to
+     * GET requests such as <code>count</code> and <code>get_search_metadata</code>,
+     * and to searches.
+     *
+     * @param coalesceRequests   True to share identical in-flight requests
+     */
+    public void setCoalesceRequests(boolean coalesceRequests)
+    {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    /**
+     * Get whether identical read-only requests made at the same time share one API call.
+     *
+     * @return True if identical in-flight requests are shared
+     */
+    public boolean isCoalesceRequests()
+    {
+        return this.coalesceRequests;
+    }
+
+    /**
+     * Get the number of requests answered by sharing an identical request already in flight.
+     *
+     * @return The number of coalesced requests
+     */
+    public long getCoalescedRequests()
+    {
+        return this.coalescedRequests.get();
+    }
+
     /**
      * Delete images from the hosted image collection.
      * <p>
@@ -112,6 +240,7 @@ public class TinEyeServiceRequest
                 i += 1;
             }
             responseJSON = postAPIRequest("delete", postEntity);
+            invalidateCachedResults();
         }
         catch (Exception e)
         {
@@ -142,7 +271,7 @@ public class TinEyeServiceRequest
     {
         try
         {
-            return getAPIRequest("count");
+            return getRefreshedAPIRequest("count");
         }
         catch (Exception e)
         {
@@ -215,6 +344,227 @@ public class TinEyeServiceRequest
         }
     }
 
+    /**
+     * Build the key identifying a call to an API method, used to cache and coalesce requests.
+     *
+     * @param method   The API method
+     * @param params   The request parameters that determine the response
+     *
+     * @return The request key
+     */
+    protected String requestKey(String method, String params)
+    {
+        return this.apiURL + method + "/?" + params;
+    }
+
+    /**
+     * Build the result cache key for a call to an API method.
+     *
+     * @param method   The API method
+     * @param params   The request parameters that determine the response, or null
+     *                 if the response should not be cached
+     *
+     * @return The cache key, or null if no result cache is set
+     */
+    protected String resultCacheKey(String method, String params)
+    {
+        if (this.resultCache == null || params == null)
+        {
+            return null;
+        }
+        return requestKey(method, params);
+    }
+
+    /**
+     * Get a cached response from the result cache.
+     *
+     * @param cacheKey   The key from {@link #resultCacheKey(String, String)}, or null
+     *
+     * @return The cached response, or null if there is none
+     */
+    protected JSONObject getCachedResult(String cacheKey)
+    {
+        ResultCache cache = this.resultCache;
+        if (cache == null || cacheKey == null)
+        {
+            return null;
+        }
+        return cache.get(cacheKey);
+    }
+
+    /**
+     * Store a response in the result cache if its status is <code>ok</code>.
+     *
+     * @param cacheKey   The key from {@link #resultCacheKey(String, String)}, or null
+     * @param response   The API JSON response
+     */
+    protected void putCachedResult(String cacheKey, JSONObject response)
+    {
+        ResultCache cache = this.resultCache;
+        if (cache != null && cacheKey != null && response != null &&
+            "ok".equals(response.optString("status")))
+        {
+            cache.put(cacheKey, response);
+        }
+    }
+
+    /**
+     * Invalidate every cached response for this API URL, after the collection has been modified.
+     */
+    protected void invalidateCachedResults()
+    {
+        ResultCache cache = this.resultCache;
+        if (cache != null)
+        {
+            cache.invalidate(this.apiURL);
+        }
+        RefreshAheadCache refreshCache = this.refreshAheadCache;
+        if (refreshCache != null)
+        {
+            refreshCache.invalidate(requestKey("count", ""));
+        }
+    }
+
+    /**
+     * Get a <code>fail</code> response for a request with an image URL known to fail.
+     *
+     * @param method   The API method
+     * @param urls     The image URLs of the request
+     *
+     * @return The failure response, or null if no URL is known to fail or no
+     *         negative URL cache is set
+     */
+    protected JSONObject getURLFailure(String method, String... urls)
+    {
+        NegativeURLCache cache = this.negativeURLCache;
+        if (cache == null)
+        {
+            return null;
+        }
+        return cache.getFailure(method, urls);
+    }
+
+    /**
+     * Record the image URLs the API could not fetch for a request.
+     *
+     * @param response   The API JSON response
+     * @param urls       The image URLs of the request
+     */
+    protected void recordURLFailures(JSONObject response, String... urls)
+    {
+        NegativeURLCache cache = this.negativeURLCache;
+        if (cache != null)
+        {
+            cache.recordFailures(response, urls);
+        }
+    }
+
+    /**
+     * Leave out the images with URLs known to fail from a request to add images.
+     *
+     * @param images   The images to add
+     * @param errors   Receives the recorded error for each image left out, prefixed
+     *                 with its URL if the error does not name it, so the error can be
+     *                 matched to the image
+     *
+     * @return The images to send to the API
+     */
+    protected Image[] removeURLFailures(Image[] images, JSONArray errors)
+    {
+        NegativeURLCache cache = this.negativeURLCache;
+        if (cache == null)
+        {
+            return images;
+        }
+        List<Image> toSend = new ArrayList<Image>(images.length);
+        for (Image image: images)
+        {
+            String url = image.getURL().toString();
+            String error = cache.getError(url);
+            if (error == null)
+            {
+                toSend.add(image);
+            }
+            else
+            {
+                errors.element(ItemOutcomes.containsToken(error, url) ? error : url + ": " + error);
+            }
+        }
+        return toSend.size() == images.length ? images : toSend.toArray(new Image[toSend.size()]);
+    }
+
+    /**
+     * Add the errors for images left out by {@link #removeURLFailures(Image[], JSONArray)}
+     * to the response for the images that were sent. An <code>ok</code> status becomes
+     * <code>warn</code>.
+     *
+     * @param method     The API method
+     * @param response   The API JSON response, or null if no images were sent
+     * @param errors     The errors for the images left out
+     *
+     * @return The response including the errors
+     */
+    protected static JSONObject addURLFailures(String method, JSONObject response, JSONArray errors)
+    {
+        if (errors.isEmpty())
+        {
+            return response;
+        }
+        if (response == null)
+        {
+            return NegativeURLCache.failureResponse(method, errors);
+        }
+        JSONArray allErrors = new JSONArray();
+        JSONArray responseErrors = response.optJSONArray("error");
+        if (responseErrors != null)
+        {
+            for (int i = 0; i < responseErrors.size(); i++)
+            {
+                allErrors.element(responseErrors.opt(i));
+            }
+        }
+        for (int i = 0; i < errors.size(); i++)
+        {
+            allErrors.element(errors.opt(i));
+        }
+        response.element("error", allErrors);
+        if ("ok".equals(response.optString("status")))
+        {
+            response.element("status", "warn");
+        }
+        return response;
+    }
+
+    /**
+     * Helper method to issue an HTTP GET request to an API method without parameters,
+     * answered from the refresh-ahead cache if one is set.
+     *
+     * @param method   The API method to issue the HTTP GET request to.
+     *
+     * @return The API JSON response returned by the API server or the cache. A
+     *         <code>fail</code> response is returned as it is without the cache,
+     *         unless there is a stale response to return instead.
+     *
+     * @throws Exception   If an exception occurs calling the API and there is no stale response.
+     */
+    protected JSONObject getRefreshedAPIRequest(final String method)
+        throws Exception
+    {
+        RefreshAheadCache cache = this.refreshAheadCache;
+        if (cache == null)
+        {
+            return getAPIRequest(method);
+        }
+        return cache.get(requestKey(method, ""), new RefreshAheadCache.Loader()
+        {
+            public JSONObject load()
+                throws Exception
+            {
+                return getAPIRequest(method);
+            }
+        });
+    }
+
     /**
      * Helper method to issue an HTTP GET request to the specified API method.
      *
@@ -253,14 +603,111 @@ public class TinEyeServiceRequest
             throw new IllegalArgumentException("Cannot call API with 'null' method");
         }
 
-        HttpUtils httpHelper = new HttpUtils(this.host, this.port, this.username, this.password);
-        String requestURL = this.apiURL + method + "/";
+        final String requestURL = this.apiURL + method + "/" + (queryParams != null ? "?" + queryParams : "");
+
+        if (this.coalesceRequests)
+        {
+            return coalesce(requestURL, new Callable<JSONObject>()
+            {
+                public JSONObject call()
+                    throws Exception
+                {
+                    return doGetAPIRequest(requestURL);
+                }
+            });
+        }
+        return doGetAPIRequest(requestURL);
+    }
+
+    /**
+     * Helper method to issue an HTTP POST request for a read-only API method,
+     * sharing the call with an identical request already in flight if
+     * {@link #setCoalesceRequests(boolean)} is on.
+     *
+     * @param method        The API method being called.
+     * @param params        The request parameters that determine the response, or null
+     *                      to always send the request.
+     * @param postRequest   The API POST request to send to the API.
+     *
+     * @return The JSON response returned by the API.
+     *
+     * @throws HttpUtilsException   If an exception occurs calling the API.
+     * @throws JSONException        If an exception occurs converting the API response to a JSONObject.
+     */
+    protected JSONObject postReadOnlyAPIRequest(final String method, String params, final MultipartEntity postRequest)
+        throws HttpUtilsException, JSONException
+    {
+        if (this.coalesceRequests && params != null)
+        {
+            return coalesce(requestKey(method, params), new Callable<JSONObject>()
+            {
+                public JSONObject call()
+                    throws Exception
+                {
+                    return postAPIRequest(method, postRequest);
+                }
+            });
+        }
+        return postAPIRequest(method, postRequest);
+    }
 
-        if (queryParams != null)
+    private JSONObject coalesce(String requestKey, Callable<JSONObject> call)
+        throws HttpUtilsException, JSONException
+    {
+        FutureTask<JSONObject> task = new FutureTask<JSONObject>(call);
+        FutureTask<JSONObject> inFlight = this.inFlightRequests.putIfAbsent(requestKey, task);
+
+        if (inFlight == null)
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                this.inFlightRequests.remove(requestKey, task);
+            }
+            inFlight = task;
+        }
+        else
         {
-            requestURL += "?" + queryParams;
+            this.coalescedRequests.incrementAndGet();
         }
 
+        try
+        {
+            // Every caller gets its own copy, since responses are mutable.
+            JSONObject response = inFlight.get();
+            return response == null ? null : JSONObject.fromObject(response);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new HttpUtilsException("Interrupted waiting for '" + requestKey + "'", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof HttpUtilsException)
+            {
+                throw (HttpUtilsException)cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            throw new HttpUtilsException("'" + requestKey + "' failed", cause);
+        }
+    }
+
+    private JSONObject doGetAPIRequest(String requestURL)
+        throws HttpUtilsException, JSONException
+    {
+        HttpUtils httpHelper = new HttpUtils(this.host, this.port, this.username, this.password);
         JSONObject responseJSON = null;
 
         // out.println(requestURL);